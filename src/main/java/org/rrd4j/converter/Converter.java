@@ -1,76 +1,354 @@
 package org.rrd4j.converter;
 
+import org.rrd4j.core.RrdBackendFactory;
 import org.rrd4j.core.RrdDb;
+import org.rrd4j.core.RrdFileBackendFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.text.DecimalFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Simple utility class to convert RRD files created with RRDTool 1.0.x to
- * Rrd4j's native RRD format. Conversion process is quite fast.
+ * Utility class to convert RRD files created with RRDTool to Rrd4j's native RRD format.
+ * It can be used from the command line (see {@link #main(String[])}) or as an API:
+ * <pre>
+ * Converter converter = new Converter();
+ * converter.setThreadCount(8);
+ * converter.setSkipExisting(true);
+ * Converter.Stats stats = converter.convertAll(files);
+ * System.out.println(stats.getFilesPerSecond() + " files/sec");
+ * </pre>
+ * Files are converted in parallel on a fixed thread pool. Each RRDTool file is memory mapped
+ * and its archives are copied datasource by datasource into the destination backend.<p>
+ *
+ * When the destination factory is file based, each file is first converted to a temporary
+ * file which is renamed on success, so an interrupted run never leaves a truncated
+ * destination behind. With {@link #setSkipExisting(boolean) skip existing} set, such a run can
+ * be resumed: destinations which can already be opened are not converted again.
  */
 public class Converter {
-    private static final String FACTORY_NAME = "FILE";
-    private static final String SUFFIX = ".jrb";
+    /**
+     * Default suffix appended to the source path to build the destination path.
+     */
+    public static final String SUFFIX = ".jrb";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String BAK_SUFFIX = ".bak";
     private static final DecimalFormat secondsFormatter = new DecimalFormat("##0.000");
-    private static final DecimalFormat countFormatter = new DecimalFormat("0000");
+    private static final DecimalFormat rateFormatter = new DecimalFormat("##0.0");
+
+    /**
+     * Conversion counters, updated as files are processed.
+     */
+    public static class Stats {
+        private final int fileCount;
+        private final AtomicInteger totalCount = new AtomicInteger();
+        private final AtomicInteger goodCount = new AtomicInteger();
+        private final AtomicInteger badCount = new AtomicInteger();
+        private final AtomicInteger skippedCount = new AtomicInteger();
+        private final long startTime = System.currentTimeMillis();
+        private volatile long endTime;
+
+        Stats(int fileCount) {
+            this.fileCount = fileCount;
+        }
+
+        /**
+         * @return number of files submitted for conversion
+         */
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        /**
+         * @return number of files processed so far, whatever the outcome
+         */
+        public int getTotalCount() {
+            return totalCount.get();
+        }
+
+        /**
+         * @return number of files successfully converted
+         */
+        public int getGoodCount() {
+            return goodCount.get();
+        }
+
+        /**
+         * @return number of files which could not be converted
+         */
+        public int getBadCount() {
+            return badCount.get();
+        }
 
-    private String[] files;
-    private int totalCount, badCount, goodCount;
+        /**
+         * @return number of files skipped because their destination already existed
+         */
+        public int getSkippedCount() {
+            return skippedCount.get();
+        }
+
+        /**
+         * @return elapsed time in milliseconds, up to now or to the end of the conversion
+         */
+        public long getElapsedTime() {
+            long end = endTime;
+            return (end != 0 ? end : System.currentTimeMillis()) - startTime;
+        }
+
+        /**
+         * @return number of files processed per second
+         */
+        public double getFilesPerSecond() {
+            long elapsed = getElapsedTime();
+            return elapsed > 0 ? getTotalCount() * 1000.0 / elapsed : 0;
+        }
+
+        /**
+         * @return a one line summary of the counters
+         */
+        public String toString() {
+            return getTotalCount() + "/" + fileCount + " processed, " + getGoodCount() + " OK, " +
+                    getBadCount() + " failed, " + getSkippedCount() + " skipped, " +
+                    rateFormatter.format(getFilesPerSecond()) + " files/sec";
+        }
+    }
 
-    private Converter(String[] files) {
+    private RrdBackendFactory factory = RrdBackendFactory.getFactory("FILE");
+    private String suffix = SUFFIX;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    private boolean skipExisting;
+    private int progressInterval = 1;
+    private PrintStream out;
+
+    /**
+     * Creates a converter writing to the FILE backend, using one thread per available
+     * processor and reporting nothing.
+     */
+    public Converter() {
+    }
+
+    /**
+     * Sets the backend factory used to create the converted RRDs.
+     *
+     * @param factory Backend factory
+     */
+    public void setFactory(RrdBackendFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return backend factory used to create the converted RRDs
+     */
+    public RrdBackendFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Sets the suffix appended to the canonical source path to build the destination path.
+     *
+     * @param suffix Destination suffix, {@value #SUFFIX} by default
+     */
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * @return suffix of the destination path
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Sets the number of files converted concurrently.
+     *
+     * @param threadCount Number of conversion threads, at least 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threadCount);
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @return number of files converted concurrently
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * If set, files whose destination already exists and can be opened are not converted again.
+     *
+     * @param skipExisting true to skip existing destinations
+     */
+    public void setSkipExisting(boolean skipExisting) {
+        this.skipExisting = skipExisting;
+    }
+
+    /**
+     * @return true if existing destinations are skipped
+     */
+    public boolean isSkipExisting() {
+        return skipExisting;
+    }
+
+    /**
+     * Sets the stream receiving progress messages. Failures are always reported, other files
+     * only every <code>progressInterval</code> processed files, together with the current throughput.
+     *
+     * @param out              Stream receiving progress messages, null to report nothing
+     * @param progressInterval Number of files between progress messages
+     */
+    public void setProgress(PrintStream out, int progressInterval) {
+        this.out = out;
+        this.progressInterval = Math.max(1, progressInterval);
+    }
+
+    /**
+     * Returns the path of the RRD created for a RRDTool file.
+     *
+     * @param path Path to the RRDTool file
+     * @return destination path
+     * @throws java.io.IOException Thrown if the canonical path cannot be resolved
+     */
+    public String getDestinationPath(String path) throws IOException {
+        return new File(path).getCanonicalPath() + suffix;
+    }
+
+    /**
+     * Converts the given RRDTool files and waits for the end of the conversion.
+     * A failing file does not stop the others, it is only counted as bad.
+     *
+     * @param files Paths to RRDTool files
+     * @return conversion counters
+     * @throws java.lang.InterruptedException if interrupted while waiting for the conversion
+     */
+    public Stats convertAll(String... files) throws InterruptedException {
+        final Stats stats = new Stats(files.length);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
         try {
-            RrdDb.setDefaultFactory(FACTORY_NAME);
+            for (final String file : files) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        process(file, stats);
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting
+            }
         }
-        catch (Exception e) {
-            e.printStackTrace();
-            System.exit(-1);
+        finally {
+            executor.shutdownNow();
+            stats.endTime = System.currentTimeMillis();
         }
-        this.files = files;
+        return stats;
     }
 
-    private void convertAll() {
-        Date t1 = new Date();
-        final String ruler = "=======================================================================";
-        println(ruler);
-        println("Converting RRDTool files to Rrd4j native format.");
-        println("Original RRDTool files will not be modified in any way");
-        println("RRD4J files created during the process will have a " + SUFFIX + " suffix");
-        println(ruler);
-        for (String file : files) {
-            convertFile(file);
+    /**
+     * Converts a single RRDTool file.
+     *
+     * @param path Path to the RRDTool file
+     * @return false if the file was skipped because its destination already existed
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public boolean convertFile(String path) throws IOException {
+        String sourcePath = new File(path).getCanonicalPath();
+        String destPath = sourcePath + suffix;
+        if (skipExisting && isValid(destPath)) {
+            return false;
         }
-        println(ruler);
-        println("Finished: " + totalCount + " total, " +
-                goodCount + " OK, " + badCount + " failed");
-        Date t2 = new Date();
-        double secs = (t2.getTime() - t1.getTime()) / 1000.0;
-        println("Conversion took " + secondsFormatter.format(secs) + " sec");
-        if (totalCount > 0) {
-            double avgSec = secs / totalCount;
-            println("Average per-file conversion time: " + secondsFormatter.format(avgSec) + " sec");
+        if (factory instanceof RrdFileBackendFactory) {
+            File dest = new File(destPath);
+            File tmp = new File(destPath + TMP_SUFFIX);
+            try {
+                new RrdDb(tmp.getPath(), RrdDb.PREFIX_RRDTool + sourcePath, factory).close();
+                replace(tmp, dest);
+            }
+            finally {
+                if (tmp.exists()) {
+                    tmp.delete();
+                }
+            }
+        }
+        else {
+            new RrdDb(destPath, RrdDb.PREFIX_RRDTool + sourcePath, factory).close();
+        }
+        return true;
+    }
+
+    // the previous destination is moved aside, and put back if the new one cannot take its place
+    private static void replace(File tmp, File dest) throws IOException {
+        File bak = new File(dest.getPath() + BAK_SUFFIX);
+        boolean moved = false;
+        if (dest.exists()) {
+            if (bak.exists() && !bak.delete()) {
+                throw new IOException("Could not delete " + bak);
+            }
+            if (!dest.renameTo(bak)) {
+                throw new IOException("Could not rename " + dest + " to " + bak);
+            }
+            moved = true;
+        }
+        if (!tmp.renameTo(dest)) {
+            if (moved && !bak.renameTo(dest)) {
+                throw new IOException("Could not rename " + tmp + " to " + dest + ", previous file left in " + bak);
+            }
+            throw new IOException("Could not rename " + tmp + " to " + dest);
+        }
+        if (moved) {
+            // a stale backup is harmless, the next conversion deletes it
+            bak.delete();
         }
     }
 
-    private void convertFile(String path) {
+    private boolean isValid(String destPath) {
+        try {
+            new RrdDb(destPath, true, factory).close();
+            return true;
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void process(String file, Stats stats) {
         long start = System.currentTimeMillis();
-        totalCount++;
+        String status;
+        boolean failed = false;
         try {
-            File rrdFile = new File(path);
-            print(countFormatter.format(totalCount) + "/" + countFormatter.format(files.length) +
-                    " " + rrdFile.getName() + " ");
-            String sourcePath = rrdFile.getCanonicalPath();
-            String destPath = sourcePath + SUFFIX;
-            RrdDb rrd = new RrdDb(destPath, RrdDb.PREFIX_RRDTool + sourcePath);
-            rrd.close();
-            goodCount++;
-            double seconds = (System.currentTimeMillis() - start) / 1000.0;
-            println("[OK, " + secondsFormatter.format(seconds) + " sec]");
+            if (convertFile(file)) {
+                stats.goodCount.incrementAndGet();
+                status = "OK, " + secondsFormatter.format((System.currentTimeMillis() - start) / 1000.0) + " sec";
+            }
+            else {
+                stats.skippedCount.incrementAndGet();
+                status = "skipped";
+            }
         }
         catch (Exception e) {
-            badCount++;
-            println("[" + e + "]");
+            stats.badCount.incrementAndGet();
+            status = e.toString();
+            failed = true;
+        }
+        int count = stats.totalCount.incrementAndGet();
+        PrintStream out = this.out;
+        if (out != null && (failed || count % progressInterval == 0 || count == stats.fileCount)) {
+            String msg = file + " [" + status + "]";
+            if (progressInterval > 1) {
+                msg += " " + stats;
+            }
+            out.println(msg);
         }
     }
 
@@ -78,30 +356,70 @@ public class Converter {
         System.out.println(msg);
     }
 
-    private static void print(String msg) {
-        System.out.print(msg);
-    }
-
     /**
      * <p>To convert RRD files created with RRDTool use the following syntax:</p>
      * <pre>
-     * java -cp rrd4j-{version} org.rrd4j.convertor.Convert [path to RRD file(s)]
+     * java -cp rrd4j-{version} org.rrd4j.converter.Converter [-t threads] [-s] [-p interval] [path to RRD file(s)]
      * </pre>
-     * <p>For example:</p>
+     * <p><code>-t</code> sets the number of conversion threads, <code>-s</code> skips files already
+     * converted by a previous run, and <code>-p</code> prints progress every given number of files
+     * instead of for each file. For example:</p>
      * <pre>
-     * java -cp rrd4j-{version} org.rrd4j.convertor.Convert rrdtool/files/*.rrd
+     * java -cp rrd4j-{version} org.rrd4j.converter.Converter -t 8 -s -p 1000 rrdtool/files/*.rrd
      * </pre>
      * <p>...and enjoy the show.</p>
      *
      * @param args an array of {@link java.lang.String} objects.
      */
     public static void main(String[] args) {
-        if (args.length == 0) {
-            println("Usage  : java -jar converter.jar <RRD file pattern> ...");
-            println("Example: java -jar converter.jar files/*.rrd");
+        Converter c = new Converter();
+        int progressInterval = 1;
+        List<String> files = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    c.setThreadCount(Integer.parseInt(args[++i]));
+                }
+                else if ("-p".equals(args[i]) && i + 1 < args.length) {
+                    progressInterval = Integer.parseInt(args[++i]);
+                }
+                else if ("-s".equals(args[i])) {
+                    c.setSkipExisting(true);
+                }
+                else {
+                    files.add(args[i]);
+                }
+            }
+        }
+        catch (IllegalArgumentException e) {
+            println(e.getMessage());
+            files.clear();
+        }
+        if (files.isEmpty()) {
+            println("Usage  : java -jar converter.jar [-t threads] [-s] [-p interval] <RRD file pattern> ...");
+            println("Example: java -jar converter.jar -t 8 -s files/*.rrd");
             System.exit(1);
         }
-        Converter c = new Converter(args);
-		c.convertAll();
-	}
+        c.setProgress(System.out, progressInterval);
+        final String ruler = "=======================================================================";
+        println(ruler);
+        println("Converting RRDTool files to Rrd4j native format.");
+        println("Original RRDTool files will not be modified in any way");
+        println("RRD4J files created during the process will have a " + c.getSuffix() + " suffix");
+        println(ruler);
+        try {
+            Stats stats = c.convertAll(files.toArray(new String[files.size()]));
+            println(ruler);
+            println("Finished: " + stats.getTotalCount() + " total, " + stats.getGoodCount() + " OK, " +
+                    stats.getBadCount() + " failed, " + stats.getSkippedCount() + " skipped");
+            double secs = stats.getElapsedTime() / 1000.0;
+            println("Conversion took " + secondsFormatter.format(secs) + " sec, " +
+                    rateFormatter.format(stats.getFilesPerSecond()) + " files/sec with " +
+                    c.getThreadCount() + " threads");
+        }
+        catch (InterruptedException e) {
+            println("Conversion interrupted");
+            System.exit(-1);
+        }
+    }
 }
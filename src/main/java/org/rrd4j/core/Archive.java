@@ -16,20 +16,41 @@ import java.io.IOException;
  * @author Sasa Markovic
  */
 public class Archive implements RrdUpdater {
+    // number of rows read at once when dumping to XML
+    static final int XML_CHUNK_ROWS = 1024;
+
     private final RrdDb parentDb;
+    private final RrdAllocator allocator;
 
     // definition
     protected final RrdString consolFun;
     protected final RrdDouble xff;
     protected final RrdInt steps;
     protected final RrdInt rows;
+    // decoded consolidation function, null until used
+    private ConsolFun consolFunValue;
+    // decoded xff, decoded again when changed through another RrdDb
+    private double xffValue;
 
     // state
     private final Robin[] robins;
     private final ArcState[] states;
 
     Archive(RrdDb parentDb, ArcDef arcDef) throws IOException {
+        this(parentDb, arcDef, null, 0, parentDb.getRrdAllocator());
+    }
+
+    // opens an existing archive, with definitions already known from the RRD layout: it is then
+    // found at its offset, otherwise it must be opened right after the previous one
+    Archive(RrdDb parentDb, RrdLayout layout, int arcIndex) throws IOException {
+        this(parentDb, null, layout, arcIndex,
+                layout != null ? new RrdAllocator(layout.arcOffsets[arcIndex]) : parentDb.getRrdAllocator());
+    }
+
+    private Archive(RrdDb parentDb, ArcDef arcDef, RrdLayout layout, int arcIndex, RrdAllocator allocator)
+            throws IOException {
         this.parentDb = parentDb;
+        this.allocator = allocator;
         consolFun = new RrdString(this, true);     // constant, may be cached
         xff = new RrdDouble(this);
         steps = new RrdInt(this, true);            // constant, may be cached
@@ -40,6 +61,17 @@ public class Archive implements RrdUpdater {
             xff.set(arcDef.getXff());
             steps.set(arcDef.getSteps());
             rows.set(arcDef.getRows());
+            xffValue = arcDef.getXff();
+        }
+        else if (layout != null) {
+            consolFun.preload(layout.consolFuns[arcIndex]);
+            xff.preload(layout.xffs[arcIndex]);
+            steps.preload(layout.steps[arcIndex]);
+            rows.preload(layout.rows[arcIndex]);
+            xffValue = layout.xffs[arcIndex];
+        }
+        else {
+            xffValue = xff.get();
         }
         int n = parentDb.getHeader().getDsCount();
         int numRows = rows.get();
@@ -75,10 +107,15 @@ public class Archive implements RrdUpdater {
             // restore state
             states[i].setAccumValue(reader.getStateAccumValue(arcIndex, i));
             states[i].setNanSteps(reader.getStateNanSteps(arcIndex, i));
-            // restore robins
-            double[] values = reader.getValues(arcIndex, i);
-            robins[i].update(values);
         }
+        // restore robins
+        reader.importValues(arcIndex, robins);
+    }
+
+    // reads the xff from the backend, not from the value cached by this object
+    void loadDefinition() throws IOException {
+        xff.invalidate();
+        xffValue = xff.get();
     }
 
     /**
@@ -94,7 +131,7 @@ public class Archive implements RrdUpdater {
 
     String dump() throws IOException {
         StringBuilder sb = new StringBuilder("== ARCHIVE ==\n");
-        sb.append("RRA:").append(consolFun.get()).append(":").append(xff.get()).append(":").append(steps.get()).append(":").append(rows.get()).append("\n");
+        sb.append("RRA:").append(consolFun.get()).append(":").append(getXff()).append(":").append(steps.get()).append(":").append(rows.get()).append("\n");
         sb.append("interval [").append(getStartTime()).append(", ").append(getEndTime()).append("]" + "\n");
         for (int i = 0; i < robins.length; i++) {
             sb.append(states[i].dump());
@@ -114,58 +151,64 @@ public class Archive implements RrdUpdater {
         long lastUpdateTime = parentDb.getHeader().getLastUpdateTime();
         long updateTime = Util.normalize(lastUpdateTime, step) + step;
         long arcStep = getArcStep();
-        // finish current step
-        while (numUpdates > 0) {
-            accumulate(state, value);
-            numUpdates--;
-            if (updateTime % arcStep == 0) {
-                finalizeStep(state, robin);
-                break;
-            } else {
-                updateTime += step;
-            }
+        // finish current step: updates up to the one ending on the archive step boundary
+        long offset = updateTime - Util.normalize(updateTime, arcStep);
+        long boundaryUpdates = offset == 0 ? 1 : (arcStep - offset) / step + 1;
+        long currentUpdates = Math.min(numUpdates, boundaryUpdates);
+        accumulate(state, value, currentUpdates);
+        numUpdates -= currentUpdates;
+        if (currentUpdates == boundaryUpdates) {
+            finalizeStep(state, robin);
         }
         // update robin in bulk
         int bulkUpdateCount = (int) Math.min(numUpdates / steps.get(), (long) rows.get());
         robin.bulkStore(value, bulkUpdateCount);
         // update remaining steps
-        long remainingUpdates = numUpdates % steps.get();
-        for (long i = 0; i < remainingUpdates; i++) {
-            accumulate(state, value);
-        }
+        accumulate(state, value, numUpdates % steps.get());
     }
 
-    private void accumulate(ArcState state, double value) throws IOException {
+    /**
+     * Accumulates the same value for several steps, reading and writing the state once.
+     */
+    private void accumulate(ArcState state, double value, long count) throws IOException {
+        if (count == 0) {
+            return;
+        }
         if (Double.isNaN(value)) {
-            state.setNanSteps(state.getNanSteps() + 1);
-        } else {
-            switch (ConsolFun.valueOf(consolFun.get())) {
-                case MIN:
-                    state.setAccumValue(Util.min(state.getAccumValue(), value));
-                    break;
-                case MAX:
-                    state.setAccumValue(Util.max(state.getAccumValue(), value));
-                    break;
-                case FIRST:
-                    if (Double.isNaN(state.getAccumValue())) {
-                        state.setAccumValue(value);
-                    }
-                    break;
-                case LAST:
-                    state.setAccumValue(value);
-                    break;
-                case AVERAGE:
-                case TOTAL:
-                    state.setAccumValue(Util.sum(state.getAccumValue(), value));
-                    break;
-            }
+            state.setNanSteps(state.getNanSteps() + count);
+            return;
         }
+        double accumValue = state.getAccumValue();
+        switch (getConsolFun()) {
+            case MIN:
+                accumValue = Util.min(accumValue, value);
+                break;
+            case MAX:
+                accumValue = Util.max(accumValue, value);
+                break;
+            case FIRST:
+                if (Double.isNaN(accumValue)) {
+                    accumValue = value;
+                }
+                break;
+            case LAST:
+                accumValue = value;
+                break;
+            case AVERAGE:
+            case TOTAL:
+                // added step by step, rounded as if each step was accumulated alone
+                for (long i = 0; i < count; i++) {
+                    accumValue = Util.sum(accumValue, value);
+                }
+                break;
+        }
+        state.setAccumValue(accumValue);
     }
 
     private void finalizeStep(ArcState state, Robin robin) throws IOException {
         // should store
         long arcSteps = steps.get();
-        double arcXff = xff.get();
+        double arcXff = xffValue;
         long nanSteps = state.getNanSteps();
         //double nanPct = (double) nanSteps / (double) arcSteps;
         double accumValue = state.getAccumValue();
@@ -188,7 +231,10 @@ public class Archive implements RrdUpdater {
      * @throws java.io.IOException Thrown in case of I/O error.
      */
     public ConsolFun getConsolFun() throws IOException {
-        return ConsolFun.valueOf(consolFun.get());
+        if (consolFunValue == null) {
+            consolFunValue = ConsolFun.valueOf(consolFun.get());
+        }
+        return consolFunValue;
     }
 
     /**
@@ -198,7 +244,8 @@ public class Archive implements RrdUpdater {
      * @throws java.io.IOException Thrown in case of I/O error.
      */
     public double getXff() throws IOException {
-        return xff.get();
+        parentDb.checkDefinitions();
+        return xffValue;
     }
 
     /**
@@ -325,7 +372,7 @@ public class Archive implements RrdUpdater {
         writer.writeComment(getArcStep() + " seconds");
         writer.writeTag("pdp_per_row", steps.get());
         writer.startTag("params");
-        writer.writeTag("xff", xff.get());
+        writer.writeTag("xff", getXff());
         writer.closeTag(); // params
         writer.startTag("cdp_prep");
         for (ArcState state : states) {
@@ -334,14 +381,26 @@ public class Archive implements RrdUpdater {
         writer.closeTag(); // cdp_prep
         writer.startTag("database");
         long startTime = getStartTime();
-        for (int i = 0; i < rows.get(); i++) {
-            long time = startTime + i * getArcStep();
-            writer.writeComment(Util.getDate(time) + " / " + time);
-            writer.startTag("row");
-            for (Robin robin : robins) {
-                writer.writeTag("v", robin.getValue(i));
+        long arcStep = getArcStep();
+        int rowCount = rows.get();
+        double[][] values = new double[robins.length][];
+        // values are read in bulk, a bounded number of rows at a time
+        for (int first = 0; first < rowCount; first += XML_CHUNK_ROWS) {
+            int count = Math.min(XML_CHUNK_ROWS, rowCount - first);
+            for (int j = 0; j < robins.length; j++) {
+                values[j] = robins[j].getValues(first, count);
+            }
+            for (int i = 0; i < count; i++) {
+                if (writer.isWriteComments()) {
+                    long time = startTime + (first + i) * arcStep;
+                    writer.writeComment(Util.getDate(time) + " / " + time);
+                }
+                writer.startTag("row");
+                for (double[] robinValues : values) {
+                    writer.writeTag("v", robinValues[i]);
+                }
+                writer.closeTag(); // row
             }
-            writer.closeTag(); // row
         }
         writer.closeTag(); // database
         writer.closeTag(); // rra
@@ -385,6 +444,8 @@ public class Archive implements RrdUpdater {
             throw new IllegalArgumentException("Invalid xff supplied (" + xff + "), must be >= 0 and < 1");
         }
         this.xff.set(xff);
+        xffValue = xff;
+        parentDb.definitionChanged();
     }
 
     /**
@@ -403,6 +464,6 @@ public class Archive implements RrdUpdater {
      * @return Allocator object
      */
     public RrdAllocator getRrdAllocator() {
-        return parentDb.getRrdAllocator();
+        return allocator;
     }
 }
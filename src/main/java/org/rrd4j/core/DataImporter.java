@@ -51,6 +51,13 @@ abstract class DataImporter {
 
     abstract double[] getValues(int arcIndex, int dsIndex) throws IOException;
 
+    // fills the robins of an archive, importers able to stream rows should override it
+    void importValues(int arcIndex, Robin[] robins) throws IOException {
+        for (int i = 0; i < robins.length; i++) {
+            robins[i].update(getValues(arcIndex, i));
+        }
+    }
+
     long getEstimatedSize() throws IOException {
         int dsCount = getDsCount();
         int arcCount = getArcCount();
@@ -24,6 +24,11 @@ public class Datasource implements RrdUpdater {
     private final RrdString dsName, dsType;
     private final RrdLong heartbeat;
     private final RrdDouble minValue, maxValue;
+    // decoded definition, decoded again when changed through another RrdDb
+    private String nameValue;
+    private DsType typeValue;
+    private long heartbeatValue;
+    private double minAllowed, maxAllowed;
 
     // state variables
     private RrdDouble lastValue;
@@ -51,6 +56,11 @@ public class Datasource implements RrdUpdater {
             accumValue.set(0.0);
             Header header = parentDb.getHeader();
             nanSeconds.set(header.getLastUpdateTime() % header.getStep());
+            nameValue = dsDef.getDsName();
+            typeValue = dsDef.getDsType();
+            heartbeatValue = dsDef.getHeartbeat();
+            minAllowed = dsDef.getMinValue();
+            maxAllowed = dsDef.getMaxValue();
         }
     }
 
@@ -64,13 +74,41 @@ public class Datasource implements RrdUpdater {
         lastValue.set(reader.getLastValue(dsIndex));
         accumValue.set(reader.getAccumValue(dsIndex));
         nanSeconds.set(reader.getNanSeconds(dsIndex));
+        loadDefinition();
+    }
+
+    void preload(RrdLayout layout, int dsIndex) {
+        dsName.preload(layout.dsNames[dsIndex]);
+        dsType.preload(layout.dsTypes[dsIndex]);
+        heartbeat.preload(layout.heartbeats[dsIndex]);
+        minValue.preload(layout.minValues[dsIndex]);
+        maxValue.preload(layout.maxValues[dsIndex]);
+        nameValue = layout.dsNames[dsIndex];
+        typeValue = DsType.valueOf(layout.dsTypes[dsIndex]);
+        heartbeatValue = layout.heartbeats[dsIndex];
+        minAllowed = layout.minValues[dsIndex];
+        maxAllowed = layout.maxValues[dsIndex];
+    }
+
+    // reads the definition from the backend, not from the values cached by this object
+    void loadDefinition() throws IOException {
+        dsName.invalidate();
+        dsType.invalidate();
+        heartbeat.invalidate();
+        minValue.invalidate();
+        maxValue.invalidate();
+        nameValue = dsName.get();
+        typeValue = DsType.valueOf(dsType.get());
+        heartbeatValue = heartbeat.get();
+        minAllowed = minValue.get();
+        maxAllowed = maxValue.get();
     }
 
     String dump() throws IOException {
         return "== DATASOURCE ==\n" +
-                "DS:" + dsName.get() + ":" + dsType.get() + ":" +
-                heartbeat.get() + ":" + minValue.get() + ":" +
-                maxValue.get() + "\nlastValue:" + lastValue.get() +
+                "DS:" + getName() + ":" + getType() + ":" +
+                getHeartbeat() + ":" + getMinValue() + ":" +
+                getMaxValue() + "\nlastValue:" + lastValue.get() +
                 " nanSeconds:" + nanSeconds.get() +
                 " accumValue:" + accumValue.get() + "\n";
     }
@@ -82,7 +120,8 @@ public class Datasource implements RrdUpdater {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public String getName() throws IOException {
-        return dsName.get();
+        parentDb.checkDefinitions();
+        return nameValue;
     }
 
     /**
@@ -92,7 +131,8 @@ public class Datasource implements RrdUpdater {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public DsType getType() throws IOException {
-        return DsType.valueOf(dsType.get());
+        parentDb.checkDefinitions();
+        return typeValue;
     }
 
     /**
@@ -102,7 +142,8 @@ public class Datasource implements RrdUpdater {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public long getHeartbeat() throws IOException {
-        return heartbeat.get();
+        parentDb.checkDefinitions();
+        return heartbeatValue;
     }
 
     /**
@@ -112,7 +153,8 @@ public class Datasource implements RrdUpdater {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public double getMinValue() throws IOException {
-        return minValue.get();
+        parentDb.checkDefinitions();
+        return minAllowed;
     }
 
     /**
@@ -122,7 +164,8 @@ public class Datasource implements RrdUpdater {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public double getMaxValue() throws IOException {
-        return maxValue.get();
+        parentDb.checkDefinitions();
+        return maxAllowed;
     }
 
     /**
@@ -189,8 +232,8 @@ public class Datasource implements RrdUpdater {
     private double calculateUpdateValue(long oldTime, double oldValue,
                                         long newTime, double newValue) throws IOException {
         double updateValue = Double.NaN;
-        if (newTime - oldTime <= heartbeat.get()) {
-            DsType type = DsType.valueOf(dsType.get());
+        if (newTime - oldTime <= heartbeatValue) {
+            DsType type = typeValue;
 
             if (type == DsType.GAUGE) {
                 updateValue = newValue;
@@ -221,12 +264,10 @@ public class Datasource implements RrdUpdater {
             }
 
             if (!Double.isNaN(updateValue)) {
-                double minVal = minValue.get();
-                double maxVal = maxValue.get();
-                if (!Double.isNaN(minVal) && updateValue < minVal) {
+                if (!Double.isNaN(minAllowed) && updateValue < minAllowed) {
                     updateValue = Double.NaN;
                 }
-                if (!Double.isNaN(maxVal) && updateValue > maxVal) {
+                if (!Double.isNaN(maxAllowed) && updateValue > maxAllowed) {
                     updateValue = Double.NaN;
                 }
             }
@@ -247,13 +288,13 @@ public class Datasource implements RrdUpdater {
     private double calculateTotal(long startTime, long boundaryTime) throws IOException {
         double totalValue = Double.NaN;
         long validSeconds = boundaryTime - startTime - nanSeconds.get();
-        if (nanSeconds.get() <= heartbeat.get() && validSeconds > 0) {
+        if (nanSeconds.get() <= heartbeatValue && validSeconds > 0) {
             totalValue = accumValue.get() / validSeconds;
         }
         // IMPORTANT:
         // if datasource name ends with "!", we'll send zeros instead of NaNs
         // this might be handy from time to time
-        if (Double.isNaN(totalValue) && dsName.get().endsWith(DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX)) {
+        if (Double.isNaN(totalValue) && nameValue.endsWith(DsDef.FORCE_ZEROS_FOR_NANS_SUFFIX)) {
             totalValue = 0D;
         }
         return totalValue;
@@ -261,11 +302,11 @@ public class Datasource implements RrdUpdater {
 
     void appendXml(XmlWriter writer) throws IOException {
         writer.startTag("ds");
-        writer.writeTag("name", dsName.get());
-        writer.writeTag("type", dsType.get());
-        writer.writeTag("minimal_heartbeat", heartbeat.get());
-        writer.writeTag("min", minValue.get());
-        writer.writeTag("max", maxValue.get());
+        writer.writeTag("name", getName());
+        writer.writeTag("type", getType().name());
+        writer.writeTag("minimal_heartbeat", getHeartbeat());
+        writer.writeTag("min", getMinValue());
+        writer.writeTag("max", getMaxValue());
         writer.writeComment("PDP Status");
         writer.writeTag("last_ds", lastValue.get(), "UNKN");
         writer.writeTag("value", accumValue.get());
@@ -284,10 +325,10 @@ public class Datasource implements RrdUpdater {
                     "Cannot copy Datasource object to " + other.getClass().getName());
         }
         Datasource datasource = (Datasource) other;
-        if (!datasource.dsName.get().equals(dsName.get())) {
+        if (!datasource.getName().equals(getName())) {
             throw new IllegalArgumentException("Incompatible datasource names");
         }
-        if (!datasource.dsType.get().equals(dsType.get())) {
+        if (datasource.getType() != getType()) {
             throw new IllegalArgumentException("Incompatible datasource types");
         }
         datasource.lastValue.set(lastValue.get());
@@ -303,7 +344,7 @@ public class Datasource implements RrdUpdater {
      */
     public int getDsIndex() throws IOException {
         try {
-            return parentDb.getDsIndex(dsName.get());
+            return parentDb.getDsIndex(getName());
         }
         catch (IllegalArgumentException e) {
             return -1;
@@ -322,6 +363,8 @@ public class Datasource implements RrdUpdater {
             throw new IllegalArgumentException("Invalid heartbeat specified: " + heartbeat);
         }
         this.heartbeat.set(heartbeat);
+        heartbeatValue = heartbeat;
+        parentDb.definitionChanged();
     }
 
     /**
@@ -339,6 +382,8 @@ public class Datasource implements RrdUpdater {
         }
 
         this.dsName.set(newDsName);
+        nameValue = newDsName;
+        parentDb.definitionChanged();
     }
 
     /**
@@ -350,11 +395,13 @@ public class Datasource implements RrdUpdater {
     public void setDsType(DsType newDsType) throws IOException {
         // set datasource type
         this.dsType.set(newDsType.name());
+        typeValue = newDsType;
+        parentDb.definitionChanged();
         // reset datasource status
         lastValue.set(Double.NaN);
         accumValue.set(0.0);
         // reset archive status
-        int dsIndex = parentDb.getDsIndex(dsName.get());
+        int dsIndex = parentDb.getDsIndex(nameValue);
         Archive[] archives = parentDb.getArchives();
         for (Archive archive : archives) {
             archive.getArcState(dsIndex).setAccumValue(Double.NaN);
@@ -374,12 +421,14 @@ public class Datasource implements RrdUpdater {
      * @throws java.lang.IllegalArgumentException Thrown if invalid minValue was supplied (not less then maxValue)
      */
     public void setMinValue(double minValue, boolean filterArchivedValues) throws IOException {
-        double maxValue = this.maxValue.get();
+        double maxValue = getMaxValue();
         if (!Double.isNaN(minValue) && !Double.isNaN(maxValue) && minValue >= maxValue) {
             throw new IllegalArgumentException("Invalid min/max values: " + minValue + "/" + maxValue);
         }
 
         this.minValue.set(minValue);
+        minAllowed = minValue;
+        parentDb.definitionChanged();
         if (!Double.isNaN(minValue) && filterArchivedValues) {
             int dsIndex = getDsIndex();
             Archive[] archives = parentDb.getArchives();
@@ -402,12 +451,14 @@ public class Datasource implements RrdUpdater {
      * @throws java.lang.IllegalArgumentException Thrown if invalid maxValue was supplied (not greater then minValue)
      */
     public void setMaxValue(double maxValue, boolean filterArchivedValues) throws IOException {
-        double minValue = this.minValue.get();
+        double minValue = getMinValue();
         if (!Double.isNaN(minValue) && !Double.isNaN(maxValue) && minValue >= maxValue) {
             throw new IllegalArgumentException("Invalid min/max values: " + minValue + "/" + maxValue);
         }
 
         this.maxValue.set(maxValue);
+        maxAllowed = maxValue;
+        parentDb.definitionChanged();
         if (!Double.isNaN(maxValue) && filterArchivedValues) {
             int dsIndex = getDsIndex();
             Archive[] archives = parentDb.getArchives();
@@ -437,6 +488,9 @@ public class Datasource implements RrdUpdater {
         }
         this.minValue.set(minValue);
         this.maxValue.set(maxValue);
+        minAllowed = minValue;
+        maxAllowed = maxValue;
+        parentDb.definitionChanged();
         if (!(Double.isNaN(minValue) && Double.isNaN(maxValue)) && filterArchivedValues) {
             int dsIndex = getDsIndex();
             Archive[] archives = parentDb.getArchives();
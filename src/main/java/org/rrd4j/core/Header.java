@@ -56,6 +56,13 @@ public class Header implements RrdUpdater {
         }
     }
 
+    void preload(RrdLayout layout) {
+        signature.preload(layout.signature);
+        step.preload(layout.step);
+        dsCount.preload(layout.dsCount);
+        arcCount.preload(layout.arcCount);
+    }
+
     Header(RrdDb parentDb, DataImporter reader) throws IOException {
         this(parentDb, (RrdDef) null);
         String version = reader.getVersion();
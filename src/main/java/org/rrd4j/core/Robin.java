@@ -60,6 +60,15 @@ public interface Robin extends RrdUpdater {
      */
     void setValue(int index, double value) throws IOException;
 
+    /**
+     * Sets consecutive values in the Robin archive, starting with the i-th value.
+     *
+     * @param index     index in the archive of the first value (the oldest value has zero index)
+     * @param newValues values to be stored
+     * @throws java.io.IOException Thrown in case of I/O specific error.
+     */
+    void setValues(int index, double[] newValues) throws IOException;
+
     /**
      * Returns the Archive object to which this Robin object belongs.
      *
@@ -144,6 +144,28 @@ class RobinArray implements Robin {
         values.set(arrayIndex, value);
     }
 
+    /** {@inheritDoc} */
+    public void setValues(int index, double[] newValues) throws IOException {
+        int count = newValues.length;
+        if (index < 0 || index + count > rows) {
+            throw new IllegalArgumentException("Invalid robin index/count supplied: " + index +
+                    "/" + count + " (rows=" + rows + ")");
+        }
+        int startIndex = (pointer.get() + index) % rows;
+        int tailUpdateCount = Math.min(rows - startIndex, count);
+        if (tailUpdateCount == count) {
+            values.writeDouble(startIndex, newValues);
+        }
+        else {
+            double[] tailValues = new double[tailUpdateCount];
+            double[] headValues = new double[count - tailUpdateCount];
+            System.arraycopy(newValues, 0, tailValues, 0, tailValues.length);
+            System.arraycopy(newValues, tailValues.length, headValues, 0, headValues.length);
+            values.writeDouble(startIndex, tailValues);
+            values.writeDouble(0, headValues);
+        }
+    }
+
     /** {@inheritDoc} */
     public double[] getValues(int index, int count) throws IOException {
         assert count <= rows: "Too many values requested: " + count + " rows=" + rows;
@@ -143,6 +143,32 @@ class RobinMatrix implements Robin {
         values.set(column, arrayIndex, value);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Sets consecutive values in the Robin archive, starting with the i-th value.
+     */
+    public void setValues(int index, double[] newValues) throws IOException {
+        int count = newValues.length;
+        if (index < 0 || index + count > rows) {
+            throw new IllegalArgumentException("Invalid robin index/count supplied: " + index +
+                    "/" + count + " (rows=" + rows + ")");
+        }
+        int startIndex = (pointer.get() + index) % rows;
+        int tailUpdateCount = Math.min(rows - startIndex, count);
+        if (tailUpdateCount == count) {
+            values.set(column, startIndex, newValues);
+        }
+        else {
+            double[] tailValues = new double[tailUpdateCount];
+            double[] headValues = new double[count - tailUpdateCount];
+            System.arraycopy(newValues, 0, tailValues, 0, tailValues.length);
+            System.arraycopy(newValues, tailValues.length, headValues, 0, headValues.length);
+            values.set(column, startIndex, tailValues);
+            values.set(column, 0, headValues);
+        }
+    }
+
     /** {@inheritDoc} */
     public double[] getValues(int index, int count) throws IOException {
         assert count <= rows: "Too many values requested: " + count + " rows=" + rows;
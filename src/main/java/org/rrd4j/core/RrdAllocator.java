@@ -14,6 +14,10 @@ public class RrdAllocator {
         super();
     }
 
+    RrdAllocator(long allocationPointer) {
+        this.allocationPointer = allocationPointer;
+    }
+
     long allocate(long byteCount) throws IOException {
         long pointer = allocationPointer;
         allocationPointer += byteCount;
@@ -115,6 +115,53 @@ public abstract class RrdBackend {
     public void close() throws IOException {
     }
 
+    /**
+     * Forces the bytes written so far to the underlying storage, so that they survive a crash
+     * of the host. By default, the method does nothing.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    protected void sync() throws IOException {
+    }
+
+    /**
+     * Called by {@link org.rrd4j.core.RrdDb} before the writes of a sample update. The writes
+     * between this call and the matching {@link #commitUpdate()} form a single update, which
+     * backends may store atomically. By default, the method does nothing.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    protected void beginUpdate() throws IOException {
+    }
+
+    /**
+     * Called by {@link org.rrd4j.core.RrdDb} after the writes of a successful sample update.
+     * By default, the method does nothing.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    protected void commitUpdate() throws IOException {
+    }
+
+    /**
+     * Called by {@link org.rrd4j.core.RrdDb} instead of {@link #commitUpdate()} when a sample
+     * update failed half way. Backends holding back the writes of the update should discard them.
+     * By default, the method does nothing.
+     */
+    protected void abortUpdate() {
+    }
+
+    /**
+     * Returns the canonical path of the file holding the RRD. Backends wrapping another one
+     * return the path of the wrapped backend.
+     *
+     * @return Canonical file path
+     * @throws java.io.IOException Thrown in case of I/O error or if the RRD is not stored in a file
+     */
+    String getCanonicalPath() throws IOException {
+        throw new IOException("The underlying backend has no canonical path");
+    }
+
     /**
      * This method suggests the caching policy to the Rrd4j frontend (high-level) classes. If <code>true</code>
      * is returned, frontend classes will cache frequently used parts of a RRD file in memory to improve
@@ -12,7 +12,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * Factory classes are used to create concrete {@link org.rrd4j.core.RrdBackend} implementations.
  * Each factory creates unlimited number of specific backend objects.
  *
- * Rrd4j supports four different backend types (backend factories) out of the box:<p>
+ * Rrd4j supports five different backend types (backend factories) out of the box:<p>
  * <ul>
  * <li>{@link org.rrd4j.core.RrdRandomAccessFileBackend}: objects of this class are created from the
  * {@link org.rrd4j.core.RrdRandomAccessFileBackendFactory} class. This was the default backend used in all
@@ -35,6 +35,11 @@ import java.util.concurrent.ConcurrentHashMap;
  * <li>{@link org.rrd4j.core.RrdMemoryBackend}: objects of this class are created from the
  * {@link org.rrd4j.core.RrdMemoryBackendFactory} class. This backend stores all data in memory. Once
  * JVM exits, all data gets lost. The backend is extremely fast and memory hungry.
+ *
+ * <li>{@link org.rrd4j.core.RrdOffHeapBackend}: objects of this class are created from the
+ * {@link org.rrd4j.core.RrdOffHeapBackendFactory} class. Like the memory backend, it stores all data
+ * in memory, but outside of the Java heap, in large direct buffers shared by many RRDs. The factory
+ * can save all RRDs to a single checkpoint file and restore them at startup.
  * </ul>
  *
  * Each backend factory is identified by its {@link #getName() name}. Constructors
@@ -53,6 +58,8 @@ public abstract class RrdBackendFactory {
         registerFactory(fileFactory);
         RrdMemoryBackendFactory memoryFactory = new RrdMemoryBackendFactory();
         registerFactory(memoryFactory);
+        RrdOffHeapBackendFactory offHeapFactory = new RrdOffHeapBackendFactory();
+        registerFactory(offHeapFactory);
         RrdNioBackendFactory nioFactory = new RrdNioBackendFactory();
         registerFactory(nioFactory);
         RrdSafeFileBackendFactory safeFactory = new RrdSafeFileBackendFactory();
@@ -79,6 +86,8 @@ public abstract class RrdBackendFactory {
      *             java.nio.* package. RRD data is stored in files on the disk
      *             <li><b>MEMORY</b>: Factory which creates memory-oriented backends.
      *             RRD data is stored in memory, it gets lost as soon as JVM exits.
+     *             <li><b>OFFHEAP</b>: Factory which creates memory-oriented backends.
+     *             RRD data is stored in direct buffers, outside of the Java heap.
      *             </ul>
      * @return Backend factory for the given factory name
      */
@@ -132,10 +141,10 @@ public abstract class RrdBackendFactory {
      * Replaces the default backend factory with a new one. This method must be called before
      * the first RRD gets created. <p>
      *
-     * @param factoryName Name of the default factory. Out of the box, Rrd4j supports four
+     * @param factoryName Name of the default factory. Out of the box, Rrd4j supports five
      *                    different RRD backends: "FILE" (java.io.* based), "SAFE" (java.io.* based - use this
      *                    backend if RRD files may be accessed from several JVMs at the same time),
-     *                    "NIO" (java.nio.* based) and "MEMORY" (byte[] based).
+     *                    "NIO" (java.nio.* based), "MEMORY" (byte[] based) and "OFFHEAP" (direct buffer based).
      */
     public static void setDefaultFactory(String factoryName) {
         // We will allow this only if no RRDs are created
@@ -177,6 +186,16 @@ public abstract class RrdBackendFactory {
      */
     protected abstract boolean shouldValidateHeader(String path) throws IOException;
 
+    /**
+     * Determines if the RRDs of this factory can be shared by the {@link org.rrd4j.core.RrdDbPool},
+     * which identifies them by their canonical path. By default, the factory can not be used by the pool.
+     *
+     * @return true if the factory can be the default one when the pool is used
+     */
+    protected boolean isPoolable() {
+        return false;
+    }
+
 	/**
 	 * Returns the name (primary ID) for the factory.
 	 *
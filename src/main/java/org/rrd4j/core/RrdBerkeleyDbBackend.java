@@ -1,21 +1,44 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Transaction;
 
 /**
  * Backend which is used to store RRD data to ordinary disk files
- * using <a href="http://www.oracle.com/technology/products/berkeley-db/je/index.html">Oracle Berkeley DB Java Edition</a>.
+ * using <a href="http://www.oracle.com/technology/products/berkeley-db/je/index.html">Oracle Berkeley DB Java Edition</a>.<p>
+ *
+ * An RRD is either stored as a single record, rewritten as a whole when anything changed, or,
+ * when the factory has a {@link org.rrd4j.core.RrdBerkeleyDbBackendFactory#setPageSize(int) page size},
+ * as a small header record followed by fixed-size page records. Only the pages modified since the
+ * last flush are written back, so a single update of a large RRD writes a few pages instead of
+ * the whole RRD. A RRD in the middle of a sample update is not flushed, so a half-written sample is
+ * never stored.
  *
  * @author <a href="mailto:m.bogaert@memenco.com">Mathias Bogaert</a>
  */
 public class RrdBerkeleyDbBackend extends RrdByteArrayBackend {
+    // first bytes of a paged header record, never found at the start of a RRD (signature chars)
+    static final int PAGED_MAGIC = 0xFF504731;
+    static final int PAGED_HEADER_SIZE = 16;
+
     private final Database rrdDatabase;
+    private final RrdBerkeleyDbBackendFactory factory;
     private volatile boolean dirty = false;
 
+    // paged storage, pageSize is 0 for single record storage
+    private final int pageSize;
+    private final BitSet dirtyPages = new BitSet();
+    // length of the paged RRD in the database, -1 if not stored as pages
+    private long storedLength;
+    // sample updates in progress, guarded by the backend
+    private int updates;
+
     /**
      * <p>Constructor for RrdBerkeleyDbBackend.</p>
      *
@@ -23,8 +46,7 @@ public class RrdBerkeleyDbBackend extends RrdByteArrayBackend {
      * @param rrdDatabase a {@link com.sleepycat.je.Database} object.
      */
     protected RrdBerkeleyDbBackend(String path, Database rrdDatabase) {
-        super(path);
-        this.rrdDatabase = rrdDatabase;
+        this(null, path, rrdDatabase);
     }
 
     /**
@@ -35,9 +57,17 @@ public class RrdBerkeleyDbBackend extends RrdByteArrayBackend {
      * @param rrdDatabase a {@link com.sleepycat.je.Database} object.
      */
     protected RrdBerkeleyDbBackend(byte[] buffer, String path, Database rrdDatabase) {
+        this(buffer, path, rrdDatabase, null, 0, -1);
+    }
+
+    RrdBerkeleyDbBackend(byte[] buffer, String path, Database rrdDatabase,
+                         RrdBerkeleyDbBackendFactory factory, int pageSize, long storedLength) {
         super(path);
         this.buffer = buffer;
         this.rrdDatabase = rrdDatabase;
+        this.factory = factory;
+        this.pageSize = pageSize;
+        this.storedLength = storedLength;
     }
 
     /**
@@ -49,25 +79,136 @@ public class RrdBerkeleyDbBackend extends RrdByteArrayBackend {
      */
     protected synchronized void write(long offset, byte[] bytes) throws IOException {
         super.write(offset, bytes);
+        if (pageSize > 0 && bytes.length > 0) {
+            dirtyPages.set((int) (offset / pageSize), (int) ((offset + bytes.length - 1) / pageSize) + 1);
+        }
+        dirty = true;
+    }
+
+    /** {@inheritDoc} */
+    protected synchronized void setLength(long length) throws IOException {
+        super.setLength(length);
+        if (pageSize > 0) {
+            dirtyPages.set(0, getPageCount(length));
+        }
         dirty = true;
     }
 
+    /** {@inheritDoc} */
+    protected synchronized void beginUpdate() {
+        updates++;
+    }
+
+    /** {@inheritDoc} */
+    protected synchronized void commitUpdate() {
+        endUpdate();
+    }
+
+    /** {@inheritDoc} */
+    protected synchronized void abortUpdate() {
+        endUpdate();
+    }
+
+    private void endUpdate() {
+        if (updates > 0) {
+            updates--;
+        }
+    }
+
+    private int getPageCount(long length) {
+        return (int) ((length + pageSize - 1) / pageSize);
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Writes the modified pages, or the whole RRD for single record storage, within the given
+     * transaction. If the transaction is not committed, {@link #failed(BitSet)} must be called
+     * so that the written pages are written again by the next flush. Nothing is written during
+     * a sample update, the RRD stays dirty.
+     *
+     * @param txn transaction, null to use auto commit
+     * @return pages written, null if a sample update is in progress
+     * @throws DatabaseException if any.
+     * @throws IOException if any.
+     */
+    synchronized BitSet flush(Transaction txn) throws DatabaseException, IOException {
+        if (updates > 0) {
+            return null;
+        }
+        BitSet written = new BitSet();
+        if (!dirty || buffer == null) {
+            return written;
+        }
+        dirty = false;
+        byte[] key = getPath().getBytes("UTF-8");
+        if (pageSize == 0) {
+            rrdDatabase.put(txn, new DatabaseEntry(key), new DatabaseEntry(buffer));
+            return written;
+        }
+        int pageCount = getPageCount(buffer.length);
+        if (storedLength != buffer.length) {
+            // new, resized or single record RRD: every page must be written with a new header
+            dirtyPages.set(0, pageCount);
+            ByteBuffer header = ByteBuffer.allocate(PAGED_HEADER_SIZE);
+            header.putInt(PAGED_MAGIC);
+            header.putInt(pageSize);
+            header.putLong(buffer.length);
+            rrdDatabase.put(txn, new DatabaseEntry(key), new DatabaseEntry(header.array()));
+            for (int page = pageCount; page < getPageCount(storedLength); page++) {
+                rrdDatabase.delete(txn, new DatabaseEntry(getPageKey(key, page)));
+            }
+            storedLength = buffer.length;
+        }
+        DatabaseEntry data = new DatabaseEntry();
+        for (int page = dirtyPages.nextSetBit(0); page >= 0 && page < pageCount; page = dirtyPages.nextSetBit(page + 1)) {
+            int offset = page * pageSize;
+            data.setData(buffer, offset, Math.min(pageSize, buffer.length - offset));
+            rrdDatabase.put(txn, new DatabaseEntry(getPageKey(key, page)), data);
+            written.set(page);
+        }
+        dirtyPages.clear();
+        return written;
+    }
+
+    /**
+     * Marks the pages written by an aborted {@link #flush(Transaction)} as dirty again.
+     *
+     * @param written pages written
+     */
+    synchronized void failed(BitSet written) {
+        if (pageSize > 0) {
+            // the header may not have been stored either
+            storedLength = -1;
+            dirtyPages.or(written);
+        }
+        dirty = true;
+    }
+
+    static byte[] getPageKey(byte[] key, int page) {
+        // path bytes never contain a 0 byte
+        return ByteBuffer.allocate(key.length + 5).put(key).put((byte) 0).putInt(page).array();
+    }
+
     /**
      * <p>close.</p>
      *
      * @throws java.io.IOException if any.
      */
     public void close() throws IOException {
-        if (dirty) {
-            DatabaseEntry theKey = new DatabaseEntry(getPath().getBytes("UTF-8"));
-            DatabaseEntry theData = new DatabaseEntry(buffer);
-
+        if (factory != null) {
+            factory.close(this);
+        }
+        else if (dirty) {
             try {
                 // because the database was opened to support transactions, this write is performed
                 // using auto commit
-                rrdDatabase.put(null, theKey, theData);
+                flush(null);
             }
             catch (DatabaseException de) {
+                dirty = true;
                 throw new IOException(de.getMessage());
             }
         }
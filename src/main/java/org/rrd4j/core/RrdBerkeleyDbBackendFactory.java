@@ -3,13 +3,30 @@ package org.rrd4j.core;
 import com.sleepycat.je.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@link org.rrd4j.core.RrdBackendFactory} that uses
  * <a href="http://www.oracle.com/technetwork/database/berkeleydb/overview/index.html">Oracle Berkeley DB Java Edition</a>
- * to read data. Construct a BerkeleyDB {@link com.sleepycat.je.Database} object and pass it via the constructor.
+ * to read data. Construct a BerkeleyDB {@link com.sleepycat.je.Database} object and pass it via the constructor.<p>
+ *
+ * By default each RRD is stored as a single record, rewritten as a whole when the RRD is closed
+ * after a change. With a {@link #setPageSize(int) page size}, RRDs are stored as fixed-size pages and
+ * only the modified pages are written. Existing single record RRDs are converted the next time
+ * they are modified. Modified RRDs still open can be flushed together, in a single transaction
+ * when the database is transactional, by {@link #sync()}, or periodically with
+ * {@link #startSync(RrdSyncThreadPool, int)}. RRDs in the middle of a sample update are left
+ * for the next synchronization.
  *
  * @author <a href="mailto:m.bogaert@memenco.com">Mathias Bogaert</a>
  */
@@ -18,14 +35,45 @@ public class RrdBerkeleyDbBackendFactory extends RrdBackendFactory {
 
     private final Set<String> pathCache = new CopyOnWriteArraySet<String>();
 
+    private final Set<RrdBerkeleyDbBackend> openBackends =
+            Collections.newSetFromMap(new ConcurrentHashMap<RrdBerkeleyDbBackend, Boolean>());
+    private volatile int pageSize;
+    private ScheduledFuture<?> syncHandle;
+
     /**
      * <p>Constructor for RrdBerkeleyDbBackendFactory.</p>
      *
      * @param rrdDatabase a {@link com.sleepycat.je.Database} object.
      */
     public RrdBerkeleyDbBackendFactory(Database rrdDatabase) {
+        this(rrdDatabase, true);
+    }
+
+    RrdBerkeleyDbBackendFactory(Database rrdDatabase, boolean register) {
         this.rrdDatabase = rrdDatabase;
-        RrdBackendFactory.registerAndSetAsDefaultFactory(this);
+        if (register) {
+            RrdBackendFactory.registerAndSetAsDefaultFactory(this);
+        }
+    }
+
+    /**
+     * Sets the size of the pages used to store RRDs created or modified from now on. RRDs already
+     * stored as pages keep their page size.
+     *
+     * @param pageSize Page size in bytes, 0 to store each RRD as a single record
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 0) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return page size in bytes, 0 if RRDs are stored as single records
+     */
+    public int getPageSize() {
+        return pageSize;
     }
 
     /**
@@ -38,17 +86,162 @@ public class RrdBerkeleyDbBackendFactory extends RrdBackendFactory {
             DatabaseEntry theKey = new DatabaseEntry(path.getBytes("UTF-8"));
             DatabaseEntry theData = new DatabaseEntry();
 
+            RrdBerkeleyDbBackend backend;
             try {
                 rrdDatabase.get(null, theKey, theData, LockMode.DEFAULT);
+                byte[] data = theData.getData();
+                if (isPagedHeader(data)) {
+                    ByteBuffer header = ByteBuffer.wrap(data);
+                    int storedPageSize = header.getInt(4);
+                    long length = header.getLong(8);
+                    backend = new RrdBerkeleyDbBackend(readPages(theKey.getData(), storedPageSize, length),
+                            path, rrdDatabase, this, storedPageSize, length);
+                }
+                else {
+                    backend = new RrdBerkeleyDbBackend(data, path, rrdDatabase, this, pageSize, -1);
+                }
             }
             catch (DatabaseException de) {
                 throw new IOException("BerkeleyDB DatabaseException on " + path + "; " + de.getMessage());
             }
-
-            return new RrdBerkeleyDbBackend(theData.getData(), path, rrdDatabase);
+            openBackends.add(backend);
+            return backend;
         }
         else {
-            return new RrdBerkeleyDbBackend(path, rrdDatabase);
+            RrdBerkeleyDbBackend backend = new RrdBerkeleyDbBackend(null, path, rrdDatabase, this, pageSize, -1);
+            openBackends.add(backend);
+            return backend;
+        }
+    }
+
+    private static boolean isPagedHeader(byte[] data) {
+        return data != null && data.length == RrdBerkeleyDbBackend.PAGED_HEADER_SIZE &&
+                ByteBuffer.wrap(data).getInt(0) == RrdBerkeleyDbBackend.PAGED_MAGIC;
+    }
+
+    private byte[] readPages(byte[] key, int pageSize, long length) throws DatabaseException, IOException {
+        if (length > Integer.MAX_VALUE || pageSize <= 0) {
+            throw new IOException("Invalid paged RRD " + new String(key, "UTF-8"));
+        }
+        byte[] buffer = new byte[(int) length];
+        DatabaseEntry theData = new DatabaseEntry();
+        for (int offset = 0, page = 0; offset < buffer.length; offset += pageSize, page++) {
+            DatabaseEntry pageKey = new DatabaseEntry(RrdBerkeleyDbBackend.getPageKey(key, page));
+            if (rrdDatabase.get(null, pageKey, theData, LockMode.DEFAULT) != OperationStatus.SUCCESS ||
+                    theData.getSize() != Math.min(pageSize, buffer.length - offset)) {
+                throw new IOException("Missing page " + page + " of RRD " + new String(key, "UTF-8"));
+            }
+            System.arraycopy(theData.getData(), theData.getOffset(), buffer, offset, theData.getSize());
+        }
+        return buffer;
+    }
+
+    void close(RrdBerkeleyDbBackend backend) throws IOException {
+        try {
+            if (backend.isDirty()) {
+                flush(Collections.singletonList(backend));
+            }
+        }
+        finally {
+            openBackends.remove(backend);
+        }
+    }
+
+    /**
+     * Writes the modifications of all RRDs currently open. When the database is transactional,
+     * they are written in a single transaction, so either all or none of them are stored. RRDs
+     * in the middle of a sample update are skipped, they are written by the next call.
+     *
+     * @return number of RRDs written
+     * @throws java.io.IOException Thrown in case of database error
+     */
+    public int sync() throws IOException {
+        List<RrdBerkeleyDbBackend> dirty = new ArrayList<RrdBerkeleyDbBackend>();
+        for (RrdBerkeleyDbBackend backend : openBackends) {
+            if (backend.isDirty()) {
+                dirty.add(backend);
+            }
+        }
+        return dirty.isEmpty() ? 0 : flush(dirty);
+    }
+
+    private int flush(Collection<RrdBerkeleyDbBackend> backends) throws IOException {
+        List<RrdBerkeleyDbBackend> flushed = new ArrayList<RrdBerkeleyDbBackend>(backends.size());
+        List<BitSet> written = new ArrayList<BitSet>(backends.size());
+        Transaction txn = null;
+        boolean committed = false;
+        try {
+            if (rrdDatabase.getConfig().getTransactional()) {
+                txn = rrdDatabase.getEnvironment().beginTransaction(null, null);
+            }
+            for (RrdBerkeleyDbBackend backend : backends) {
+                flushed.add(backend);
+                BitSet pages = backend.flush(txn);
+                if (pages != null) {
+                    written.add(pages);
+                }
+                else {
+                    // in the middle of an update, still dirty
+                    flushed.remove(flushed.size() - 1);
+                }
+            }
+            if (txn != null) {
+                txn.commit();
+            }
+            committed = true;
+            return flushed.size();
+        }
+        catch (DatabaseException de) {
+            throw new IOException("BerkeleyDB DatabaseException on sync; " + de.getMessage());
+        }
+        finally {
+            if (!committed) {
+                for (int i = 0; i < flushed.size(); i++) {
+                    flushed.get(i).failed(i < written.size() ? written.get(i) : new BitSet());
+                }
+                abort(txn);
+            }
+        }
+    }
+
+    private static void abort(Transaction txn) {
+        if (txn != null) {
+            try {
+                txn.abort();
+            }
+            catch (DatabaseException de) {
+                // the original error is reported
+            }
+        }
+    }
+
+    /**
+     * Starts flushing all open RRDs periodically with {@link #sync()}.
+     *
+     * @param threadPool Pool running the synchronizations
+     * @param syncPeriod Time in seconds between consecutive synchronizations
+     */
+    public synchronized void startSync(RrdSyncThreadPool threadPool, int syncPeriod) {
+        stopSync();
+        syncHandle = threadPool.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sync();
+                }
+                catch (IOException e) {
+                    // modified pages are kept and written by the next sync
+                }
+            }
+        }, syncPeriod, syncPeriod, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic synchronization started by {@link #startSync(RrdSyncThreadPool, int)}.
+     */
+    public synchronized void stopSync() {
+        if (syncHandle != null) {
+            syncHandle.cancel(false);
+            syncHandle = null;
         }
     }
 
@@ -58,8 +251,29 @@ public class RrdBerkeleyDbBackendFactory extends RrdBackendFactory {
      * @param path a {@link java.lang.String} object.
      */
     public void delete(String path) {
+        Transaction txn = null;
+        boolean committed = false;
         try {
-            rrdDatabase.delete(null, new DatabaseEntry(path.getBytes("UTF-8")));
+            if (rrdDatabase.getConfig().getTransactional()) {
+                txn = rrdDatabase.getEnvironment().beginTransaction(null, null);
+            }
+            byte[] key = path.getBytes("UTF-8");
+            DatabaseEntry theKey = new DatabaseEntry(key);
+            DatabaseEntry theData = new DatabaseEntry();
+            if (rrdDatabase.get(txn, theKey, theData, LockMode.RMW) == OperationStatus.SUCCESS &&
+                    isPagedHeader(theData.getData())) {
+                ByteBuffer header = ByteBuffer.wrap(theData.getData());
+                int storedPageSize = header.getInt(4);
+                long pageCount = (header.getLong(8) + storedPageSize - 1) / storedPageSize;
+                for (int page = 0; page < pageCount; page++) {
+                    rrdDatabase.delete(txn, new DatabaseEntry(RrdBerkeleyDbBackend.getPageKey(key, page)));
+                }
+            }
+            rrdDatabase.delete(txn, theKey);
+            if (txn != null) {
+                txn.commit();
+            }
+            committed = true;
         }
         catch (DatabaseException de) {
             throw new RuntimeException(de.getMessage(), de);
@@ -67,6 +281,11 @@ public class RrdBerkeleyDbBackendFactory extends RrdBackendFactory {
         catch (IOException ie) {
             throw new IllegalArgumentException(path + ": " + ie.getMessage(), ie);
         }
+        finally {
+            if (!committed) {
+                abort(txn);
+            }
+        }
 
         pathCache.remove(path);
     }
@@ -0,0 +1,365 @@
+package org.rrd4j.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies an update log to many RRDs at once, for instance updates captured while the RRDs were
+ * not available.<p>
+ *
+ * Each line of the log holds a RRD path followed by a sample, in any format accepted by
+ * {@link org.rrd4j.core.SampleParser}. Lines written by {@link org.rrd4j.core.Sample#dump()} are
+ * accepted too:
+ * <pre>
+ * /var/rrd/router1.rrd 1005234132:12.2:35.6:U:24.5
+ * "/var/rrd/router 2.rrd" 1005234132 in=12.2 out=35.6
+ * update "/var/rrd/router3.rrd" 1005234132:12.2:35.6:U:24.5
+ * </pre>
+ * The whole log is read first and the updates are grouped by RRD and sorted by time. Each RRD is
+ * then requested once from the {@link org.rrd4j.core.RrdDbPool} and updated by one of several
+ * threads. Samples not more recent than the last update of their RRD are rejected, as are lines
+ * which can not be parsed and the updates of RRDs which can not be opened.
+ * <pre>
+ * RrdBulkUpdater.Result result = new RrdBulkUpdater(RrdDbPool.getInstance()).update(new File("updates.log"));
+ * System.out.println(result);
+ * </pre>
+ */
+public class RrdBulkUpdater {
+    /**
+     * Default number of threads updating RRDs.
+     */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // number of error messages kept in the result
+    private static final int MAX_ERRORS = 100;
+
+    private final RrdDbPool pool;
+    private int threads = DEFAULT_THREADS;
+
+    /**
+     * Outcome of a bulk update.
+     */
+    public static class Result {
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong updates = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong rrds = new AtomicLong();
+        private final AtomicLong failedRrds = new AtomicLong();
+        private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        private long elapsedTime;
+
+        private void reject(String error) {
+            rejected.incrementAndGet();
+            if (errors.size() < MAX_ERRORS) {
+                errors.add(error);
+            }
+        }
+
+        /**
+         * @return number of samples read from the log
+         */
+        public long getRowCount() {
+            return rows.get();
+        }
+
+        /**
+         * @return number of samples stored
+         */
+        public long getUpdateCount() {
+            return updates.get();
+        }
+
+        /**
+         * @return number of samples rejected: invalid lines, samples older than the last update of
+         * their RRD, samples of RRDs which could not be opened
+         */
+        public long getRejectedCount() {
+            return rejected.get();
+        }
+
+        /**
+         * @return number of RRDs found in the log
+         */
+        public long getRrdCount() {
+            return rrds.get();
+        }
+
+        /**
+         * @return number of RRDs which could not be opened or updated
+         */
+        public long getFailedRrdCount() {
+            return failedRrds.get();
+        }
+
+        /**
+         * @return the first errors met
+         */
+        public List<String> getErrors() {
+            synchronized (errors) {
+                return new ArrayList<String>(errors);
+            }
+        }
+
+        /**
+         * @return duration of the bulk update, in milliseconds
+         */
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        /**
+         * @return samples read per second
+         */
+        public double getRowsPerSecond() {
+            return elapsedTime > 0 ? rows.get() * 1000.0 / elapsedTime : 0;
+        }
+
+        public String toString() {
+            return String.format(Locale.US, "%d rows in %d ms (%.0f rows/s), %d updates, %d rejected, %d RRDs, %d failed",
+                    rows.get(), elapsedTime, getRowsPerSecond(), updates.get(), rejected.get(), rrds.get(), failedRrds.get());
+        }
+    }
+
+    private static class Update {
+        final long time;
+        final String sample;
+        final int line;
+
+        Update(long time, String sample, int line) {
+            this.time = time;
+            this.sample = sample;
+            this.line = line;
+        }
+    }
+
+    private static final Comparator<Update> BY_TIME = new Comparator<Update>() {
+        public int compare(Update u1, Update u2) {
+            return u1.time < u2.time ? -1 : (u1.time == u2.time ? 0 : 1);
+        }
+    };
+
+    /**
+     * Creates a bulk updater requesting RRDs from a pool.
+     *
+     * @param pool Pool opening the RRDs
+     */
+    public RrdBulkUpdater(RrdDbPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the number of threads updating RRDs.
+     *
+     * @param threads Number of threads, one RRD being updated by a single thread
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return number of threads updating RRDs
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Applies an update log file, read as UTF-8.
+     *
+     * @param log Update log
+     * @return counts of the samples stored and rejected
+     * @throws java.io.IOException Thrown if the log can not be read
+     */
+    public Result update(File log) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(log), "UTF-8");
+        try {
+            return update(reader);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Applies an update log.
+     *
+     * @param log Update log, not closed
+     * @return counts of the samples stored and rejected
+     * @throws java.io.IOException Thrown if the log can not be read
+     */
+    public Result update(Reader log) throws IOException {
+        long start = System.currentTimeMillis();
+        final Result result = new Result();
+        Map<String, List<Update>> updates = read(log, result);
+        result.rrds.set(updates.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new RrdSyncThreadPool.DaemonThreadFactory("RRD4J bulk updater"));
+        try {
+            List<Future<?>> tasks = new ArrayList<Future<?>>(updates.size());
+            for (final Map.Entry<String, List<Update>> entry : updates.entrySet()) {
+                tasks.add(executor.submit(new Runnable() {
+                    public void run() {
+                        update(entry.getKey(), entry.getValue(), result);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Bulk update interrupted");
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Bulk update failed: " + e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        result.elapsedTime = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    private Map<String, List<Update>> read(Reader log, Result result) throws IOException {
+        Map<String, List<Update>> updates = new LinkedHashMap<String, List<Update>>();
+        BufferedReader reader = new BufferedReader(log, 65536);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            result.rows.incrementAndGet();
+            int start = 0;
+            if (line.startsWith("update ") || line.startsWith("update\t")) {
+                start = skipSpaces(line, 6);
+            }
+            int pathEnd;
+            String path;
+            if (start < line.length() && line.charAt(start) == '"') {
+                pathEnd = line.indexOf('"', start + 1);
+                if (pathEnd < 0) {
+                    result.reject("Line " + lineNumber + ": unterminated path");
+                    continue;
+                }
+                path = line.substring(start + 1, pathEnd);
+                pathEnd++;
+            }
+            else {
+                pathEnd = start;
+                while (pathEnd < line.length() && !Character.isWhitespace(line.charAt(pathEnd))) {
+                    pathEnd++;
+                }
+                path = line.substring(start, pathEnd);
+            }
+            int sampleStart = skipSpaces(line, pathEnd);
+            int timeEnd = sampleStart;
+            while (timeEnd < line.length() && line.charAt(timeEnd) != ':' && !Character.isWhitespace(line.charAt(timeEnd))) {
+                timeEnd++;
+            }
+            if (path.length() == 0 || timeEnd == sampleStart) {
+                result.reject("Line " + lineNumber + ": missing path or sample");
+                continue;
+            }
+            long time;
+            try {
+                time = SampleParser.parseTime(line, sampleStart, timeEnd);
+            }
+            catch (IllegalArgumentException e) {
+                result.reject("Line " + lineNumber + ": " + e.getMessage());
+                continue;
+            }
+            List<Update> rrdUpdates = updates.get(path);
+            if (rrdUpdates == null) {
+                rrdUpdates = new ArrayList<Update>();
+                updates.put(path, rrdUpdates);
+            }
+            rrdUpdates.add(new Update(time, line.substring(sampleStart), lineNumber));
+        }
+        return updates;
+    }
+
+    private static int skipSpaces(String line, int index) {
+        while (index < line.length() && Character.isWhitespace(line.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private void update(String path, List<Update> updates, Result result) {
+        // stable: samples with the same time keep the log order, all but the first are rejected
+        Collections.sort(updates, BY_TIME);
+        RrdDb rrd;
+        try {
+            rrd = pool.requestRrdDb(path);
+        }
+        catch (Exception e) {
+            result.failedRrds.incrementAndGet();
+            result.rejected.addAndGet(updates.size() - 1);
+            result.reject(path + ": " + e);
+            return;
+        }
+        // updates stored or rejected so far
+        int done = 0;
+        try {
+            SampleParser parser = new SampleParser();
+            Sample sample = rrd.createSample();
+            long lastTime = rrd.getLastUpdateTime();
+            for (; done < updates.size(); done++) {
+                Update update = updates.get(done);
+                if (update.time <= lastTime) {
+                    result.reject(path + ", line " + update.line + ": bad sample time " + update.time +
+                            ", last update time was " + lastTime);
+                    continue;
+                }
+                try {
+                    sample.reset(update.time);
+                    parser.parse(update.sample, sample);
+                    sample.update();
+                    lastTime = update.time;
+                    result.updates.incrementAndGet();
+                }
+                catch (IllegalArgumentException e) {
+                    result.reject(path + ", line " + update.line + ": " + e.getMessage());
+                }
+            }
+        }
+        catch (IOException e) {
+            result.failedRrds.incrementAndGet();
+            result.rejected.addAndGet(updates.size() - done - 1);
+            result.reject(path + ": " + e);
+        }
+        finally {
+            try {
+                pool.release(rrd);
+            }
+            catch (IOException e) {
+                result.failedRrds.incrementAndGet();
+                result.reject(path + ": " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded cache of the canonical paths resolved by the {@link org.rrd4j.core.RrdDbPool}, so that
+ * requesting and releasing a RRD already seen does not hit the file system. When full, about a
+ * quarter of the paths are dropped.<p>
+ *
+ * A canonical path only changes when a directory or a symbolic link along the path is replaced.
+ * {@link org.rrd4j.core.RrdToolkit} invalidates the paths of the files it deletes or renames,
+ * other changes need {@link org.rrd4j.core.RrdDbPool#invalidateCanonicalPath(String)}.
+ */
+class RrdCanonicalPathCache {
+    static final int DEFAULT_MAX_SIZE = 100000;
+
+    static final RrdCanonicalPathCache INSTANCE = new RrdCanonicalPathCache(DEFAULT_MAX_SIZE);
+
+    private final ConcurrentMap<String, String> paths = new ConcurrentHashMap<String, String>();
+    private volatile int maxSize;
+
+    RrdCanonicalPathCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    String getCanonicalPath(String path) throws IOException {
+        String canonicalPath = paths.get(path);
+        if (canonicalPath == null) {
+            canonicalPath = Util.getCanonicalPath(path);
+            if (maxSize > 0) {
+                if (paths.size() >= maxSize) {
+                    evict();
+                }
+                paths.put(path, canonicalPath);
+            }
+        }
+        return canonicalPath;
+    }
+
+    private void evict() {
+        int target = maxSize - maxSize / 4 - 1;
+        for (Iterator<String> keys = paths.keySet().iterator(); keys.hasNext() && paths.size() > target; ) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /**
+     * Drops a path, and all the paths resolved to the same canonical path.
+     */
+    void invalidate(String path) {
+        String canonicalPath = paths.remove(path);
+        if (canonicalPath == null) {
+            try {
+                canonicalPath = Util.getCanonicalPath(path);
+            }
+            catch (IOException e) {
+                return;
+            }
+        }
+        for (Iterator<Map.Entry<String, String>> entries = paths.entrySet().iterator(); entries.hasNext(); ) {
+            if (entries.next().getValue().equals(canonicalPath)) {
+                entries.remove();
+            }
+        }
+    }
+
+    void clear() {
+        paths.clear();
+    }
+
+    void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        if (paths.size() > maxSize) {
+            paths.clear();
+        }
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    int size() {
+        return paths.size();
+    }
+}
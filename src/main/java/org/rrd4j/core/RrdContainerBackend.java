@@ -0,0 +1,92 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+
+/**
+ * Backend storing RRD bytes in a section of a container file owned by a
+ * {@link org.rrd4j.core.RrdContainerBackendFactory}. All the RRDs of a container share its
+ * mapping, so opening and closing a RRD costs neither a file descriptor nor a mapping.
+ */
+public class RrdContainerBackend extends RrdBackend {
+    private final RrdContainerBackendFactory container;
+    private final boolean readOnly;
+
+    /**
+     * <p>Constructor for RrdContainerBackend.</p>
+     *
+     * @param id        RRD ID in the container
+     * @param readOnly  True if the RRD must not be modified
+     * @param container Factory owning the container
+     */
+    protected RrdContainerBackend(String id, boolean readOnly, RrdContainerBackendFactory container) {
+        super(id);
+        this.readOnly = readOnly;
+        this.container = container;
+    }
+
+    /**
+     * <p>write.</p>
+     *
+     * @param offset a long.
+     * @param b an array of byte.
+     * @throws java.io.IOException if any.
+     */
+    protected void write(long offset, byte[] b) throws IOException {
+        if (readOnly) {
+            throw new IOException("Write failed, RRD " + getPath() + " opened read-only");
+        }
+        container.view(getPath(), offset, b.length).put(b);
+        container.written();
+    }
+
+    /**
+     * <p>read.</p>
+     *
+     * @param offset a long.
+     * @param b an array of byte.
+     * @throws java.io.IOException if any.
+     */
+    protected void read(long offset, byte[] b) throws IOException {
+        container.view(getPath(), offset, b.length).get(b);
+    }
+
+    /**
+     * Returns the size of the section of the container holding the RRD.
+     *
+     * @return Number of RRD bytes, 0 if the RRD is not created yet
+     */
+    public long getLength() {
+        return container.getLength(getPath());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Reserves a section of the container for the RRD, the previous section is released.
+     */
+    protected void setLength(long length) throws IOException {
+        if (readOnly) {
+            throw new IOException("RRD " + getPath() + " opened read-only");
+        }
+        container.allocate(getPath(), length);
+    }
+
+    /**
+     * Forces the whole container to the disk.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    protected void sync() throws IOException {
+        container.sync();
+    }
+
+    /**
+     * Releases the RRD, so that it can be deleted. The bytes stay in the container mapping, which
+     * is forced to the disk by the sync task of the container.
+     *
+     * @throws java.io.IOException if any.
+     */
+    public void close() throws IOException {
+        container.closed(getPath());
+    }
+}
@@ -0,0 +1,504 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backend factory storing many RRDs in a single preallocated container file.<p>
+ *
+ * Small RRDs stored as files each cost an inode, and a file descriptor and a mapping while they
+ * are open. A container holds thousands of them in one file, mapped once: RRDs are identified by
+ * IDs, and a directory at the start of the file gives the section of the file holding each one.
+ * Opening a RRD is a directory lookup, and a single task forces the whole container to the disk
+ * every {@link #setSyncPeriod(int) sync period}.
+ * <pre>
+ * RrdContainerBackendFactory factory = new RrdContainerBackendFactory(new File("/var/rrd/routers.rrdc"));
+ * RrdDb rrdDb = new RrdDb("router42/eth0", factory);
+ * ...
+ * factory.close();
+ * </pre>
+ * The container grows by doubling when it is full, up to 2 GB. The number of RRDs is set when the
+ * container is created, {@value #DEFAULT_MAX_ENTRIES} by default, and IDs are limited to
+ * {@value #MAX_ID_LENGTH} bytes in UTF-8. Sections released by {@link #delete(String)} are reused
+ * for RRDs of the same size. Once registered, the factory can be made the
+ * {@link org.rrd4j.core.RrdBackendFactory#setDefaultFactory(String) default} one and is then used by
+ * the {@link org.rrd4j.core.RrdDbPool} too. A RRD can only be deleted once all the RrdDb objects
+ * using it are closed.<p>
+ *
+ * Like the mapped files of the NIO backend, the container can only be used by one JVM at a time.
+ */
+public class RrdContainerBackendFactory extends RrdBackendFactory {
+    /**
+     * Default maximum number of RRDs of a new container.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 65536;
+
+    /**
+     * Default size of a new container, in bytes.
+     */
+    public static final long DEFAULT_INITIAL_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Maximum length of an ID, in UTF-8 bytes.
+     */
+    public static final int MAX_ID_LENGTH = 110;
+
+    private static final long MAGIC = 0x525244344a434e54L; // "RRD4JCNT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    // header: magic, version, max entries, end of the sections
+    private static final int END_POSITION = 16;
+    // entry: offset, length, ID length, ID
+    private static final int ENTRY_SIZE = 128;
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Directory entry: a RRD, or a free section if it has no ID.
+     */
+    static class Entry {
+        final String id;
+        final int index;
+        final int offset;
+        final int length;
+
+        Entry(String id, int index, int offset, int length) {
+            this.id = id;
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer buffer;
+    private final int maxEntries;
+    private int end;
+    private boolean closed;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Map<Integer, List<Entry>> freeSections = new HashMap<Integer, List<Entry>>();
+    private final Deque<Integer> emptySlots = new ArrayDeque<Integer>();
+    // backends opened for each RRD, guarded by the factory
+    private final Map<String, Integer> openCounts = new HashMap<String, Integer>();
+
+    private volatile boolean dirty;
+    private ScheduledExecutorService syncExecutor;
+    private int syncPeriod = RrdNioBackendFactory.DEFAULT_SYNC_PERIOD;
+    private long syncCount;
+
+    /**
+     * Opens a container, or creates it with the default size and number of RRDs.
+     *
+     * @param file Container file
+     * @throws java.io.IOException Thrown in case of I/O error, or if the file is not a container
+     */
+    public RrdContainerBackendFactory(File file) throws IOException {
+        this(file, DEFAULT_MAX_ENTRIES, DEFAULT_INITIAL_SIZE);
+    }
+
+    /**
+     * Opens a container, or creates it. The maximum number of RRDs and the size are only used
+     * when the container is created.
+     *
+     * @param file        Container file
+     * @param maxEntries  Maximum number of RRDs of a new container
+     * @param initialSize Size of a new container, in bytes
+     * @throws java.io.IOException Thrown in case of I/O error, or if the file is not a container
+     */
+    public RrdContainerBackendFactory(File file, int maxEntries, long initialSize) throws IOException {
+        if (maxEntries < 1 || HEADER_SIZE + (long) maxEntries * ENTRY_SIZE >= MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid maximum number of RRDs: " + maxEntries);
+        }
+        this.file = file;
+        boolean create = !file.exists() || file.length() == 0;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            if (create) {
+                long size = Math.min(MAX_SIZE, Math.max(initialSize, HEADER_SIZE + (long) maxEntries * ENTRY_SIZE));
+                raf.setLength(size);
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                this.maxEntries = maxEntries;
+                end = HEADER_SIZE + maxEntries * ENTRY_SIZE;
+                buffer.putLong(0, MAGIC);
+                buffer.putInt(8, VERSION);
+                buffer.putInt(12, maxEntries);
+                buffer.putLong(END_POSITION, end);
+                for (int i = 0; i < maxEntries; i++) {
+                    emptySlots.add(i);
+                }
+                buffer.force();
+            }
+            else {
+                if (raf.length() < HEADER_SIZE || raf.length() > MAX_SIZE) {
+                    throw new IOException("Invalid RRD container: " + file);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+                if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION) {
+                    throw new IOException("Invalid RRD container: " + file);
+                }
+                this.maxEntries = buffer.getInt(12);
+                end = (int) buffer.getLong(END_POSITION);
+                readDirectory();
+            }
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        startSync();
+    }
+
+    private void readDirectory() throws IOException {
+        for (int i = 0; i < maxEntries; i++) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(HEADER_SIZE + i * ENTRY_SIZE);
+            int offset = (int) view.getLong();
+            int length = (int) view.getLong();
+            int idLength = view.getShort();
+            if (idLength > 0) {
+                byte[] id = new byte[idLength];
+                view.get(id);
+                Entry entry = new Entry(new String(id, "UTF-8"), i, offset, length);
+                entries.put(entry.id, entry);
+            }
+            else if (length > 0) {
+                addFreeSection(new Entry(null, i, offset, length));
+            }
+            else {
+                emptySlots.add(i);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Creates RrdContainerBackend object.
+     */
+    protected synchronized RrdBackend open(String id, boolean readOnly) throws IOException {
+        if (closed) {
+            throw new IOException("RRD container closed: " + file);
+        }
+        if (readOnly && !entries.containsKey(id)) {
+            throw new IOException("RRD " + id + " not found in container " + file);
+        }
+        Integer count = openCounts.get(id);
+        openCounts.put(id, count == null ? 1 : count + 1);
+        return new RrdContainerBackend(id, readOnly, this);
+    }
+
+    synchronized void closed(String id) {
+        Integer count = openCounts.get(id);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            openCounts.put(id, count - 1);
+        }
+        else {
+            openCounts.remove(id);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Method to determine if a RRD with the given ID is stored in the container.
+     */
+    protected boolean exists(String id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * RRDs are written to the container by this factory only, their headers are not validated.
+     */
+    protected boolean shouldValidateHeader(String path) throws IOException {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * IDs are used as paths by the pool: they are shared like files.
+     */
+    protected boolean isPoolable() {
+        return true;
+    }
+
+    /**
+     * Removes a RRD from the container. Its section is reused by the next RRD of the same size.
+     *
+     * @param id RRD ID
+     * @return true if the RRD existed
+     * @throws java.io.IOException Thrown in case of I/O error, or if the RRD is still open
+     */
+    public synchronized boolean delete(String id) throws IOException {
+        if (openCounts.containsKey(id)) {
+            throw new IOException("RRD " + id + " is still open, close it before deleting it");
+        }
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        release(entry);
+        return true;
+    }
+
+    ByteBuffer view(String id, long offset, int length) throws IOException {
+        Entry entry = entries.get(id);
+        if (entry == null || offset < 0 || offset + length > entry.length) {
+            throw new IOException("Not enough bytes available in container; RRD " + id);
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(entry.offset + (int) offset);
+        return view;
+    }
+
+    void written() {
+        dirty = true;
+    }
+
+    long getLength(String id) {
+        Entry entry = entries.get(id);
+        return entry != null ? entry.length : 0;
+    }
+
+    /**
+     * Gives a RRD a section of the given length: the same one if its length does not change, a
+     * free section of that length, or a new section at the end of the container.
+     */
+    synchronized void allocate(String id, long length) throws IOException {
+        if (closed) {
+            throw new IOException("RRD container closed: " + file);
+        }
+        if (length < 0 || length > MAX_SIZE) {
+            throw new IOException("Illegal length: " + length);
+        }
+        Entry previous = entries.get(id);
+        if (previous != null && previous.length == length) {
+            return;
+        }
+        byte[] idBytes = id.getBytes("UTF-8");
+        if (idBytes.length == 0 || idBytes.length > MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("Invalid RRD ID, 1 to " + MAX_ID_LENGTH + " bytes allowed: " + id);
+        }
+        if (previous != null) {
+            entries.remove(id);
+            release(previous);
+        }
+        int size = (int) length;
+        Entry entry;
+        List<Entry> free = freeSections.get(size);
+        if (free != null && !free.isEmpty()) {
+            Entry section = free.remove(free.size() - 1);
+            entry = new Entry(id, section.index, section.offset, size);
+            // a reused section must look like a new one
+            ByteBuffer view = buffer.duplicate();
+            view.position(entry.offset);
+            for (int i = 0; i < size; i++) {
+                view.put((byte) 0);
+            }
+        }
+        else {
+            int index = takeSlot();
+            // keep sections 8 bytes aligned
+            int offset = (end + 7) & ~7;
+            ensureCapacity((long) offset + size);
+            end = offset + size;
+            buffer.putLong(END_POSITION, end);
+            entry = new Entry(id, index, offset, size);
+        }
+        writeEntry(entry, idBytes);
+        entries.put(id, entry);
+        dirty = true;
+    }
+
+    private int takeSlot() throws IOException {
+        Integer index = emptySlots.poll();
+        if (index != null) {
+            return index;
+        }
+        // the free section of another size is lost, until the container is rebuilt
+        for (Iterator<List<Entry>> i = freeSections.values().iterator(); i.hasNext(); ) {
+            List<Entry> free = i.next();
+            if (!free.isEmpty()) {
+                return free.remove(free.size() - 1).index;
+            }
+            i.remove();
+        }
+        throw new IOException("RRD container full, " + maxEntries + " RRDs allowed: " + file);
+    }
+
+    private void release(Entry entry) throws IOException {
+        Entry section = new Entry(null, entry.index, entry.offset, entry.length);
+        writeEntry(section, new byte[0]);
+        if (section.length > 0) {
+            addFreeSection(section);
+        }
+        else {
+            emptySlots.add(section.index);
+        }
+        dirty = true;
+    }
+
+    private void addFreeSection(Entry section) {
+        List<Entry> free = freeSections.get(section.length);
+        if (free == null) {
+            free = new ArrayList<Entry>();
+            freeSections.put(section.length, free);
+        }
+        free.add(section);
+    }
+
+    private void writeEntry(Entry entry, byte[] idBytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(HEADER_SIZE + entry.index * ENTRY_SIZE);
+        view.putLong(entry.offset);
+        view.putLong(entry.length);
+        view.putShort((short) idBytes.length);
+        view.put(idBytes);
+    }
+
+    // called with the factory locked
+    private void ensureCapacity(long size) throws IOException {
+        if (size <= buffer.capacity()) {
+            return;
+        }
+        if (size > MAX_SIZE) {
+            throw new IOException("RRD container full, " + MAX_SIZE + " bytes allowed: " + file);
+        }
+        long newSize = Math.min(MAX_SIZE, Math.max(size, 2L * buffer.capacity()));
+        buffer.force();
+        raf.setLength(newSize);
+        // the previous mapping is released by the garbage collector, readers may still use it
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    /**
+     * Forces the container to the disk if it was modified since the last sync.
+     */
+    synchronized void sync() {
+        if (dirty && !closed) {
+            dirty = false;
+            buffer.force();
+            syncCount++;
+        }
+    }
+
+    /**
+     * Sets the delay between two syncs of the container to the disk.
+     *
+     * @param syncPeriod Sync period in seconds, {@link org.rrd4j.core.RrdNioBackendFactory#DEFAULT_SYNC_PERIOD} by default
+     */
+    public synchronized void setSyncPeriod(int syncPeriod) {
+        if (syncPeriod < 1) {
+            throw new IllegalArgumentException("Invalid sync period: " + syncPeriod);
+        }
+        this.syncPeriod = syncPeriod;
+        if (!closed) {
+            syncExecutor.shutdown();
+            startSync();
+        }
+    }
+
+    /**
+     * @return delay between two syncs of the container to the disk, in seconds
+     */
+    public synchronized int getSyncPeriod() {
+        return syncPeriod;
+    }
+
+    private synchronized void startSync() {
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(
+                new RrdSyncThreadPool.DaemonThreadFactory("RRD4J Sync for container " + file));
+        syncExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sync();
+            }
+        }, syncPeriod, syncPeriod, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return number of times the container was forced to the disk
+     */
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * @return number of RRDs in the container
+     */
+    public int getRrdCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return maximum number of RRDs in the container
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return size of the container file, in bytes
+     */
+    public long getSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return the container file
+     */
+    public File getContainerFile() {
+        return file;
+    }
+
+    /**
+     * Stops the sync task, forces the container to the disk and closes it. RRDs must be closed
+     * first.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public void close() throws IOException {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            sync();
+            closed = true;
+            executor = syncExecutor;
+        }
+        executor.shutdown();
+        raf.close();
+    }
+
+    /**
+     * Returns the name of this factory.
+     *
+     * @return Factory name (equals to "CONTAINER").
+     */
+    public String getName() {
+        return "CONTAINER";
+    }
+}
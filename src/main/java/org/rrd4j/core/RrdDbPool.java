@@ -53,7 +53,7 @@ public class RrdDbPool {
      * or returns already existing one. Uses Initialization On Demand Holder idiom.
      *
      * @return Single instance of this class
-     * @throws java.lang.RuntimeException Thrown if the default RRD backend is not derived from the {@link org.rrd4j.core.RrdFileBackendFactory}
+     * @throws java.lang.RuntimeException Thrown if the default RRD backend can not be pooled, see {@link org.rrd4j.core.RrdBackendFactory#isPoolable()}
      */
     public static RrdDbPool getInstance() {
         return RrdDbPoolSingletonHolder.instance;
@@ -66,15 +66,48 @@ public class RrdDbPool {
 
     private final ConcurrentMap<String, RrdEntry> pool = new ConcurrentHashMap<String, RrdEntry>(INITIAL_CAPACITY);
 
+    private final RrdCanonicalPathCache canonicalPaths = RrdCanonicalPathCache.INSTANCE;
+
+    /**
+     * A RRD path resolved once for all, see {@link #getHandle(String)}.
+     */
+    public static final class Handle {
+        private final String path;
+        private final String canonicalPath;
+
+        private Handle(String path, String canonicalPath) {
+            this.path = path;
+            this.canonicalPath = canonicalPath;
+        }
+
+        /**
+         * @return the path the handle was created from
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the canonical path of the RRD file
+         */
+        public String getCanonicalPath() {
+            return canonicalPath;
+        }
+
+        public String toString() {
+            return canonicalPath;
+        }
+    }
+
     /**
      * Constructor for RrdDbPool.
      * 
      * Not private, used by junit tests
      */
     RrdDbPool() {
-        if (!(RrdBackendFactory.getDefaultFactory() instanceof RrdFileBackendFactory)) {
+        if (!RrdBackendFactory.getDefaultFactory().isPoolable()) {
             throw new RuntimeException("Cannot create instance of " + getClass().getName() + " with " +
-                    "a default backend factory not derived from RrdFileBackendFactory");
+                    "a default backend factory which can not be pooled");
         }
     }
 
@@ -100,7 +133,10 @@ public class RrdDbPool {
     }
 
     private RrdEntry getEntry(String path, boolean cancreate) throws IOException, InterruptedException {
-        String canonicalPath = Util.getCanonicalPath(path);
+        return getCanonicalEntry(canonicalPaths.getCanonicalPath(path), cancreate);
+    }
+
+    private RrdEntry getCanonicalEntry(String canonicalPath, boolean cancreate) throws InterruptedException {
         RrdEntry ref = null;
         do {
             ref = pool.get(canonicalPath);
@@ -175,6 +211,16 @@ public class RrdDbPool {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public void release(RrdDb rrdDb) throws IOException {
+        long start = RrdInstrumentation.start();
+        try {
+            releaseRrdDb(rrdDb);
+        }
+        finally {
+            RrdInstrumentation.recordPool(RrdIoStats.Operation.POOL_RELEASE, start);
+        }
+    }
+
+    private void releaseRrdDb(RrdDb rrdDb) throws IOException {
         // null pointer should not kill the thread, just ignore it
         if (rrdDb == null) {
             return;
@@ -224,10 +270,49 @@ public class RrdDbPool {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public RrdDb requestRrdDb(String path) throws IOException {
+        long start = RrdInstrumentation.start();
+        try {
+            return requestOpenRrdDb(path, canonicalPaths.getCanonicalPath(path));
+        }
+        finally {
+            RrdInstrumentation.recordPool(RrdIoStats.Operation.POOL_REQUEST, start);
+        }
+    }
+
+    /**
+     * Resolves the canonical path of a RRD file once for all. Requesting a RRD with the returned
+     * handle does not resolve its path again.
+     *
+     * @param path Path to a RRD file
+     * @return a handle for {@link #requestRrdDb(Handle)}
+     * @throws java.io.IOException Thrown if the canonical path could not be resolved
+     */
+    public Handle getHandle(String path) throws IOException {
+        return new Handle(path, canonicalPaths.getCanonicalPath(path));
+    }
 
+    /**
+     * Requests a RrdDb reference for an existing RRD file, like {@link #requestRrdDb(String)} but
+     * without resolving its path.
+     *
+     * @param handle Handle returned by {@link #getHandle(String)}
+     * @return reference for the give RRD file
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public RrdDb requestRrdDb(Handle handle) throws IOException {
+        long start = RrdInstrumentation.start();
+        try {
+            return requestOpenRrdDb(handle.path, handle.canonicalPath);
+        }
+        finally {
+            RrdInstrumentation.recordPool(RrdIoStats.Operation.POOL_REQUEST, start);
+        }
+    }
+
+    private RrdDb requestOpenRrdDb(String path, String canonicalPath) throws IOException {
         RrdEntry ref = null;
         try {
-            ref = getEntry(path, true);
+            ref = getCanonicalEntry(canonicalPath, true);
         } catch (InterruptedException e) {
             throw new RuntimeException("request interrupted for " + path, e);
         }
@@ -299,6 +384,7 @@ public class RrdDbPool {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public RrdDb requestRrdDb(RrdDef rrdDef) throws IOException {
+        long start = RrdInstrumentation.start();
         RrdEntry ref = null;
         try {
             ref = requestEmpty(rrdDef.getPath());
@@ -310,6 +396,7 @@ public class RrdDbPool {
             if(ref != null) {
                 passNext(ACTION.SWAP, ref);                                            
             }
+            RrdInstrumentation.recordPool(RrdIoStats.Operation.POOL_REQUEST, start);
         }
     }
 
@@ -332,7 +419,7 @@ public class RrdDbPool {
      */
     public RrdDb requestRrdDb(String path, String sourcePath)
             throws IOException {
-
+        long start = RrdInstrumentation.start();
         RrdEntry ref = null;
         try {
             ref = requestEmpty(path);
@@ -344,6 +431,7 @@ public class RrdDbPool {
             if(ref != null) {
                 passNext(ACTION.SWAP, ref);                                            
             }
+            RrdInstrumentation.recordPool(RrdIoStats.Operation.POOL_REQUEST, start);
         }
 
     }
@@ -374,6 +462,41 @@ public class RrdDbPool {
         return maxCapacity;
     }
 
+    /**
+     * Sets the maximum number of canonical paths remembered by the pools. Set to 0 to resolve
+     * paths on each request and release.
+     *
+     * @param size Maximum number of paths remembered, 100000 by default
+     */
+    public void setCanonicalPathCacheSize(int size) {
+        canonicalPaths.setMaxSize(size);
+    }
+
+    /**
+     * @return maximum number of canonical paths remembered by the pools
+     */
+    public int getCanonicalPathCacheSize() {
+        return canonicalPaths.getMaxSize();
+    }
+
+    /**
+     * Forgets the canonical path of a RRD file, after a directory or a symbolic link along its
+     * path was changed. Files deleted or renamed by {@link org.rrd4j.core.RrdToolkit} are
+     * forgotten automatically.
+     *
+     * @param path Path to a RRD file
+     */
+    public void invalidateCanonicalPath(String path) {
+        canonicalPaths.invalidate(path);
+    }
+
+    /**
+     * Forgets all the canonical paths remembered.
+     */
+    public void clearCanonicalPathCache() {
+        canonicalPaths.clear();
+    }
+
     /**
      * Returns the number of usage for a RRD.
      *
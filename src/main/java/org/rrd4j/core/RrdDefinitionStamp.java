@@ -0,0 +1,49 @@
+package org.rrd4j.core;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Generation of the datasource and archive definitions of a RRD storage, shared by all the
+ * {@link org.rrd4j.core.RrdDb} objects opened on it in this JVM. Each RrdDb decodes the
+ * definitions once; the definition setters bump the generation, and the other RrdDb objects
+ * decode them again when they see it changed, once per update.<p>
+ *
+ * RRD files have no room for such a stamp, so it only lives in memory, as long as a RrdDb
+ * holds it.
+ */
+final class RrdDefinitionStamp {
+    // the key of an entry is the one held by its stamp, so the entry lives as long as the stamp
+    private static final Map<String, WeakReference<RrdDefinitionStamp>> stamps =
+            new WeakHashMap<String, WeakReference<RrdDefinitionStamp>>();
+
+    private final String key;
+    private volatile int generation;
+
+    private RrdDefinitionStamp(String key) {
+        this.key = key;
+    }
+
+    static RrdDefinitionStamp get(String key) {
+        synchronized (stamps) {
+            WeakReference<RrdDefinitionStamp> ref = stamps.get(key);
+            RrdDefinitionStamp stamp = ref != null ? ref.get() : null;
+            if (stamp == null) {
+                stamp = new RrdDefinitionStamp(key);
+                // put() would keep the key of a cleared entry
+                stamps.remove(key);
+                stamps.put(stamp.key, new WeakReference<RrdDefinitionStamp>(stamp));
+            }
+            return stamp;
+        }
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    synchronized int bump() {
+        return ++generation;
+    }
+}
@@ -1,5 +1,6 @@
 package org.rrd4j.core;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -10,6 +11,8 @@ import java.io.IOException;
  *
  */
 public abstract class RrdFileBackendFactory extends RrdBackendFactory {
+    private final RrdHeaderValidator headerValidator = new RrdHeaderValidator();
+
     /**
      * {@inheritDoc}
      *
@@ -19,8 +22,45 @@ public abstract class RrdFileBackendFactory extends RrdBackendFactory {
         return Util.fileExists(path);
     }
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     *
+     * Headers are checked unless the file was already found valid, see {@link #getHeaderValidator()}.
+     */
     protected boolean shouldValidateHeader(String path) throws IOException {
+        return headerValidator.shouldValidate(getFile(path).getPath());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Files are identified by their canonical path, they can be shared by the pool.
+     */
+    protected boolean isPoolable() {
         return true;
     }
+
+    void headerValidated(String path) {
+        headerValidator.validated(getFile(path).getPath());
+    }
+
+    /**
+     * Returns the file storing the RRD with the given path: the path itself, unless the factory
+     * maps RRD paths to other files.
+     *
+     * @param path RRD path
+     * @return the file storing the RRD
+     */
+    public File getFile(String path) {
+        return new File(path);
+    }
+
+    /**
+     * Returns the validator remembering which files have a valid header.
+     *
+     * @return the header validator of this factory
+     */
+    public RrdHeaderValidator getHeaderValidator() {
+        return headerValidator;
+    }
 }
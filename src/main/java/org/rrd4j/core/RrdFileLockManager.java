@@ -0,0 +1,210 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock manager used by {@link org.rrd4j.core.RrdSafeFileBackend}.<p>
+ *
+ * Threads of this JVM asking for the same file wait in a fair in-process queue, so only the
+ * thread at the head of the queue tries to get the operating system lock. The file and its
+ * operating system lock are shared by the users of a path: when a user releases the lock while
+ * others are waiting, the next one gets it without the file being unlocked, reopened and locked
+ * again. The file is unlocked and closed when its last user releases it.
+ */
+class RrdFileLockManager {
+    /**
+     * Upper bounds of the wait time histogram buckets, in milliseconds. The last bucket counts
+     * longer waits.
+     */
+    static final long[] WAIT_BOUNDS = {1, 10, 100, 1000, 10000};
+
+    // first operating system lock retry, doubled up to the lock retry period
+    private static final long FIRST_RETRY = 1;
+
+    static final RrdFileLockManager INSTANCE = new RrdFileLockManager();
+
+    /**
+     * Lock on a file, shared by all its users.
+     */
+    static class Entry {
+        final String key;
+        final Semaphore permit = new Semaphore(1, true);
+        // holder and waiters, guarded by the entries map
+        int users;
+        RandomAccessFile file;
+        FileLock lock;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        RandomAccessFile getFile() {
+            return file;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private final AtomicLong locks = new AtomicLong();
+    private final AtomicLong handoffs = new AtomicLong();
+    private final AtomicLong unlocks = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLongArray waits = new AtomicLongArray(WAIT_BOUNDS.length + 1);
+
+    /**
+     * Waits for the exclusive lock of a file, in-process first, then from the operating system.
+     *
+     * @param path      File path
+     * @param waitTime  Maximum wait time, in milliseconds
+     * @param retryPeriod Maximum time between two attempts to get the operating system lock
+     * @return the locked entry, to be given back to {@link #unlock(Entry)}
+     * @throws java.io.IOException Thrown if the file can not be opened, or not locked in time
+     */
+    Entry lock(String path, long waitTime, long retryPeriod) throws IOException {
+        String key = Util.getCanonicalPath(path);
+        long start = System.nanoTime();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+            }
+            entry.users++;
+        }
+        boolean acquired = false;
+        boolean locked = false;
+        try {
+            if (!entry.permit.tryAcquire(waitTime, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Could not obtain exclusive lock on file: " + path +
+                        " after " + waitTime + " milliseconds");
+            }
+            acquired = true;
+            if (entry.lock != null) {
+                handoffs.incrementAndGet();
+            }
+            else {
+                lockFile(entry, path, start + TimeUnit.MILLISECONDS.toNanos(waitTime), retryPeriod);
+            }
+            registerWait(System.nanoTime() - start);
+            locks.incrementAndGet();
+            locked = true;
+            return entry;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the lock on file: " + path);
+        }
+        finally {
+            if (!locked) {
+                errors.incrementAndGet();
+                if (acquired) {
+                    entry.permit.release();
+                }
+                leave(entry);
+            }
+        }
+    }
+
+    // only called by the permit holder
+    private void lockFile(Entry entry, String path, long deadline, long retryPeriod)
+            throws IOException, InterruptedException {
+        if (entry.file == null) {
+            entry.file = new RandomAccessFile(path, "rw");
+        }
+        long retry = Math.min(FIRST_RETRY, retryPeriod);
+        while ((entry.lock = entry.file.getChannel().tryLock(0, Long.MAX_VALUE, false)) == null) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new IOException("Could not obtain exclusive lock on file: " + path +
+                        " held by another process");
+            }
+            Thread.sleep(Math.max(1, Math.min(retry, remaining)));
+            retry = Math.min(retry * 2, Math.max(retryPeriod, FIRST_RETRY));
+        }
+    }
+
+    /**
+     * Releases the lock of a file. The next waiting user gets it, or the file is unlocked and
+     * closed if there is none.
+     *
+     * @param entry Entry returned by {@link #lock(String, long, long)}
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    void unlock(Entry entry) throws IOException {
+        unlocks.incrementAndGet();
+        entry.permit.release();
+        leave(entry);
+    }
+
+    private void leave(Entry entry) throws IOException {
+        synchronized (entries) {
+            if (--entry.users > 0) {
+                return;
+            }
+            entries.remove(entry.key);
+            // unlocked while the entries are locked, so the next entry of the path can not overlap
+            try {
+                if (entry.lock != null) {
+                    entry.lock.release();
+                }
+            }
+            finally {
+                entry.lock = null;
+                if (entry.file != null) {
+                    entry.file.close();
+                    entry.file = null;
+                }
+            }
+        }
+    }
+
+    private void registerWait(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < WAIT_BOUNDS.length && millis >= WAIT_BOUNDS[bucket]) {
+            bucket++;
+        }
+        waits.incrementAndGet(bucket);
+    }
+
+    /**
+     * @return number of locks obtained, per wait time bucket
+     */
+    long[] getWaitHistogram() {
+        long[] histogram = new long[waits.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = waits.get(i);
+        }
+        return histogram;
+    }
+
+    long getHandoffCount() {
+        return handoffs.get();
+    }
+
+    String getInfo() {
+        StringBuilder info = new StringBuilder();
+        info.append("LOCKS=").append(locks).append(", UNLOCKS=").append(unlocks)
+                .append(", HANDOFFS=").append(handoffs).append(", LOCKED=").append(locks.get() - unlocks.get())
+                .append(", ERRORS=").append(errors).append(", WAITS=[");
+        long[] histogram = getWaitHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) {
+                info.append(", ");
+            }
+            info.append(i < WAIT_BOUNDS.length ? "<" + WAIT_BOUNDS[i] : ">=" + WAIT_BOUNDS[i - 1])
+                    .append("ms:").append(histogram[i]);
+        }
+        return info.append("]").toString();
+    }
+}
@@ -0,0 +1,166 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durability manager of the files opened by a {@link org.rrd4j.core.RrdRandomAccessFileBackendFactory}.<p>
+ *
+ * Backends report the files they write to. A single task forces all of them to the disk at each
+ * interval, as one batch. With {@link RrdRandomAccessFileBackendFactory.Durability#GROUP_COMMIT group commit},
+ * each sample update then waits for the end of the batch which forced its writes: all the updates
+ * made during an interval, to any RRD, share the same sync.
+ */
+class RrdFileSyncManager {
+    private final RrdRandomAccessFileBackendFactory.Durability durability;
+    private final long interval;
+    private final ScheduledExecutorService executor;
+
+    private final Set<RrdRandomAccessFileBackend> dirtyBackends =
+            Collections.newSetFromMap(new ConcurrentHashMap<RrdRandomAccessFileBackend, Boolean>());
+
+    // batch collecting the current writes, last batch forced, guarded by the manager
+    private long batch = 1;
+    private long syncedBatch;
+    private long failedBatch;
+    private IOException failure;
+    private boolean stopped;
+
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong commitCount = new AtomicLong();
+
+    RrdFileSyncManager(RrdRandomAccessFileBackendFactory.Durability durability, long interval, String name) {
+        this.durability = durability;
+        this.interval = interval;
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new RrdSyncThreadPool.DaemonThreadFactory("RRD4J " + durability + " sync for " + name));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                syncBatch();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    RrdRandomAccessFileBackendFactory.Durability getDurability() {
+        return durability;
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    void markDirty(RrdRandomAccessFileBackend backend) {
+        dirtyBackends.add(backend);
+    }
+
+    /**
+     * Waits until the writes made so far are forced to the disk, if updates are group committed.
+     * Once the manager is stopped, the file of the backend is forced at once.
+     */
+    void commit(RrdRandomAccessFileBackend backend) throws IOException {
+        if (durability != RrdRandomAccessFileBackendFactory.Durability.GROUP_COMMIT) {
+            return;
+        }
+        commitCount.incrementAndGet();
+        synchronized (this) {
+            if (!stopped) {
+                long target = batch;
+                try {
+                    while (syncedBatch < target) {
+                        wait();
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the group commit");
+                }
+                if (failedBatch >= target) {
+                    throw new IOException("Group commit failed: " + failure.getMessage());
+                }
+                return;
+            }
+        }
+        backend.syncIfDirty();
+    }
+
+    /**
+     * Forces all the files written since the last batch, then releases the updates waiting for them.
+     */
+    void syncBatch() {
+        long target;
+        synchronized (this) {
+            target = batch++;
+        }
+        long start = System.nanoTime();
+        List<RrdRandomAccessFileBackend> backends = new ArrayList<RrdRandomAccessFileBackend>(dirtyBackends);
+        dirtyBackends.removeAll(backends);
+        IOException error = null;
+        for (RrdRandomAccessFileBackend backend : backends) {
+            try {
+                if (backend.syncIfDirty()) {
+                    syncCount.incrementAndGet();
+                }
+            }
+            catch (IOException e) {
+                error = e;
+            }
+        }
+        if (!backends.isEmpty()) {
+            batchCount.incrementAndGet();
+            batchNanos.addAndGet(System.nanoTime() - start);
+        }
+        synchronized (this) {
+            syncedBatch = target;
+            if (error != null) {
+                failedBatch = target;
+                failure = error;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops the sync task after a last batch.
+     */
+    void shutdown() {
+        synchronized (this) {
+            stopped = true;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        syncBatch();
+    }
+
+    long getSyncCount() {
+        return syncCount.get();
+    }
+
+    long getBatchCount() {
+        return batchCount.get();
+    }
+
+    double getAverageBatchTime() {
+        long count = batchCount.get();
+        return count > 0 ? batchNanos.get() / 1000000.0 / count : 0;
+    }
+
+    long getCommitCount() {
+        return commitCount.get();
+    }
+}
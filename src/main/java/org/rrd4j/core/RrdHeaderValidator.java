@@ -0,0 +1,251 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Remembers which RRD files were found to have a valid header, so that opening them again does
+ * not read and check their signature. Each {@link org.rrd4j.core.RrdFileBackendFactory} has one,
+ * see {@link org.rrd4j.core.RrdFileBackendFactory#getHeaderValidator()}.<p>
+ *
+ * Files are remembered by canonical path, resolved through the cache of the
+ * {@link org.rrd4j.core.RrdDbPool}, so opening a remembered file does not hit the file system.
+ * A remembered file is trusted until {@link #invalidate(String) invalidated}, or until a
+ * validation pass finds that its last modification time or length changed. RRDs closed after
+ * being updated by this JVM are remembered with their new modification time. Java 6 gives no
+ * access to inode numbers, so a file replaced by another one with the same modification time
+ * and length is not detected.<p>
+ *
+ * A store can be validated at once at startup, in the background and in parallel:
+ * <pre>
+ * RrdFileBackendFactory factory = (RrdFileBackendFactory) RrdBackendFactory.getDefaultFactory();
+ * factory.getHeaderValidator().startValidation("/var/rrd", ".rrd", true, 4);
+ * </pre>
+ * A store whose files are all known to be RRDs can also be {@link #setTrusted(boolean) trusted}:
+ * headers are never checked.
+ */
+public class RrdHeaderValidator {
+    private static final int SIGNATURE_BYTES = Header.SIGNATURE_LENGTH * 2;
+
+    private static class Stamp {
+        final long lastModified;
+        final long length;
+
+        Stamp(File file) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        boolean matches(Stamp other) {
+            return other.lastModified == lastModified && other.length == length;
+        }
+    }
+
+    private final RrdCanonicalPathCache canonicalPaths = RrdCanonicalPathCache.INSTANCE;
+
+    private final ConcurrentMap<String, Stamp> validated = new ConcurrentHashMap<String, Stamp>();
+    private volatile boolean trusted = false;
+
+    /**
+     * Trusts all the files opened: their headers are never checked.
+     *
+     * @param trusted true if all the files opened are known to be RRDs
+     */
+    public void setTrusted(boolean trusted) {
+        this.trusted = trusted;
+    }
+
+    /**
+     * @return true if headers are never checked
+     */
+    public boolean isTrusted() {
+        return trusted;
+    }
+
+    private String getKey(String path) throws IOException {
+        return canonicalPaths.getCanonicalPath(path);
+    }
+
+    /**
+     * @param path RRD file path
+     * @return true if the header must be checked when the file is opened
+     * @throws java.io.IOException Thrown if the canonical path can not be resolved
+     */
+    boolean shouldValidate(String path) throws IOException {
+        return !trusted && !validated.containsKey(getKey(path));
+    }
+
+    /**
+     * Remembers a file whose header was checked, or which was written by this JVM.
+     *
+     * @param path RRD file path
+     */
+    void validated(String path) {
+        try {
+            String key = getKey(path);
+            validated.put(key, new Stamp(new File(key)));
+        }
+        catch (IOException e) {
+            // not remembered, checked again at the next open
+        }
+    }
+
+    /**
+     * Forgets a file, replaced or rewritten by another process: its header is checked at the next open.
+     *
+     * @param path RRD file path
+     * @throws java.io.IOException Thrown if the canonical path can not be resolved
+     */
+    public void invalidate(String path) throws IOException {
+        validated.remove(getKey(path));
+    }
+
+    /**
+     * @return number of files remembered as valid
+     */
+    public int getValidatedCount() {
+        return validated.size();
+    }
+
+    /**
+     * Forgets all the files validated so far.
+     */
+    public void clear() {
+        validated.clear();
+    }
+
+    /**
+     * Checks the signature of a file, and remembers it if valid. A file already remembered is only
+     * checked again if its last modification time or length changed.
+     *
+     * @param path File path
+     * @return true if the file starts with a RRD4J or JRobin signature
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public boolean validate(String path) throws IOException {
+        String key = getKey(path);
+        File file = new File(key);
+        Stamp stamp = new Stamp(file);
+        Stamp known = validated.get(key);
+        if (known != null && known.matches(stamp)) {
+            return true;
+        }
+        validated.remove(key);
+        byte[] bytes = new byte[SIGNATURE_BYTES];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < bytes.length) {
+                return false;
+            }
+            raf.readFully(bytes);
+        }
+        finally {
+            raf.close();
+        }
+        char[] chars = new char[Header.SIGNATURE_LENGTH];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (((bytes[2 * i] & 0xFF) << 8) | (bytes[2 * i + 1] & 0xFF));
+        }
+        String signature = new String(chars);
+        if (signature.startsWith(Header.SIGNATURE) || signature.startsWith("JR")) {
+            validated.put(key, stamp);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks the signature of all the RRD files of a directory, using several threads. Run again,
+     * it finds the remembered files modified or replaced since, and forgets the invalid ones.
+     *
+     * @param directory Directory to scan
+     * @param extension File extension of the RRD files
+     * @param recursive true if subdirectories should be scanned too
+     * @param threads   Number of threads checking files
+     * @return paths of the files which are not valid RRDs, or could not be read
+     * @throws java.io.IOException Thrown if the directory can not be listed
+     */
+    public List<String> validate(String directory, String extension, boolean recursive, int threads)
+            throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        final String[] paths = RrdToolkit.getCanonicalPaths(directory, extension, recursive);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new RrdSyncThreadPool.DaemonThreadFactory("RRD4J header validator"));
+        try {
+            List<Future<List<String>>> results = new ArrayList<Future<List<String>>>(threads);
+            for (int i = 0; i < threads; i++) {
+                final int first = i;
+                final int step = threads;
+                results.add(executor.submit(new Callable<List<String>>() {
+                    public List<String> call() {
+                        List<String> invalid = new ArrayList<String>();
+                        for (int j = first; j < paths.length; j += step) {
+                            try {
+                                if (!validate(paths[j])) {
+                                    invalid.add(paths[j]);
+                                }
+                            }
+                            catch (IOException e) {
+                                invalid.add(paths[j]);
+                            }
+                        }
+                        return invalid;
+                    }
+                }));
+            }
+            List<String> invalid = new ArrayList<String>();
+            for (Future<List<String>> result : results) {
+                invalid.addAll(result.get());
+            }
+            return invalid;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Validation of " + directory + " interrupted");
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Validation of " + directory + " failed: " + e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs {@link #validate(String, String, boolean, int)} in a background thread. Files opened
+     * meanwhile are checked as usual.
+     *
+     * @param directory Directory to scan
+     * @param extension File extension of the RRD files
+     * @param recursive true if subdirectories should be scanned too
+     * @param threads   Number of threads checking files
+     * @return the paths of the files which are not valid RRDs, once the validation is over
+     */
+    public Future<List<String>> startValidation(final String directory, final String extension,
+                                                final boolean recursive, final int threads) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(
+                new RrdSyncThreadPool.DaemonThreadFactory("RRD4J header validation of " + directory));
+        try {
+            return executor.submit(new Callable<List<String>>() {
+                public List<String> call() throws IOException {
+                    return validate(directory, extension, recursive, threads);
+                }
+            });
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
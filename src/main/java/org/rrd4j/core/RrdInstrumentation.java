@@ -0,0 +1,208 @@
+package org.rrd4j.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects I/O statistics of the RRD backends and of the {@link org.rrd4j.core.RrdDbPool}.<p>
+ *
+ * Disabled by default. Once {@link #setEnabled(boolean) enabled}, the backends of the RRDs opened
+ * afterwards count their reads, writes, syncs and closes in the {@link org.rrd4j.core.RrdIoStats}
+ * of their factory, and also in the statistics of their path if {@link #setPerPath(boolean) per path}
+ * statistics are enabled. When disabled, backends are not decorated and nothing is counted.<p>
+ *
+ * Statistics are read with {@link #getFactoryStats()}, {@link #getPathStats()} and
+ * {@link #getPoolStats()}, or through JMX once {@link #registerMBeans()} is called:
+ * <pre>
+ * RrdInstrumentation.setEnabled(true);
+ * RrdInstrumentation.registerMBeans();
+ * ...
+ * RrdIoStats nio = RrdInstrumentation.getFactoryStats().get("NIO");
+ * long written = nio.getWriteBytes();
+ * </pre>
+ * Note that instrumented RRDs return a decorating backend from {@link org.rrd4j.core.RrdDb#getRrdBackend()}.
+ */
+public final class RrdInstrumentation {
+    /**
+     * Name of the statistics of the {@link org.rrd4j.core.RrdDbPool}.
+     */
+    public static final String POOL = "POOL";
+
+    static final String JMX_DOMAIN = "org.rrd4j";
+
+    private static volatile boolean enabled = false;
+    private static volatile boolean perPath = false;
+    private static volatile boolean mbeansRegistered = false;
+
+    private static final ConcurrentMap<String, RrdIoStats> factoryStats = new ConcurrentHashMap<String, RrdIoStats>();
+    private static final ConcurrentMap<String, RrdIoStats> pathStats = new ConcurrentHashMap<String, RrdIoStats>();
+
+    private RrdInstrumentation() {
+    }
+
+    /**
+     * Enables or disables statistics. RRDs already open are not affected.
+     *
+     * @param enabled true to collect statistics
+     */
+    public static void setEnabled(boolean enabled) {
+        RrdInstrumentation.enabled = enabled;
+    }
+
+    /**
+     * @return true if statistics are collected
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables statistics per RRD path, on top of the statistics per factory.
+     *
+     * @param perPath true to collect statistics per path
+     */
+    public static void setPerPath(boolean perPath) {
+        RrdInstrumentation.perPath = perPath;
+    }
+
+    /**
+     * @return true if statistics are collected per path
+     */
+    public static boolean isPerPath() {
+        return perPath;
+    }
+
+    /**
+     * @return snapshots of the statistics, by factory name
+     */
+    public static Map<String, RrdIoStats> getFactoryStats() {
+        return snapshot(factoryStats);
+    }
+
+    /**
+     * @return snapshots of the statistics, by RRD path
+     */
+    public static Map<String, RrdIoStats> getPathStats() {
+        return snapshot(pathStats);
+    }
+
+    /**
+     * @return snapshot of the pool statistics
+     */
+    public static RrdIoStats getPoolStats() {
+        return getStats(factoryStats, POOL).snapshot();
+    }
+
+    private static Map<String, RrdIoStats> snapshot(Map<String, RrdIoStats> stats) {
+        Map<String, RrdIoStats> snapshot = new TreeMap<String, RrdIoStats>();
+        for (RrdIoStats stat : stats.values()) {
+            snapshot.put(stat.getName(), stat.snapshot());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the statistics per path, and sets the statistics per factory to zero.
+     */
+    public static void reset() {
+        pathStats.clear();
+        for (RrdIoStats stats : factoryStats.values()) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * Registers the statistics of each factory in the platform MBean server, as
+     * <code>org.rrd4j:type=RrdIoStats,name=&lt;factory name&gt;</code>. Statistics of factories
+     * used later are registered when first used. Statistics per path are not registered.
+     *
+     * @throws javax.management.JMException if the registration failed
+     */
+    public static synchronized void registerMBeans() throws JMException {
+        mbeansRegistered = true;
+        for (RrdIoStats stats : factoryStats.values()) {
+            register(stats);
+        }
+    }
+
+    /**
+     * Unregisters the MBeans registered by {@link #registerMBeans()}.
+     *
+     * @throws javax.management.JMException if the unregistration failed
+     */
+    public static synchronized void unregisterMBeans() throws JMException {
+        mbeansRegistered = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (RrdIoStats stats : factoryStats.values()) {
+            ObjectName name = getObjectName(stats);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+    }
+
+    static ObjectName getObjectName(RrdIoStats stats) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=RrdIoStats,name=" + ObjectName.quote(stats.getName()));
+    }
+
+    private static void register(RrdIoStats stats) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = getObjectName(stats);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(stats, name);
+        }
+    }
+
+    private static RrdIoStats getStats(ConcurrentMap<String, RrdIoStats> map, String name) {
+        RrdIoStats stats = map.get(name);
+        if (stats == null) {
+            RrdIoStats created = new RrdIoStats(name);
+            stats = map.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+                if (map == factoryStats && mbeansRegistered) {
+                    synchronized (RrdInstrumentation.class) {
+                        try {
+                            register(stats);
+                        }
+                        catch (JMException e) {
+                            // statistics are still available programmatically
+                        }
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Decorates a backend just opened, if statistics are enabled.
+     */
+    static RrdBackend instrument(RrdBackend backend, RrdBackendFactory factory) {
+        if (!enabled) {
+            return backend;
+        }
+        return new RrdInstrumentedBackend(backend, getStats(factoryStats, factory.getName()),
+                perPath ? getStats(pathStats, backend.getPath()) : null);
+    }
+
+    /**
+     * @return start time of a pool operation, or {@link Long#MIN_VALUE} if statistics are disabled
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : Long.MIN_VALUE;
+    }
+
+    static void recordPool(RrdIoStats.Operation operation, long start) {
+        if (start != Long.MIN_VALUE) {
+            getStats(factoryStats, POOL).record(operation, 0, System.nanoTime() - start);
+        }
+    }
+}
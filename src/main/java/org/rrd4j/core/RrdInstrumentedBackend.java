@@ -0,0 +1,88 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+
+/**
+ * Backend decorator created by {@link org.rrd4j.core.RrdInstrumentation}, counting the operations of
+ * the decorated backend.
+ */
+class RrdInstrumentedBackend extends RrdBackend {
+    private final RrdBackend backend;
+    private final RrdIoStats factoryStats;
+    // null unless statistics are collected per path
+    private final RrdIoStats pathStats;
+
+    RrdInstrumentedBackend(RrdBackend backend, RrdIoStats factoryStats, RrdIoStats pathStats) {
+        super(backend.getPath());
+        this.backend = backend;
+        this.factoryStats = factoryStats;
+        this.pathStats = pathStats;
+    }
+
+    private void record(RrdIoStats.Operation operation, long bytes, long start) {
+        long elapsed = System.nanoTime() - start;
+        factoryStats.record(operation, bytes, elapsed);
+        if (pathStats != null) {
+            pathStats.record(operation, bytes, elapsed);
+        }
+    }
+
+    protected void write(long offset, byte[] b) throws IOException {
+        long start = System.nanoTime();
+        backend.write(offset, b);
+        record(RrdIoStats.Operation.WRITE, b.length, start);
+    }
+
+    protected void read(long offset, byte[] b) throws IOException {
+        long start = System.nanoTime();
+        backend.read(offset, b);
+        record(RrdIoStats.Operation.READ, b.length, start);
+    }
+
+    public long getLength() throws IOException {
+        return backend.getLength();
+    }
+
+    protected void setLength(long length) throws IOException {
+        long start = System.nanoTime();
+        backend.setLength(length);
+        record(RrdIoStats.Operation.SET_LENGTH, length, start);
+    }
+
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        backend.close();
+        record(RrdIoStats.Operation.CLOSE, 0, start);
+    }
+
+    protected void sync() throws IOException {
+        long start = System.nanoTime();
+        backend.sync();
+        record(RrdIoStats.Operation.SYNC, 0, start);
+    }
+
+    protected void beginUpdate() throws IOException {
+        backend.beginUpdate();
+    }
+
+    protected void commitUpdate() throws IOException {
+        backend.commitUpdate();
+    }
+
+    protected void abortUpdate() {
+        backend.abortUpdate();
+    }
+
+    protected boolean isCachingAllowed() {
+        return backend.isCachingAllowed();
+    }
+
+    String getCanonicalPath() throws IOException {
+        return backend.getCanonicalPath();
+    }
+
+    public void setFactory(RrdBackendFactory factory) {
+        super.setFactory(factory);
+        backend.setFactory(factory);
+    }
+}
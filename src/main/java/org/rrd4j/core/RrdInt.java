@@ -26,6 +26,14 @@ class RrdInt extends RrdPrimitive {
         }
     }
 
+    // seeds the cache with a value already read from the backend
+    void preload(int value) {
+        if (isCachingAllowed()) {
+            cache = value;
+            cached = true;
+        }
+    }
+
     int get() throws IOException {
         if (!isCachingAllowed()) {
             return readInt();
@@ -0,0 +1,223 @@
+package org.rrd4j.core;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the operations made by the backends of a factory, or on a single RRD, collected
+ * when {@link org.rrd4j.core.RrdInstrumentation} is enabled. For each operation: the number of
+ * calls, the bytes read or written, the total time and a latency histogram.
+ */
+public class RrdIoStats implements RrdIoStatsMBean {
+    /**
+     * Operations counted.
+     */
+    public enum Operation {
+        READ, WRITE, SET_LENGTH, SYNC, CLOSE, POOL_REQUEST, POOL_RELEASE
+    }
+
+    /**
+     * Upper bounds of the latency histogram buckets, in microseconds. The last bucket counts
+     * longer operations.
+     */
+    public static final long[] LATENCY_BOUNDS = {1, 10, 100, 1000, 10000, 100000};
+
+    private static final int BUCKETS = LATENCY_BOUNDS.length + 1;
+    private static final int OPERATIONS = Operation.values().length;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray bytes = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray nanos = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray histograms = new AtomicLongArray(OPERATIONS * BUCKETS);
+
+    RrdIoStats(String name) {
+        this.name = name;
+    }
+
+    void record(Operation operation, long byteCount, long elapsedNanos) {
+        int op = operation.ordinal();
+        counts.incrementAndGet(op);
+        if (byteCount > 0) {
+            bytes.addAndGet(op, byteCount);
+        }
+        nanos.addAndGet(op, elapsedNanos);
+        long micros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && micros >= LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        histograms.incrementAndGet(op * BUCKETS + bucket);
+    }
+
+    /**
+     * Returns a copy of these counters, not modified by later operations.
+     *
+     * @return a snapshot of these counters
+     */
+    public RrdIoStats snapshot() {
+        RrdIoStats copy = new RrdIoStats(name);
+        for (int i = 0; i < OPERATIONS; i++) {
+            copy.counts.set(i, counts.get(i));
+            copy.bytes.set(i, bytes.get(i));
+            copy.nanos.set(i, nanos.get(i));
+        }
+        for (int i = 0; i < histograms.length(); i++) {
+            copy.histograms.set(i, histograms.get(i));
+        }
+        return copy;
+    }
+
+    /**
+     * Sets all the counters to zero.
+     */
+    public void reset() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            counts.set(i, 0);
+            bytes.set(i, 0);
+            nanos.set(i, 0);
+        }
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, 0);
+        }
+    }
+
+    /**
+     * @return the factory name or the RRD path counted
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param operation an operation
+     * @return number of calls
+     */
+    public long getCount(Operation operation) {
+        return counts.get(operation.ordinal());
+    }
+
+    /**
+     * @param operation an operation
+     * @return bytes read, written or allocated
+     */
+    public long getBytes(Operation operation) {
+        return bytes.get(operation.ordinal());
+    }
+
+    /**
+     * @param operation an operation
+     * @return total time spent, in microseconds
+     */
+    public long getTotalTime(Operation operation) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos.get(operation.ordinal()));
+    }
+
+    /**
+     * @param operation an operation
+     * @return average time spent, in microseconds
+     */
+    public double getAverageTime(Operation operation) {
+        long count = getCount(operation);
+        return count > 0 ? nanos.get(operation.ordinal()) / 1000.0 / count : 0;
+    }
+
+    /**
+     * @param operation an operation
+     * @return number of calls per {@link #LATENCY_BOUNDS latency bucket}
+     */
+    public long[] getLatencyHistogram(Operation operation) {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = histograms.get(operation.ordinal() * BUCKETS + i);
+        }
+        return histogram;
+    }
+
+    public long getReadCount() {
+        return getCount(Operation.READ);
+    }
+
+    public long getReadBytes() {
+        return getBytes(Operation.READ);
+    }
+
+    public double getReadAverageTime() {
+        return getAverageTime(Operation.READ);
+    }
+
+    public long[] getReadLatencyHistogram() {
+        return getLatencyHistogram(Operation.READ);
+    }
+
+    public long getWriteCount() {
+        return getCount(Operation.WRITE);
+    }
+
+    public long getWriteBytes() {
+        return getBytes(Operation.WRITE);
+    }
+
+    public double getWriteAverageTime() {
+        return getAverageTime(Operation.WRITE);
+    }
+
+    public long[] getWriteLatencyHistogram() {
+        return getLatencyHistogram(Operation.WRITE);
+    }
+
+    public long getSetLengthCount() {
+        return getCount(Operation.SET_LENGTH);
+    }
+
+    public long getSyncCount() {
+        return getCount(Operation.SYNC);
+    }
+
+    public double getSyncAverageTime() {
+        return getAverageTime(Operation.SYNC);
+    }
+
+    public long getCloseCount() {
+        return getCount(Operation.CLOSE);
+    }
+
+    public long getPoolRequestCount() {
+        return getCount(Operation.POOL_REQUEST);
+    }
+
+    public double getPoolRequestAverageTime() {
+        return getAverageTime(Operation.POOL_REQUEST);
+    }
+
+    public long[] getPoolRequestLatencyHistogram() {
+        return getLatencyHistogram(Operation.POOL_REQUEST);
+    }
+
+    public long getPoolReleaseCount() {
+        return getCount(Operation.POOL_RELEASE);
+    }
+
+    public double getPoolReleaseAverageTime() {
+        return getAverageTime(Operation.POOL_RELEASE);
+    }
+
+    /**
+     * @return the counters of the operations made at least once
+     */
+    public String toString() {
+        StringBuilder buffer = new StringBuilder(name).append(":");
+        for (Operation operation : Operation.values()) {
+            long count = getCount(operation);
+            if (count > 0) {
+                buffer.append(" ").append(operation).append("=").append(count);
+                if (getBytes(operation) > 0) {
+                    buffer.append("/").append(getBytes(operation)).append("B");
+                }
+                buffer.append("/").append(String.format(Locale.US, "%.1fus", getAverageTime(operation)));
+            }
+        }
+        return buffer.toString();
+    }
+}
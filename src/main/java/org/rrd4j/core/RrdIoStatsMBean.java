@@ -0,0 +1,45 @@
+package org.rrd4j.core;
+
+/**
+ * JMX view of {@link org.rrd4j.core.RrdIoStats}. Times are in microseconds, histograms count the
+ * operations per {@link org.rrd4j.core.RrdIoStats#LATENCY_BOUNDS latency bucket}.
+ */
+public interface RrdIoStatsMBean {
+    String getName();
+
+    long getReadCount();
+
+    long getReadBytes();
+
+    double getReadAverageTime();
+
+    long[] getReadLatencyHistogram();
+
+    long getWriteCount();
+
+    long getWriteBytes();
+
+    double getWriteAverageTime();
+
+    long[] getWriteLatencyHistogram();
+
+    long getSetLengthCount();
+
+    long getSyncCount();
+
+    double getSyncAverageTime();
+
+    long getCloseCount();
+
+    long getPoolRequestCount();
+
+    double getPoolRequestAverageTime();
+
+    long[] getPoolRequestLatencyHistogram();
+
+    long getPoolReleaseCount();
+
+    double getPoolReleaseAverageTime();
+
+    void reset();
+}
@@ -0,0 +1,207 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable description of the structure of a RRD: header constants, datasource definitions
+ * and archive definitions. Layouts are cached, keyed by the raw bytes of these definitions and
+ * the storage length, so RRDs created from the same {@link RrdDef} share a single decoded layout.<p>
+ *
+ * Loading a layout reads the header and all datasource definitions (and the first archive
+ * definition when it fits) with a single backend read, then one small read per remaining archive
+ * definition. A cached layout is only reused when all these bytes are identical, so it never
+ * replaces validation, it only saves decoding them again and lets opened RRDs share the decoded
+ * values.
+ */
+class RrdLayout {
+    // signature, step, dsCount, arcCount and lastUpdateTime
+    static final int HEADER_SIZE = 64;
+    // header without lastUpdateTime, the only non constant header field
+    private static final int HEADER_DEF_SIZE = 56;
+    // name, type, heartbeat, min, max, then lastValue, accumValue and nanSeconds
+    static final int DS_SIZE = 128;
+    private static final int DS_DEF_SIZE = 104;
+    // consolFun, xff, steps, rows
+    static final int ARC_DEF_SIZE = 56;
+    // archive state and robin pointer, for each datasource of each archive
+    static final int ARC_DS_SIZE = 20;
+    // the first read should catch the header and the datasources of most RRDs
+    static final int PREFIX_SIZE = 4096;
+    static final int MAX_CACHED_LAYOUTS = 256;
+
+    private static final Map<Key, RrdLayout> cache = new LinkedHashMap<Key, RrdLayout>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, RrdLayout> eldest) {
+            return size() > MAX_CACHED_LAYOUTS;
+        }
+    };
+
+    private static final class Key {
+        private final byte[] definition;
+        private final int hash;
+
+        Key(byte[] definition) {
+            this.definition = definition;
+            this.hash = Arrays.hashCode(definition);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(definition, ((Key) obj).definition);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    final String signature;
+    final long step;
+    final int dsCount, arcCount;
+    final String[] dsNames, dsTypes;
+    final long[] heartbeats;
+    final double[] minValues, maxValues;
+    final String[] consolFuns;
+    final double[] xffs;
+    final int[] steps, rows;
+    // offset of each archive definition, followed by the states and the robins of the archive
+    final long[] arcOffsets;
+
+    private RrdLayout(ByteBuffer definition, int dsCount, int arcCount) {
+        this.signature = getString(definition);
+        this.step = definition.getLong();
+        this.dsCount = definition.getInt();
+        this.arcCount = definition.getInt();
+        dsNames = new String[dsCount];
+        dsTypes = new String[dsCount];
+        heartbeats = new long[dsCount];
+        minValues = new double[dsCount];
+        maxValues = new double[dsCount];
+        for (int i = 0; i < dsCount; i++) {
+            dsNames[i] = getString(definition);
+            dsTypes[i] = getString(definition);
+            heartbeats[i] = definition.getLong();
+            minValues[i] = definition.getDouble();
+            maxValues[i] = definition.getDouble();
+        }
+        consolFuns = new String[arcCount];
+        xffs = new double[arcCount];
+        steps = new int[arcCount];
+        rows = new int[arcCount];
+        arcOffsets = new long[arcCount];
+        long arcOffset = HEADER_SIZE + (long) dsCount * DS_SIZE;
+        for (int i = 0; i < arcCount; i++) {
+            consolFuns[i] = getString(definition);
+            xffs[i] = definition.getDouble();
+            steps[i] = definition.getInt();
+            rows[i] = definition.getInt();
+            arcOffsets[i] = arcOffset;
+            arcOffset += getArchiveSize(dsCount, rows[i]);
+        }
+    }
+
+    /**
+     * @return bytes of an archive, definition and data, in a RRD with the given number of datasources
+     */
+    static long getArchiveSize(int dsCount, int rows) {
+        return ARC_DEF_SIZE + (long) dsCount * (ARC_DS_SIZE + 8L * rows);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        char[] c = new char[RrdPrimitive.STRING_LENGTH];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = buffer.getChar();
+        }
+        return new String(c).trim();
+    }
+
+    /**
+     * Reads the definitions stored in a backend and returns the matching layout.
+     *
+     * @param backend backend of an existing RRD
+     * @return the layout, or null if the storage does not look like a complete Rrd4j RRD, in
+     *         which case the caller should fall back to reading primitives one by one.
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    static RrdLayout load(RrdBackend backend) throws IOException {
+        long length = backend.getLength();
+        if (length < HEADER_SIZE) {
+            return null;
+        }
+        byte[] prefix = new byte[(int) Math.min(length, PREFIX_SIZE)];
+        backend.read(0, prefix);
+        ByteBuffer buffer = ByteBuffer.wrap(prefix);
+        int dsCount = buffer.getInt(48);
+        int arcCount = buffer.getInt(52);
+        if (dsCount <= 0 || arcCount <= 0 ||
+                dsCount > (length - HEADER_SIZE) / DS_SIZE || arcCount > length / ARC_DEF_SIZE) {
+            return null;
+        }
+        long arcOffset = HEADER_SIZE + (long) dsCount * DS_SIZE;
+        if (arcOffset + ARC_DEF_SIZE > length) {
+            return null;
+        }
+        if (arcOffset + ARC_DEF_SIZE > prefix.length) {
+            prefix = new byte[(int) (arcOffset + ARC_DEF_SIZE)];
+            backend.read(0, prefix);
+        }
+
+        // definition bytes, followed by the storage length
+        ByteBuffer definition = ByteBuffer.allocate(HEADER_DEF_SIZE + dsCount * DS_DEF_SIZE +
+                arcCount * ARC_DEF_SIZE + 8);
+        definition.put(prefix, 0, HEADER_DEF_SIZE);
+        for (int i = 0; i < dsCount; i++) {
+            definition.put(prefix, HEADER_SIZE + i * DS_SIZE, DS_DEF_SIZE);
+        }
+        byte[] arcDef = new byte[ARC_DEF_SIZE];
+        for (int i = 0; i < arcCount; i++) {
+            if (arcOffset + ARC_DEF_SIZE > length) {
+                return null;
+            }
+            if (i == 0) {
+                System.arraycopy(prefix, (int) arcOffset, arcDef, 0, ARC_DEF_SIZE);
+            }
+            else {
+                backend.read(arcOffset, arcDef);
+            }
+            definition.put(arcDef);
+            int arcRows = ByteBuffer.wrap(arcDef).getInt(ARC_DEF_SIZE - 4);
+            if (arcRows <= 0) {
+                return null;
+            }
+            arcOffset += getArchiveSize(dsCount, arcRows);
+        }
+        if (arcOffset != length) {
+            return null;
+        }
+        definition.putLong(length);
+
+        Key key = new Key(definition.array());
+        RrdLayout layout;
+        synchronized (cache) {
+            layout = cache.get(key);
+        }
+        if (layout == null) {
+            definition.rewind();
+            layout = new RrdLayout(definition, dsCount, arcCount);
+            if (!layout.signature.startsWith(Header.SIGNATURE) && !layout.signature.startsWith("JR")) {
+                return null;
+            }
+            synchronized (cache) {
+                cache.put(key, layout);
+            }
+        }
+        return layout;
+    }
+
+    static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
@@ -26,6 +26,19 @@ class RrdLong extends RrdPrimitive {
         }
     }
 
+    // drops the cached value, changed through another RrdDb
+    void invalidate() {
+        cached = false;
+    }
+
+    // seeds the cache with a value already read from the backend
+    void preload(long value) {
+        if (isCachingAllowed()) {
+            cache = value;
+            cached = true;
+        }
+    }
+
     long get() throws IOException {
         if (!isCachingAllowed()) {
             return readLong();
@@ -1,6 +1,10 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
@@ -9,12 +13,35 @@ import com.mongodb.DBObject;
 /**
  * <p>RrdMongoDBBackend class.</p>
  *
+ * Each RRD is stored as a single document. The RRD bytes are split in chunks, each one held by
+ * its own field: one for the header and the datasources, one per archive definition, and the
+ * archive data cut in chunks of at most {@link org.rrd4j.core.RrdMongoDBBackendFactory#setChunkSize(int) chunk size}
+ * bytes. Opening a RRD loads the header and the archive definitions only, other chunks are loaded
+ * when first read, so a fetch loads the chunks of a single archive. Closing a modified RRD
+ * <code>$set</code>s the modified chunks only.<p>
+ *
+ * Documents written by older versions hold all the RRD bytes in a single <code>rrd</code> field.
+ * They are still read, and converted to chunks the first time they are modified.
+ *
  * @author Mathias Bogaert
  */
 public class RrdMongoDBBackend extends RrdByteArrayBackend {
-    private final DBCollection rrdCollection;
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    static final String LENGTH = "length";
+    static final String OFFSETS = "offsets";
+    static final String PRELOAD = "preload";
+    static final String LEGACY = "rrd";
+    static final String CHUNK_PREFIX = "c";
+
+    private final RrdMongoDBCollection rrdCollection;
+    private final int chunkSize;
     private volatile boolean dirty = false;
 
+    // chunk start offsets, null until the RRD is stored as chunks
+    private int[] offsets;
+    private final BitSet loadedChunks = new BitSet();
+    private final BitSet dirtyChunks = new BitSet();
+
     /**
      * <p>Constructor for RrdMongoDBBackend.</p>
      *
@@ -22,15 +49,127 @@ public class RrdMongoDBBackend extends RrdByteArrayBackend {
      * @param rrdCollection a {@link com.mongodb.DBCollection} object.
      */
     public RrdMongoDBBackend(String path, DBCollection rrdCollection) {
+        this(path, RrdMongoDBBackendFactory.wrap(rrdCollection), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * <p>Constructor for RrdMongoDBBackend.</p>
+     *
+     * @param path a {@link java.lang.String} object.
+     * @param rrdCollection a {@link org.rrd4j.core.RrdMongoDBCollection} object.
+     * @param chunkSize maximal size of the archive data chunks written by this backend
+     */
+    public RrdMongoDBBackend(String path, RrdMongoDBCollection rrdCollection, int chunkSize) {
         super(path);
         this.rrdCollection = rrdCollection;
+        this.chunkSize = chunkSize;
 
-        BasicDBObject query = new BasicDBObject();
-        query.put("path", path);
-        DBObject rrdObject = rrdCollection.findOne(query);
+        BasicDBObject fields = new BasicDBObject();
+        fields.put(LENGTH, 1);
+        fields.put(OFFSETS, 1);
+        fields.put(PRELOAD, 1);
+        fields.put(LEGACY, 1);
+        DBObject rrdObject = rrdCollection.findOne(getQuery(), fields);
         if (rrdObject != null) {
-            this.buffer = (byte[]) rrdObject.get("rrd");
+            if (rrdObject.get(LEGACY) != null) {
+                this.buffer = (byte[]) rrdObject.get(LEGACY);
+            }
+            else if (rrdObject.get(OFFSETS) != null) {
+                this.buffer = new byte[((Number) rrdObject.get(LENGTH)).intValue()];
+                this.offsets = toIntArray(rrdObject.get(OFFSETS));
+                int[] preload = toIntArray(rrdObject.get(PRELOAD));
+                BitSet chunks = new BitSet();
+                for (int chunk : preload) {
+                    chunks.set(chunk);
+                }
+                loadChunks(chunks);
+            }
+        }
+    }
+
+    private static int[] toIntArray(Object list) {
+        List<?> values = (List<?>) list;
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ((Number) values.get(i)).intValue();
+        }
+        return array;
+    }
+
+    private static List<Integer> toList(int[] array) {
+        List<Integer> list = new ArrayList<Integer>(array.length);
+        for (int value : array) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private DBObject getQuery() {
+        return new BasicDBObject("path", getPath());
+    }
+
+    private int getChunkEnd(int chunk) {
+        return chunk + 1 < offsets.length ? offsets[chunk + 1] : buffer.length;
+    }
+
+    // index of the chunk holding the given offset
+    private int getChunk(long offset) {
+        int low = 0, high = offsets.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= offset) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
         }
+        return low;
+    }
+
+    private void loadChunks(BitSet chunks) {
+        chunks.andNot(loadedChunks);
+        if (chunks.isEmpty()) {
+            return;
+        }
+        BasicDBObject fields = new BasicDBObject();
+        for (int chunk = chunks.nextSetBit(0); chunk >= 0; chunk = chunks.nextSetBit(chunk + 1)) {
+            fields.put(CHUNK_PREFIX + chunk, 1);
+        }
+        DBObject rrdObject = rrdCollection.findOne(getQuery(), fields);
+        for (int chunk = chunks.nextSetBit(0); chunk >= 0; chunk = chunks.nextSetBit(chunk + 1)) {
+            byte[] bytes = rrdObject != null ? (byte[]) rrdObject.get(CHUNK_PREFIX + chunk) : null;
+            if (bytes == null || bytes.length != getChunkEnd(chunk) - offsets[chunk]) {
+                throw new IllegalStateException("Missing chunk " + chunk + " of RRD " + getPath());
+            }
+            System.arraycopy(bytes, 0, buffer, offsets[chunk], bytes.length);
+            loadedChunks.set(chunk);
+        }
+    }
+
+    private void ensureLoaded(long offset, int length) throws IOException {
+        if (offsets != null && length > 0 && offset + length <= buffer.length) {
+            BitSet chunks = new BitSet();
+            chunks.set(getChunk(offset), getChunk(offset + length - 1) + 1);
+            try {
+                loadChunks(chunks);
+            }
+            catch (IllegalStateException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * <p>read.</p>
+     *
+     * @param offset a long.
+     * @param bytes an array of byte.
+     * @throws java.io.IOException if any.
+     */
+    protected synchronized void read(long offset, byte[] bytes) throws IOException {
+        ensureLoaded(offset, bytes.length);
+        super.read(offset, bytes);
     }
 
     /**
@@ -41,24 +180,107 @@ public class RrdMongoDBBackend extends RrdByteArrayBackend {
      * @throws java.io.IOException if any.
      */
     protected synchronized void write(long offset, byte[] bytes) throws IOException {
+        // chunks are written as a whole, the bytes around the written ones must be loaded
+        ensureLoaded(offset, bytes.length);
         super.write(offset, bytes);
+        if (offsets != null && bytes.length > 0) {
+            dirtyChunks.set(getChunk(offset), getChunk(offset + bytes.length - 1) + 1);
+        }
         dirty = true;
     }
 
     /** {@inheritDoc} */
-    @Override
-    public void close() throws IOException {
-        if (dirty) {
-            BasicDBObject query = new BasicDBObject();
-            query.put("path", getPath());
-
-            DBObject rrdObject = rrdCollection.findOne(query);
-            if (rrdObject == null) {
-                rrdObject = new BasicDBObject();
-                rrdObject.put("path", getPath());
+    protected synchronized void setLength(long length) throws IOException {
+        super.setLength(length);
+        offsets = null;
+        loadedChunks.clear();
+        dirtyChunks.clear();
+        dirty = true;
+    }
+
+    /**
+     * Splits the RRD in chunks: header and datasources, then for each archive its definition
+     * followed by its data, cut every chunkSize bytes.
+     *
+     * @return the preloaded chunks
+     */
+    private List<Integer> split() {
+        List<Integer> starts = new ArrayList<Integer>();
+        List<Integer> preload = new ArrayList<Integer>();
+        ByteBuffer rrd = ByteBuffer.wrap(buffer);
+        long arcStart = -1;
+        if (buffer.length >= RrdLayout.HEADER_SIZE) {
+            int dsCount = rrd.getInt(48);
+            int arcCount = rrd.getInt(52);
+            arcStart = RrdLayout.HEADER_SIZE + (long) dsCount * RrdLayout.DS_SIZE;
+            starts.add(0);
+            preload.add(0);
+            for (int i = 0; i < arcCount && arcStart >= 0; i++) {
+                if (dsCount <= 0 || arcStart + RrdLayout.ARC_DEF_SIZE > buffer.length) {
+                    arcStart = -1;
+                    break;
+                }
+                int rows = rrd.getInt((int) arcStart + RrdLayout.ARC_DEF_SIZE - 4);
+                long arcEnd = arcStart + RrdLayout.getArchiveSize(dsCount, rows);
+                if (rows <= 0 || arcEnd > buffer.length) {
+                    arcStart = -1;
+                    break;
+                }
+                preload.add(starts.size());
+                starts.add((int) arcStart);
+                for (long start = arcStart + RrdLayout.ARC_DEF_SIZE; start < arcEnd; start += chunkSize) {
+                    starts.add((int) start);
+                }
+                arcStart = arcEnd;
             }
-            rrdObject.put("rrd", buffer);
-            rrdCollection.save(rrdObject);
         }
+        if (arcStart != buffer.length) {
+            // not a RRD, use fixed size chunks
+            starts.clear();
+            preload.clear();
+            for (int start = 0; start < buffer.length; start += chunkSize) {
+                starts.add(start);
+            }
+        }
+        offsets = new int[starts.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = starts.get(i);
+        }
+        return preload;
+    }
+
+    /**
+     * Stores the modified chunks. A RRD not stored as chunks yet is stored as a whole.
+     */
+    synchronized void flush() {
+        if (!dirty || buffer == null) {
+            return;
+        }
+        BasicDBObject set = new BasicDBObject();
+        BasicDBObject update = new BasicDBObject("$set", set);
+        boolean upsert = offsets == null;
+        if (upsert) {
+            List<Integer> preload = split();
+            set.put(LENGTH, buffer.length);
+            set.put(OFFSETS, toList(offsets));
+            set.put(PRELOAD, preload);
+            update.put("$unset", new BasicDBObject(LEGACY, 1));
+            loadedChunks.set(0, offsets.length);
+            dirtyChunks.set(0, offsets.length);
+        }
+        for (int chunk = dirtyChunks.nextSetBit(0); chunk >= 0; chunk = dirtyChunks.nextSetBit(chunk + 1)) {
+            byte[] bytes = new byte[getChunkEnd(chunk) - offsets[chunk]];
+            System.arraycopy(buffer, offsets[chunk], bytes, 0, bytes.length);
+            set.put(CHUNK_PREFIX + chunk, bytes);
+        }
+        rrdCollection.update(getQuery(), update, upsert);
+        dirtyChunks.clear();
+        dirty = false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        flush();
     }
 }
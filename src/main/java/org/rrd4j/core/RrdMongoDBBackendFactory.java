@@ -4,15 +4,19 @@ import java.io.IOException;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 
 /**
  * {@link org.rrd4j.core.RrdBackendFactory} that uses <a href="http://www.mongodb.org/">MongoDB</a> for data storage. Construct a
- * MongoDB {@link com.mongodb.DBCollection} and pass it via the constructor.
+ * MongoDB {@link com.mongodb.DBCollection} and pass it via the constructor.<p>
+ *
+ * See {@link org.rrd4j.core.RrdMongoDBBackend} for the layout of the stored documents.
  *
  * @author Mathias Bogaert
  */
 public class RrdMongoDBBackendFactory extends RrdBackendFactory {
-    private final DBCollection rrdCollection;
+    private final RrdMongoDBCollection rrdCollection;
+    private volatile int chunkSize = RrdMongoDBBackend.DEFAULT_CHUNK_SIZE;
 
     /**
      * Creates a RrdMongoDBBackendFactory. Make sure that the passed {@link com.mongodb.DBCollection} has a safe write
@@ -21,19 +25,70 @@ public class RrdMongoDBBackendFactory extends RrdBackendFactory {
      * @param rrdCollection the collection to use for storing RRD byte data
      */
     public RrdMongoDBBackendFactory(DBCollection rrdCollection) {
+        this(wrap(rrdCollection));
+    }
+
+    /**
+     * Creates a RrdMongoDBBackendFactory storing RRDs in any implementation of the collection API.
+     *
+     * @param rrdCollection the collection to use for storing RRD byte data
+     */
+    public RrdMongoDBBackendFactory(RrdMongoDBCollection rrdCollection) {
+        this(rrdCollection, true);
+    }
+
+    RrdMongoDBBackendFactory(RrdMongoDBCollection rrdCollection, boolean register) {
         this.rrdCollection = rrdCollection;
 
         // make sure we have an index on the path field
         rrdCollection.ensureIndex(new BasicDBObject("path", 1));
 
         // set the RRD backend factory
-        RrdBackendFactory.registerAndSetAsDefaultFactory(this);
+        if (register) {
+            RrdBackendFactory.registerAndSetAsDefaultFactory(this);
+        }
+    }
+
+    static RrdMongoDBCollection wrap(final DBCollection rrdCollection) {
+        return new RrdMongoDBCollection() {
+            public DBObject findOne(DBObject query, DBObject fields) {
+                return rrdCollection.findOne(query, fields);
+            }
+
+            public void update(DBObject query, DBObject update, boolean upsert) {
+                rrdCollection.update(query, update, upsert, false);
+            }
+
+            public void ensureIndex(DBObject keys) {
+                rrdCollection.ensureIndex(keys);
+            }
+        };
+    }
+
+    /**
+     * Sets the maximal size of the archive data chunks of the RRDs written from now on.
+     * Smaller chunks make updates cheaper, at the expense of more fields per document.
+     *
+     * @param chunkSize Chunk size in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return maximal size of the archive data chunks, in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
     }
 
     /** {@inheritDoc} */
     @Override
     protected RrdBackend open(String path, boolean readOnly) throws IOException {
-        return new RrdMongoDBBackend(path, rrdCollection);
+        return new RrdMongoDBBackend(path, rrdCollection, chunkSize);
     }
 
     /** {@inheritDoc} */
@@ -41,7 +96,8 @@ public class RrdMongoDBBackendFactory extends RrdBackendFactory {
     protected boolean exists(String path) throws IOException {
         BasicDBObject query = new BasicDBObject();
         query.put("path", path);
-        return rrdCollection.findOne(query) != null;
+        // do not load the RRD itself
+        return rrdCollection.findOne(query, new BasicDBObject("path", 1)) != null;
     }
 
     /** {@inheritDoc} */
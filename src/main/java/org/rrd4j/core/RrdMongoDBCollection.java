@@ -0,0 +1,37 @@
+package org.rrd4j.core;
+
+import com.mongodb.DBObject;
+
+/**
+ * The part of the MongoDB collection API used by {@link org.rrd4j.core.RrdMongoDBBackend}. The
+ * {@link org.rrd4j.core.RrdMongoDBBackendFactory} wraps a {@link com.mongodb.DBCollection} in this
+ * interface, other implementations can be used to run the backend without a MongoDB server.
+ *
+ * @author Mathias Bogaert
+ */
+public interface RrdMongoDBCollection {
+    /**
+     * Returns a single document.
+     *
+     * @param query  query matching the document
+     * @param fields fields to return, null for all of them
+     * @return the document, or null if there is none
+     */
+    DBObject findOne(DBObject query, DBObject fields);
+
+    /**
+     * Modifies a single document.
+     *
+     * @param query  query matching the document
+     * @param update modifications, such as <code>$set</code> and <code>$unset</code> operators
+     * @param upsert true to insert the document if it does not exist
+     */
+    void update(DBObject query, DBObject update, boolean upsert);
+
+    /**
+     * Creates an index if it does not exist yet.
+     *
+     * @param keys indexed fields
+     */
+    void ensureIndex(DBObject keys);
+}
@@ -3,8 +3,6 @@ package org.rrd4j.core;
 import java.io.IOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 import sun.nio.ch.DirectBuffer;
 
@@ -16,13 +14,11 @@ import sun.nio.ch.DirectBuffer;
 public class RrdNioBackend extends RrdRandomAccessFileBackend {
     private MappedByteBuffer byteBuffer;
 
-    private final Runnable syncRunnable = new Runnable() {
-        public void run() {
-            sync();
-        }
-    };
-
-    private ScheduledFuture<?> syncRunnableHandle = null;
+    private final RrdSyncThreadPool threadPool;
+    private final long syncPeriod;
+    // written since the last sync, the pool holds this backend until it is synced
+    private RrdSyncThreadPool.DirtyBackend dirty;
+    private volatile long dirtyBytes;
 
     /**
      * Creates RrdFileBackend object for the given file path, backed by java.nio.* classes.
@@ -35,6 +31,8 @@ public class RrdNioBackend extends RrdRandomAccessFileBackend {
      */
     protected RrdNioBackend(String path, boolean readOnly, RrdSyncThreadPool threadPool, int syncPeriod) throws IOException {
         super(path, readOnly);
+        this.threadPool = threadPool;
+        this.syncPeriod = syncPeriod * 1000L;
         try {
             mapFile();
         }
@@ -46,15 +44,6 @@ public class RrdNioBackend extends RrdRandomAccessFileBackend {
             super.close();
             throw rte;
         }
-        try {
-            if (!readOnly) {
-                syncRunnableHandle = threadPool.scheduleWithFixedDelay(syncRunnable, syncPeriod, syncPeriod, TimeUnit.SECONDS);
-            }
-        } catch (RuntimeException rte) {
-            unmapFile();
-            super.close();
-            throw rte;
-        }
     }
 
     private void mapFile() throws IOException {
@@ -98,6 +87,11 @@ public class RrdNioBackend extends RrdRandomAccessFileBackend {
         if (byteBuffer != null) {
             byteBuffer.position((int) offset);
             byteBuffer.put(b);
+            dirtyBytes += b.length;
+            threadPool.addDirtyBytes(b.length);
+            if (dirty == null) {
+                dirty = threadPool.markDirty(this, syncPeriod);
+            }
         }
         else {
             throw new IOException("Write failed, file " + getPath() + " not mapped for I/O");
@@ -127,10 +121,8 @@ public class RrdNioBackend extends RrdRandomAccessFileBackend {
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public synchronized void close() throws IOException {
-        // cancel synchronization
         try {
             if (!readOnly) {
-                syncRunnableHandle.cancel(false);
                 sync();
             }
             unmapFile();
@@ -148,5 +140,28 @@ public class RrdNioBackend extends RrdRandomAccessFileBackend {
         if (byteBuffer != null) {
             byteBuffer.force();
         }
+        if (dirty != null) {
+            threadPool.markClean(dirty);
+            dirty = null;
+            threadPool.removeDirtyBytes(dirtyBytes);
+            dirtyBytes = 0;
+        }
+    }
+
+    /**
+     * Syncs the mapping if it was written since the last sync.
+     *
+     * @return true if the mapping was synced
+     */
+    synchronized boolean syncIfDirty() {
+        if (dirty != null) {
+            sync();
+            return true;
+        }
+        return false;
+    }
+
+    long getDirtyBytes() {
+        return dirtyBytes;
     }
 }
@@ -0,0 +1,192 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Backend storing RRD bytes in a slice of a direct memory arena owned by a
+ * {@link org.rrd4j.core.RrdOffHeapBackendFactory}. Reads are lock-free, each one uses its own
+ * view of the slice. Writes are serialized and bump a sequence number, which stays odd for the
+ * whole of a sample update: the factory copies a RRD only between two updates, and other threads
+ * wait for the update to end before reading. Reads are retried when the sequence changed meanwhile,
+ * so they never see a partial update, nor a slice released and reused by another RRD.
+ */
+public class RrdOffHeapBackend extends RrdBackend {
+    private final RrdOffHeapBackendFactory factory;
+    private volatile ByteBuffer slice;
+    // odd while a write or an update is in progress, bumped by 2 when the slice changes
+    private volatile int sequence;
+    // sample updates in progress, guarded by the backend
+    private int updates;
+    // thread running the sample update, which reads its own writes
+    private volatile Thread updater;
+
+    /**
+     * <p>Constructor for RrdOffHeapBackend.</p>
+     *
+     * @param path    Storage ID
+     * @param factory Factory which owns the arenas
+     */
+    protected RrdOffHeapBackend(String path, RrdOffHeapBackendFactory factory) {
+        super(path);
+        this.factory = factory;
+    }
+
+    /**
+     * <p>write.</p>
+     *
+     * @param offset a long.
+     * @param bytes an array of byte.
+     * @throws java.io.IOException if any.
+     */
+    protected synchronized void write(long offset, byte[] bytes) throws IOException {
+        ByteBuffer view = view(offset, bytes.length);
+        if (updates > 0) {
+            view.put(bytes);
+            return;
+        }
+        sequence++;
+        try {
+            view.put(bytes);
+        }
+        finally {
+            sequence++;
+        }
+    }
+
+    /** {@inheritDoc} */
+    protected synchronized void beginUpdate() {
+        if (updates++ == 0) {
+            updater = Thread.currentThread();
+            sequence++;
+        }
+    }
+
+    /** {@inheritDoc} */
+    protected synchronized void commitUpdate() {
+        endUpdate();
+    }
+
+    /** {@inheritDoc} */
+    protected synchronized void abortUpdate() {
+        endUpdate();
+    }
+
+    private void endUpdate() {
+        if (updates > 0 && --updates == 0) {
+            sequence++;
+            updater = null;
+        }
+    }
+
+    /**
+     * <p>read.</p>
+     *
+     * @param offset a long.
+     * @param bytes an array of byte.
+     * @throws java.io.IOException if any.
+     */
+    protected void read(long offset, byte[] bytes) throws IOException {
+        while (true) {
+            int before = sequence;
+            if ((before & 1) == 0 || updater == Thread.currentThread()) {
+                view(offset, bytes.length).get(bytes);
+                if (sequence == before) {
+                    return;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private ByteBuffer view(long offset, int length) throws IOException {
+        ByteBuffer current = slice;
+        if (current == null || offset < 0 || offset + length > current.capacity()) {
+            throw new IOException("Not enough bytes available in memory; RRD " + getPath());
+        }
+        ByteBuffer view = current.duplicate();
+        view.position((int) offset);
+        return view;
+    }
+
+    /**
+     * Returns the number of RRD bytes held in memory.
+     *
+     * @return Number of all RRD bytes.
+     */
+    public long getLength() {
+        ByteBuffer current = slice;
+        return current != null ? current.capacity() : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Reserves a section of an arena as a RRD storage, the previous section is released.
+     */
+    protected synchronized void setLength(long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Illegal length: " + length);
+        }
+        ByteBuffer previous = slice;
+        sequence += 2;
+        slice = factory.allocate((int) length);
+        if (previous != null) {
+            factory.free(previous);
+        }
+    }
+
+    /**
+     * Copies all RRD bytes, retrying while a write is in progress.
+     *
+     * @return a consistent copy of the RRD bytes
+     */
+    byte[] snapshot() {
+        while (true) {
+            int before = sequence;
+            if ((before & 1) == 0) {
+                ByteBuffer current = slice;
+                byte[] bytes = new byte[current != null ? current.capacity() : 0];
+                if (current != null) {
+                    current.duplicate().get(bytes);
+                }
+                if (sequence == before) {
+                    return bytes;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Returns the arena section to the factory, called once the storage is deleted.
+     */
+    synchronized void release() {
+        ByteBuffer previous = slice;
+        sequence += 2;
+        slice = null;
+        if (previous != null) {
+            factory.free(previous);
+        }
+    }
+
+    /**
+     * This method is required by the base class definition, but it does not
+     * releases any memory resources at all.
+     *
+     * @throws java.io.IOException if any.
+     */
+    public void close() throws IOException {
+        // NOP
+    }
+
+    /**
+     * This method is overridden to disable high-level caching in frontend RRD4J classes.
+     *
+     * @return Always returns <code>false</code>. There is no need to cache anything in high-level classes
+     *         since all RRD bytes are already in memory.
+     */
+    protected boolean isCachingAllowed() {
+        return false;
+    }
+}
@@ -0,0 +1,376 @@
+package org.rrd4j.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory class which creates actual {@link org.rrd4j.core.RrdOffHeapBackend} objects. Like the
+ * {@link org.rrd4j.core.RrdMemoryBackendFactory MEMORY} factory, RRDs are held in memory and
+ * addressed by an ID, but their bytes live outside of the Java heap: they are carved from large
+ * direct buffers (arenas) shared by many RRDs, so millions of small RRDs do not weigh on the
+ * garbage collector. Sections released by {@link #delete(String)} are reused for RRDs of the same
+ * size.<p>
+ *
+ * <p>Calling {@link org.rrd4j.core.RrdDb#close() close()} on RrdDb objects does not release any memory at all.
+ * To release allocated memory, you'll have to call {@link #delete(java.lang.String) delete(path)}
+ * method of this class.</p>
+ *
+ * <p>All RRDs can be saved to a single file with {@link #checkpoint(File)}, periodically with
+ * {@link #startCheckpoints(File, long, TimeUnit)}, and loaded back at startup with
+ * {@link #restore(File)}:</p>
+ * <pre>
+ * RrdOffHeapBackendFactory factory = new RrdOffHeapBackendFactory();
+ * factory.restore(file);
+ * factory.startCheckpoints(file, 5, TimeUnit.MINUTES);
+ * ...
+ * factory.stopCheckpoints();
+ * </pre>
+ */
+public class RrdOffHeapBackendFactory extends RrdBackendFactory {
+    /**
+     * Default size of an arena, in bytes.
+     */
+    public static final int DEFAULT_ARENA_SIZE = 64 * 1024 * 1024;
+
+    private static final int CHECKPOINT_MAGIC = 0x52344f48;
+    private static final int CHECKPOINT_VERSION = 1;
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String BAK_SUFFIX = ".bak";
+
+    protected final ConcurrentMap<String, RrdOffHeapBackend> backends = new ConcurrentHashMap<String, RrdOffHeapBackend>();
+
+    private final int arenaSize;
+    private final List<ByteBuffer> arenas = new ArrayList<ByteBuffer>();
+    private final Map<Integer, List<ByteBuffer>> freeSlices = new HashMap<Integer, List<ByteBuffer>>();
+    private ByteBuffer arena;
+    private long allocatedBytes;
+
+    private final Object checkpointLock = new Object();
+    private ScheduledExecutorService checkpointExecutor;
+    private File checkpointFile;
+    private volatile IOException checkpointError;
+
+    /**
+     * Creates a factory allocating arenas of {@value #DEFAULT_ARENA_SIZE} bytes.
+     */
+    public RrdOffHeapBackendFactory() {
+        this(DEFAULT_ARENA_SIZE);
+    }
+
+    /**
+     * Creates a factory allocating arenas of the given size. RRDs larger than an arena get a
+     * direct buffer of their own.
+     *
+     * @param arenaSize Size of an arena, in bytes
+     */
+    public RrdOffHeapBackendFactory(int arenaSize) {
+        if (arenaSize <= 0) {
+            throw new IllegalArgumentException("Invalid arena size: " + arenaSize);
+        }
+        this.arenaSize = arenaSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Creates RrdOffHeapBackend object.
+     */
+    protected RrdBackend open(String id, boolean readOnly) throws IOException {
+        RrdOffHeapBackend backend = backends.get(id);
+        if (backend == null) {
+            backend = new RrdOffHeapBackend(id, this);
+            RrdOffHeapBackend previous = backends.putIfAbsent(id, backend);
+            if (previous != null) {
+                backend = previous;
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Method to determine if a storage with the given ID already exists.
+     */
+    protected boolean exists(String id) {
+        return backends.containsKey(id);
+    }
+
+    /** {@inheritDoc} */
+    protected boolean shouldValidateHeader(String path) throws IOException {
+        return false;
+    }
+
+    /**
+     * Removes the storage with the given ID from the memory. Its section of the arena is
+     * reused by the next RRD of the same size.
+     *
+     * @param id Storage ID
+     * @return true if the storage existed
+     */
+    public boolean delete(String id) {
+        RrdOffHeapBackend backend = backends.remove(id);
+        if (backend != null) {
+            backend.release();
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    synchronized ByteBuffer allocate(int length) {
+        ByteBuffer slice;
+        List<ByteBuffer> free = freeSlices.get(length);
+        if (free != null && !free.isEmpty()) {
+            slice = free.remove(free.size() - 1);
+            // a reused section must look like a new one
+            ByteBuffer view = slice.duplicate();
+            while (view.hasRemaining()) {
+                view.put((byte) 0);
+            }
+        }
+        else if (length > arenaSize) {
+            slice = ByteBuffer.allocateDirect(length);
+            arenas.add(slice);
+        }
+        else {
+            // keep sections 8 bytes aligned
+            int alignedLength = (length + 7) & ~7;
+            if (arena == null || arena.remaining() < length) {
+                arena = ByteBuffer.allocateDirect(arenaSize);
+                arenas.add(arena);
+            }
+            ByteBuffer view = arena.duplicate();
+            view.limit(view.position() + length);
+            slice = view.slice();
+            arena.position(Math.min(arena.limit(), arena.position() + alignedLength));
+        }
+        allocatedBytes += length;
+        return slice;
+    }
+
+    synchronized void free(ByteBuffer slice) {
+        int length = slice.capacity();
+        List<ByteBuffer> free = freeSlices.get(length);
+        if (free == null) {
+            free = new ArrayList<ByteBuffer>();
+            freeSlices.put(length, free);
+        }
+        free.add(slice);
+        allocatedBytes -= length;
+    }
+
+    /**
+     * @return number of direct buffers allocated so far, arenas and oversized RRDs
+     */
+    public synchronized int getArenaCount() {
+        return arenas.size();
+    }
+
+    /**
+     * @return number of bytes used by the RRDs currently held
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Saves all RRDs to a single file. The file is written next to its destination, then
+     * renamed, so a crash never leaves a truncated checkpoint behind. The previous checkpoint is
+     * moved aside with a <code>.bak</code> suffix until the new one is in place, and used by
+     * {@link #restore(File)} if the crash happened in between. Each RRD is copied
+     * consistently, but RRDs updated during the checkpoint may be saved at different points
+     * in time.
+     *
+     * @param file Checkpoint file
+     * @return number of RRDs saved
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public int checkpoint(File file) throws IOException {
+        synchronized (checkpointLock) {
+            return writeCheckpoint(file);
+        }
+    }
+
+    private int writeCheckpoint(File file) throws IOException {
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(tmp);
+        int count = 0;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            for (RrdOffHeapBackend backend : backends.values()) {
+                byte[] bytes = backend.snapshot();
+                out.writeBoolean(true);
+                out.writeUTF(backend.getPath());
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                count++;
+            }
+            out.writeBoolean(false);
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+        File bak = new File(file.getPath() + BAK_SUFFIX);
+        if (file.exists()) {
+            if (bak.exists() && !bak.delete()) {
+                throw new IOException("Could not delete " + bak);
+            }
+            if (!file.renameTo(bak)) {
+                throw new IOException("Could not rename " + file + " to " + bak);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+        // a stale backup is harmless, restore() only reads it without the checkpoint
+        bak.delete();
+        return count;
+    }
+
+    /**
+     * Loads the RRDs saved by {@link #checkpoint(File)}. RRDs with the same ID are replaced,
+     * others are kept. If the file is missing because a checkpoint was interrupted, the previous
+     * checkpoint is loaded instead.
+     *
+     * @param file Checkpoint file
+     * @return number of RRDs loaded, 0 if neither the file nor its previous version exist
+     * @throws java.io.IOException Thrown in case of I/O error or if the file is not a checkpoint
+     */
+    public int restore(File file) throws IOException {
+        if (!file.exists()) {
+            File bak = new File(file.getPath() + BAK_SUFFIX);
+            if (!bak.exists()) {
+                return 0;
+            }
+            file = bak;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        int count = 0;
+        try {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+                throw new IOException("Invalid checkpoint file: " + file);
+            }
+            while (in.readBoolean()) {
+                String id = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                RrdOffHeapBackend backend = new RrdOffHeapBackend(id, this);
+                backend.setLength(bytes.length);
+                backend.write(0, bytes);
+                RrdOffHeapBackend previous = backends.put(id, backend);
+                if (previous != null) {
+                    previous.release();
+                }
+                count++;
+            }
+        }
+        finally {
+            in.close();
+        }
+        return count;
+    }
+
+    /**
+     * Starts saving all RRDs to the given file at a fixed rate, on a daemon thread. A failed
+     * checkpoint is retried at the next period and reported by {@link #getCheckpointError()}.
+     *
+     * @param file   Checkpoint file
+     * @param period Delay between the end of a checkpoint and the start of the next one
+     * @param unit   Unit of the period
+     */
+    public void startCheckpoints(final File file, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Invalid checkpoint period: " + period);
+        }
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                new RrdSyncThreadPool.DaemonThreadFactory("RRD4J Checkpoint for " + this));
+        ScheduledExecutorService previous;
+        synchronized (this) {
+            previous = checkpointExecutor;
+            checkpointExecutor = executor;
+            checkpointFile = file;
+        }
+        stopCheckpointExecutor(previous);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    checkpoint(file);
+                    checkpointError = null;
+                }
+                catch (IOException e) {
+                    checkpointError = e;
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops the periodic checkpoints and saves all RRDs a last time.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error during the last checkpoint
+     */
+    public void stopCheckpoints() throws IOException {
+        ScheduledExecutorService executor;
+        File file;
+        synchronized (this) {
+            executor = checkpointExecutor;
+            file = checkpointFile;
+            checkpointExecutor = null;
+        }
+        if (executor != null) {
+            stopCheckpointExecutor(executor);
+            checkpoint(file);
+        }
+    }
+
+    // waits for the running checkpoint without holding the factory lock, needed by allocate()
+    private static void stopCheckpointExecutor(ScheduledExecutorService executor) {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the error of the last periodic checkpoint, null if it succeeded
+     */
+    public IOException getCheckpointError() {
+        return checkpointError;
+    }
+
+    /**
+     * Returns the name of this factory.
+     *
+     * @return Factory name (equals to "OFFHEAP").
+     */
+    public String getName() {
+        return "OFFHEAP";
+    }
+}
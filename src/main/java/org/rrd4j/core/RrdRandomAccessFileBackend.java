@@ -14,6 +14,13 @@ public class RrdRandomAccessFileBackend extends  RrdFileBackend {
      */
     protected final RandomAccessFile rafile;
 
+    // durability of the writes, when set by the factory
+    private RrdRandomAccessFileBackendFactory owner;
+    private volatile RrdFileSyncManager syncManager;
+    private final Object syncLock = new Object();
+    private volatile boolean dirty;
+    private boolean closed;
+
     /**
      * Creates RrdFileBackend object for the given file path, backed by RandomAccessFile object.
      *
@@ -26,13 +33,76 @@ public class RrdRandomAccessFileBackend extends  RrdFileBackend {
         this.rafile = new RandomAccessFile(path, readOnly ? "r" : "rw");
     }
 
+    /**
+     * Creates RrdFileBackend object for the given file path, using an already opened file.
+     *
+     * @param path     Path to a file
+     * @param readOnly True, if file should be open in a read-only mode. False otherwise
+     * @param rafile   File opened for the given path
+     */
+    protected RrdRandomAccessFileBackend(String path, boolean readOnly, RandomAccessFile rafile) {
+        super(path, readOnly);
+        this.rafile = rafile;
+    }
+
     /**
      * Closes the underlying RRD file.
      *
      * @throws java.io.IOException Thrown in case of I/O error
      */
     public void close() throws IOException {
-        rafile.close();
+        try {
+            closing();
+        }
+        finally {
+            rafile.close();
+        }
+    }
+
+    void attach(RrdRandomAccessFileBackendFactory owner, RrdFileSyncManager syncManager) {
+        this.owner = owner;
+        this.syncManager = syncManager;
+    }
+
+    void setSyncManager(RrdFileSyncManager syncManager) {
+        this.syncManager = syncManager;
+        // pending writes were reported to the previous manager
+        if (dirty && syncManager != null) {
+            syncManager.markDirty(this);
+        }
+    }
+
+    /**
+     * Forces the pending writes to the disk before the file is released.
+     */
+    void closing() throws IOException {
+        try {
+            syncIfDirty();
+        }
+        finally {
+            synchronized (syncLock) {
+                closed = true;
+            }
+            if (owner != null) {
+                owner.detach(this);
+            }
+        }
+    }
+
+    /**
+     * Forces the file content to the disk, if it was written since the last call.
+     *
+     * @return true if the file was forced
+     */
+    boolean syncIfDirty() throws IOException {
+        synchronized (syncLock) {
+            if (!dirty || closed) {
+                return false;
+            }
+            dirty = false;
+            rafile.getChannel().force(false);
+            return true;
+        }
     }
 
     /**
@@ -45,6 +115,11 @@ public class RrdRandomAccessFileBackend extends  RrdFileBackend {
     protected void write(long offset, byte[] b) throws IOException {
         rafile.seek(offset);
         rafile.write(b);
+        RrdFileSyncManager manager = syncManager;
+        if (manager != null && !dirty) {
+            dirty = true;
+            manager.markDirty(this);
+        }
     }
 
     /**
@@ -70,4 +145,26 @@ public class RrdRandomAccessFileBackend extends  RrdFileBackend {
     protected void setLength(long length) throws IOException {
         rafile.setLength(length);
     }
+
+    /**
+     * Forces the bytes written so far to the disk.
+     *
+     * @throws java.io.IOException if any.
+     */
+    protected void sync() throws IOException {
+        rafile.getFD().sync();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * With {@link RrdRandomAccessFileBackendFactory.Durability#GROUP_COMMIT group commit}, waits
+     * until the writes of the update are forced to the disk.
+     */
+    protected void commitUpdate() throws IOException {
+        RrdFileSyncManager manager = syncManager;
+        if (manager != null) {
+            manager.commit(this);
+        }
+    }
 }
@@ -1,20 +1,135 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Factory class which creates actual {@link org.rrd4j.core.RrdRandomAccessFileBackend} objects. This was the default
  * backend factory in Rrd4j before 1.4.0 release.
+ * <p>
+ * The durability of the updates is set with {@link #setDurability(Durability, long, TimeUnit)}, for all the
+ * RRD files opened by the factory.
  *
  */
 public class RrdRandomAccessFileBackendFactory extends RrdFileBackendFactory {
+    /**
+     * Durability policy of the RRD files opened by a factory.
+     */
+    public enum Durability {
+        /**
+         * Writes are left to the operating system, the default.
+         */
+        NONE,
+        /**
+         * The files written are forced to the disk at each interval, in a background task.
+         */
+        PERIODIC,
+        /**
+         * Like {@link #PERIODIC}, but each sample update waits for the sync of its writes. Updates made to
+         * any RRD during an interval are committed together by a single batch of syncs.
+         */
+        GROUP_COMMIT
+    }
+
+    private volatile RrdFileSyncManager syncManager;
+    private final Set<RrdRandomAccessFileBackend> openBackends =
+            Collections.newSetFromMap(new ConcurrentHashMap<RrdRandomAccessFileBackend, Boolean>());
+
     /**
      * {@inheritDoc}
      *
      * Creates RrdFileBackend object for the given file path.
      */
     protected RrdBackend open(String path, boolean readOnly) throws IOException {
-        return new RrdRandomAccessFileBackend(path, readOnly);
+        return attach(new RrdRandomAccessFileBackend(path, readOnly), readOnly);
+    }
+
+    synchronized RrdBackend attach(RrdRandomAccessFileBackend backend, boolean readOnly) {
+        if (!readOnly) {
+            backend.attach(this, syncManager);
+            openBackends.add(backend);
+        }
+        return backend;
+    }
+
+    void detach(RrdRandomAccessFileBackend backend) {
+        openBackends.remove(backend);
+    }
+
+    /**
+     * Sets the durability policy of all the RRD files of this factory, already opened or opened
+     * from now on. The writes pending for the previous policy are forced to the disk.
+     *
+     * @param durability durability policy
+     * @param interval   time between two batches of syncs, ignored for {@link Durability#NONE}
+     * @param unit       unit of the interval
+     */
+    public synchronized void setDurability(Durability durability, long interval, TimeUnit unit) {
+        long millis = unit.toMillis(interval);
+        if (durability != Durability.NONE && millis <= 0) {
+            throw new IllegalArgumentException("Invalid sync interval: " + interval + " " + unit);
+        }
+        RrdFileSyncManager previous = syncManager;
+        syncManager = durability == Durability.NONE ? null : new RrdFileSyncManager(durability, millis, getName());
+        for (RrdRandomAccessFileBackend backend : openBackends) {
+            backend.setSyncManager(syncManager);
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Returns the durability policy of the files opened by this factory.
+     *
+     * @return durability policy
+     */
+    public Durability getDurability() {
+        RrdFileSyncManager manager = syncManager;
+        return manager == null ? Durability.NONE : manager.getDurability();
+    }
+
+    /**
+     * Returns the number of files forced to the disk by the current durability policy.
+     *
+     * @return number of syncs
+     */
+    public long getSyncCount() {
+        RrdFileSyncManager manager = syncManager;
+        return manager == null ? 0 : manager.getSyncCount();
+    }
+
+    /**
+     * Returns the number of batches of syncs run by the current durability policy.
+     *
+     * @return number of batches forcing at least one file
+     */
+    public long getBatchCount() {
+        RrdFileSyncManager manager = syncManager;
+        return manager == null ? 0 : manager.getBatchCount();
+    }
+
+    /**
+     * Returns the average time of a batch of syncs.
+     *
+     * @return average batch time, in milliseconds
+     */
+    public double getAverageBatchTime() {
+        RrdFileSyncManager manager = syncManager;
+        return manager == null ? 0 : manager.getAverageBatchTime();
+    }
+
+    /**
+     * Returns the number of sample updates which waited for a group commit.
+     *
+     * @return number of committed updates
+     */
+    public long getCommitCount() {
+        RrdFileSyncManager manager = syncManager;
+        return manager == null ? 0 : manager.getCommitCount();
     }
 
     /**
@@ -26,11 +141,6 @@ public class RrdRandomAccessFileBackendFactory extends RrdFileBackendFactory {
         return Util.fileExists(path);
     }
 
-    /** {@inheritDoc} */
-    protected boolean shouldValidateHeader(String path) throws IOException {
-        return true;
-    }
-
     /**
      * <p>getName.</p>
      *
@@ -1,9 +1,6 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Backend which is used to store RRD data to ordinary files on the disk, using locking. This backend
@@ -11,12 +8,16 @@ import java.util.concurrent.atomic.AtomicLong;
  * parts of a RRD file in memory. Therefore, this backend is safe to be used when RRD files should
  * be shared between several JVMs at the same time. However, this backend is a little bit slow
  * since it does not use fast java.nio.* package (it's still based on the RandomAccessFile class).
+ * <p>
+ * Backends of the same JVM opened on the same file wait for each other in a fair queue, and share
+ * the file and its lock: it is handed from one to the next without being released, see
+ * {@link #getLockInfo()}.
  *
  */
 public class RrdSafeFileBackend extends RrdRandomAccessFileBackend {
-    private static final Counters counters = new Counters();
+    private static final RrdFileLockManager lockManager = RrdFileLockManager.INSTANCE;
 
-    private FileLock lock;
+    private RrdFileLockManager.Entry lock;
 
     /**
      * Creates RrdFileBackend object for the given file path, backed by RandomAccessFile object.
@@ -28,58 +29,29 @@ public class RrdSafeFileBackend extends RrdRandomAccessFileBackend {
      */
     public RrdSafeFileBackend(String path, long lockWaitTime, long lockRetryPeriod)
             throws IOException {
-        super(path, false);
-        try {
-            lockFile(lockWaitTime, lockRetryPeriod);
-        }
-        catch (IOException ioe) {
-            super.close();
-            throw ioe;
-        }
+        this(path, lockManager.lock(path, lockWaitTime, lockRetryPeriod));
     }
 
-    private void lockFile(long lockWaitTime, long lockRetryPeriod) throws IOException {
-        long entryTime = System.currentTimeMillis();
-        FileChannel channel = rafile.getChannel();
-        lock = channel.tryLock(0, Long.MAX_VALUE, false);
-        if (lock != null) {
-            counters.registerQuickLock();
-            return;
-        }
-        do {
-            try {
-                Thread.sleep(lockRetryPeriod);
-            }
-            catch (InterruptedException e) {
-                // NOP
-            }
-            lock = channel.tryLock(0, Long.MAX_VALUE, false);
-            if (lock != null) {
-                counters.registerDelayedLock();
-                return;
-            }
-        }
-        while (System.currentTimeMillis() - entryTime <= lockWaitTime);
-        counters.registerError();
-        throw new IOException("Could not obtain exclusive lock on file: " + getPath() +
-                "] after " + lockWaitTime + " milliseconds");
+    private RrdSafeFileBackend(String path, RrdFileLockManager.Entry lock) {
+        super(path, false, lock.getFile());
+        this.lock = lock;
     }
 
     /**
-     * <p>close.</p>
+     * Releases the lock. The file is closed once no other backend of this JVM waits for it.
      *
      * @throws java.io.IOException if any.
      */
     public void close() throws IOException {
-        try {
-            if (lock != null) {
-                lock.release();
-                lock = null;
-                counters.registerUnlock();
+        if (lock != null) {
+            RrdFileLockManager.Entry entry = lock;
+            lock = null;
+            try {
+                closing();
+            }
+            finally {
+                lockManager.unlock(entry);
             }
-        }
-        finally {
-            super.close();
         }
     }
 
@@ -93,45 +65,22 @@ public class RrdSafeFileBackend extends RrdRandomAccessFileBackend {
     }
 
     /**
-     * <p>getLockInfo.</p>
+     * Returns lock statistics: locks and unlocks, locks handed from one backend to another
+     * without being released, errors and a histogram of the lock wait times.
      *
      * @return a {@link java.lang.String} object.
      */
     public static String getLockInfo() {
-        return counters.getInfo();
+        return lockManager.getInfo();
     }
 
-    static class Counters {
-        final AtomicLong locks = new AtomicLong(0);
-        final AtomicLong quickLocks = new AtomicLong(0);
-        final AtomicLong unlocks = new AtomicLong(0);
-        final AtomicLong locked = new AtomicLong(0);
-        final AtomicLong errors = new AtomicLong(0);
-
-        void registerQuickLock() {
-            locks.getAndIncrement();
-            quickLocks.getAndIncrement();
-            locked.getAndIncrement();
-        }
-
-        void registerDelayedLock() {
-            locks.getAndIncrement();
-            locked.getAndIncrement();
-        }
-
-        void registerUnlock() {
-            unlocks.getAndIncrement();
-            locked.getAndDecrement();
-        }
-
-        void registerError() {
-            errors.getAndIncrement();
-        }
-
-        String getInfo() {
-            return "LOCKS=" + locks + ", " + "UNLOCKS=" + unlocks + ", " +
-                    "DELAYED_LOCKS=" + (locks.get() - quickLocks.get()) + ", " + "LOCKED=" + locked + ", " +
-                    "ERRORS=" + errors;
-        }
+    /**
+     * Returns the number of locks obtained per wait time: under 1, 10, 100, 1000, 10000 milliseconds,
+     * and longer.
+     *
+     * @return an array of counts, one per wait time bucket
+     */
+    public static long[] getLockWaitHistogram() {
+        return lockManager.getWaitHistogram();
     }
 }
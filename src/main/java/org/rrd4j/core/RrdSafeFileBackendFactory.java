@@ -14,7 +14,8 @@ public class RrdSafeFileBackendFactory extends RrdRandomAccessFileBackendFactory
     private static long lockWaitTime = LOCK_WAIT_TIME;
 
     /**
-     * Default time between two consecutive file locking attempts.
+     * Default time between two consecutive file locking attempts. Attempts start one millisecond
+     * apart, the delay doubles up to this period.
      */
     public static final long LOCK_RETRY_PERIOD = 50L;
     private static long lockRetryPeriod = LOCK_RETRY_PERIOD;
@@ -25,7 +26,7 @@ public class RrdSafeFileBackendFactory extends RrdRandomAccessFileBackendFactory
      * Creates RrdSafeFileBackend object for the given file path.
      */
     protected RrdBackend open(String path, boolean readOnly) throws IOException {
-        return new RrdSafeFileBackend(path, lockWaitTime, lockRetryPeriod);
+        return attach(new RrdSafeFileBackend(path, lockWaitTime, lockRetryPeriod), false);
     }
 
     /**
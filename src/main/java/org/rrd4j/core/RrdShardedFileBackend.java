@@ -0,0 +1,84 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+
+/**
+ * Backend created by {@link org.rrd4j.core.RrdShardedFileBackendFactory}. It keeps the RRD id as
+ * its path, and delegates the I/O to a file backend opened on the file the id maps to.
+ */
+public class RrdShardedFileBackend extends RrdBackend {
+    private final RrdBackend backend;
+
+    /**
+     * <p>Constructor for RrdShardedFileBackend.</p>
+     *
+     * @param path    RRD id
+     * @param backend Backend opened on the file storing the RRD
+     */
+    protected RrdShardedFileBackend(String path, RrdBackend backend) {
+        super(path);
+        this.backend = backend;
+    }
+
+    /**
+     * @return the backend opened on the file storing the RRD
+     */
+    public RrdBackend getFileBackend() {
+        return backend;
+    }
+
+    /** {@inheritDoc} */
+    protected void write(long offset, byte[] b) throws IOException {
+        backend.write(offset, b);
+    }
+
+    /** {@inheritDoc} */
+    protected void read(long offset, byte[] b) throws IOException {
+        backend.read(offset, b);
+    }
+
+    /** {@inheritDoc} */
+    public long getLength() throws IOException {
+        return backend.getLength();
+    }
+
+    /** {@inheritDoc} */
+    protected void setLength(long length) throws IOException {
+        backend.setLength(length);
+    }
+
+    /** {@inheritDoc} */
+    public void close() throws IOException {
+        backend.close();
+    }
+
+    /** {@inheritDoc} */
+    protected void sync() throws IOException {
+        backend.sync();
+    }
+
+    /** {@inheritDoc} */
+    protected void beginUpdate() throws IOException {
+        backend.beginUpdate();
+    }
+
+    /** {@inheritDoc} */
+    protected void commitUpdate() throws IOException {
+        backend.commitUpdate();
+    }
+
+    /** {@inheritDoc} */
+    protected void abortUpdate() {
+        backend.abortUpdate();
+    }
+
+    /** {@inheritDoc} */
+    protected boolean isCachingAllowed() {
+        return backend.isCachingAllowed();
+    }
+
+    /** {@inheritDoc} */
+    String getCanonicalPath() throws IOException {
+        return backend.getCanonicalPath();
+    }
+}
@@ -0,0 +1,267 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Backend factory storing RRDs as files spread over a tree of hashed directories, possibly on
+ * several mount points.<p>
+ *
+ * RRDs are identified by ids instead of file paths. The MD5 hash of an id selects one of the
+ * root directories, then a subdirectory per level of the tree, each level having
+ * {@link #getFanOut() fan out} subdirectories. The file itself is named after the id, with
+ * <code>/</code>, <code>\</code>, <code>:</code> and <code>%</code> escaped. With the default
+ * 256 subdirectories and 2 levels, two million RRDs give about 30 files per directory:
+ * <pre>
+ * RrdShardedFileBackendFactory factory = new RrdShardedFileBackendFactory(
+ *         RrdBackendFactory.getFactory("NIO"), new File("/data1/rrd"), new File("/data2/rrd"));
+ * RrdDb rrdDb = new RrdDb("router42/eth0.rrd", factory);  // in /data2/rrd/3f/a0/router42%2Feth0.rrd
+ * </pre>
+ * The factory can be made the {@link org.rrd4j.core.RrdBackendFactory#setDefaultFactory(String) default}
+ * one once registered, and is then used by the {@link org.rrd4j.core.RrdDbPool} too. The mapping
+ * depends on the number of roots, the fan out and the depth: they must not change once files are
+ * stored. RRDs stored as plain files are moved into the tree by {@link #migrate(String, String, boolean)}.
+ */
+public class RrdShardedFileBackendFactory extends RrdFileBackendFactory {
+    /**
+     * Default number of subdirectories of each directory of the tree.
+     */
+    public static final int DEFAULT_FAN_OUT = 256;
+
+    /**
+     * Default number of levels of subdirectories.
+     */
+    public static final int DEFAULT_DEPTH = 2;
+
+    private final RrdFileBackendFactory factory;
+    private final File[] roots;
+    private final int fanOut;
+    private final int depth;
+    private final int digits;
+
+    /**
+     * Creates a factory with the default fan out and depth.
+     *
+     * @param factory Factory opening the files, NIO for instance
+     * @param roots   Root directories of the trees
+     */
+    public RrdShardedFileBackendFactory(RrdBackendFactory factory, File... roots) {
+        this(factory, DEFAULT_FAN_OUT, DEFAULT_DEPTH, roots);
+    }
+
+    /**
+     * Creates a factory.
+     *
+     * @param factory Factory opening the files, NIO for instance
+     * @param fanOut  Number of subdirectories of each directory, between 2 and 65536
+     * @param depth   Number of levels of subdirectories, between 0 and 4
+     * @param roots   Root directories of the trees
+     */
+    public RrdShardedFileBackendFactory(RrdBackendFactory factory, int fanOut, int depth, File... roots) {
+        if (!(factory instanceof RrdFileBackendFactory)) {
+            throw new IllegalArgumentException("Not a file backend factory: " + factory.getName());
+        }
+        if (fanOut < 2 || fanOut > 65536) {
+            throw new IllegalArgumentException("Invalid fan out: " + fanOut);
+        }
+        if (depth < 0 || depth > 4) {
+            throw new IllegalArgumentException("Invalid depth: " + depth);
+        }
+        if (roots.length == 0) {
+            throw new IllegalArgumentException("No root directory");
+        }
+        this.factory = (RrdFileBackendFactory) factory;
+        this.roots = roots.clone();
+        this.fanOut = fanOut;
+        this.depth = depth;
+        this.digits = Integer.toHexString(fanOut - 1).length();
+    }
+
+    /**
+     * @return number of subdirectories of each directory of the tree
+     */
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * @return number of levels of subdirectories
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the file storing a RRD.
+     *
+     * @param path RRD id
+     * @return the file storing the RRD
+     */
+    public File getFile(String path) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("MD5").digest(path.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        long high = 0, low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (hash[i] & 0xFF);
+            low = (low << 8) | (hash[i + 8] & 0xFF);
+        }
+        File dir = roots[(int) ((low >>> 1) % roots.length)];
+        high >>>= 1;
+        for (int i = 0; i < depth; i++) {
+            String name = Integer.toHexString((int) (high % fanOut));
+            while (name.length() < digits) {
+                name = "0" + name;
+            }
+            dir = new File(dir, name);
+            high /= fanOut;
+        }
+        return new File(dir, escape(path));
+    }
+
+    private static String escape(String path) {
+        StringBuilder name = new StringBuilder(path.length() + 8);
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            switch (c) {
+                case '%':
+                    name.append("%25");
+                    break;
+                case '/':
+                    name.append("%2F");
+                    break;
+                case '\\':
+                    name.append("%5C");
+                    break;
+                case ':':
+                    name.append("%3A");
+                    break;
+                default:
+                    name.append(c);
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Creates the directories of the RRD file if needed.
+     */
+    protected RrdBackend open(String path, boolean readOnly) throws IOException {
+        File file = getFile(path);
+        if (!readOnly) {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+        }
+        return new RrdShardedFileBackend(path, factory.open(file.getPath(), readOnly));
+    }
+
+    /** {@inheritDoc} */
+    protected boolean exists(String path) {
+        return getFile(path).isFile();
+    }
+
+    /**
+     * Deletes a RRD.
+     *
+     * @param path RRD id
+     * @return true if the RRD was deleted
+     */
+    public boolean delete(String path) {
+        return getFile(path).delete();
+    }
+
+    /**
+     * Moves RRD files stored in a directory into the tree. A file is given the id of its path
+     * relative to the directory, with <code>/</code> separators: <code>dir/router42/eth0.rrd</code>
+     * gets the id <code>router42/eth0.rrd</code>. Files are renamed, or copied then deleted when
+     * the tree is on another file system.
+     *
+     * @param directory Directory holding the RRD files
+     * @param extension File extension of the RRD files
+     * @param recursive true if subdirectories should be migrated too
+     * @return number of files moved
+     * @throws java.io.IOException Thrown in case of I/O error, or if a RRD with the same id already
+     * exists in the tree
+     */
+    public int migrate(String directory, String extension, boolean recursive) throws IOException {
+        String base = new File(directory).getCanonicalPath() + File.separator;
+        int count = 0;
+        for (String source : RrdToolkit.getCanonicalPaths(directory, extension, recursive)) {
+            String id = source.substring(base.length()).replace(File.separatorChar, '/');
+            File target = getFile(id);
+            if (target.exists()) {
+                throw new IOException("RRD " + id + " already exists: " + target);
+            }
+            File dir = target.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+            File file = new File(source);
+            if (!file.renameTo(target)) {
+                copy(file, target);
+                if (!file.delete()) {
+                    throw new IOException("Could not delete " + file + " once copied to " + target);
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[65536];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+        if (!to.setLastModified(from.lastModified())) {
+            throw new IOException("Could not copy " + from + " to " + to);
+        }
+    }
+
+    /**
+     * @return the factory opening the files
+     */
+    public RrdBackendFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Returns the name of this factory.
+     *
+     * @return Factory name (equals to "SHARDED").
+     */
+    public String getName() {
+        return "SHARDED";
+    }
+}
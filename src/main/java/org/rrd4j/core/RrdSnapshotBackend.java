@@ -0,0 +1,62 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+
+/**
+ * Read-only backend holding a copy of the bytes of a RRD, used by {@link RrdDb#snapshot()}.
+ * The bytes never change, so they can be read without locking and cached by the RRD objects.
+ */
+class RrdSnapshotBackend extends RrdByteArrayBackend {
+
+    /**
+     * Factory opening a single snapshot.
+     */
+    static class Factory extends RrdBackendFactory {
+        private final RrdSnapshotBackend backend;
+
+        Factory(RrdSnapshotBackend backend) {
+            this.backend = backend;
+        }
+
+        protected RrdBackend open(String path, boolean readOnly) throws IOException {
+            return backend;
+        }
+
+        protected boolean exists(String path) throws IOException {
+            return backend.getPath().equals(path);
+        }
+
+        protected boolean shouldValidateHeader(String path) throws IOException {
+            return false;
+        }
+
+        public String getName() {
+            return "SNAPSHOT";
+        }
+    }
+
+    RrdSnapshotBackend(String path, byte[] bytes) {
+        super(path);
+        buffer = bytes;
+    }
+
+    protected void write(long offset, byte[] bytes) throws IOException {
+        throw new IOException("RRD snapshot of " + getPath() + " is read-only");
+    }
+
+    protected void read(long offset, byte[] bytes) throws IOException {
+        int pos = (int) offset;
+        if (pos < 0 || pos + bytes.length > buffer.length) {
+            throw new IOException("Not enough bytes available in snapshot; RRD " + getPath());
+        }
+        System.arraycopy(buffer, pos, bytes, 0, bytes.length);
+    }
+
+    protected void setLength(long length) throws IOException {
+        throw new IOException("RRD snapshot of " + getPath() + " is read-only");
+    }
+
+    protected boolean isCachingAllowed() {
+        return true;
+    }
+}
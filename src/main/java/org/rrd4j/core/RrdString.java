@@ -24,6 +24,18 @@ class RrdString extends RrdPrimitive {
         }
     }
 
+    // drops the cached value, changed through another RrdDb
+    void invalidate() {
+        cache = null;
+    }
+
+    // seeds the cache with a value already read from the backend
+    void preload(String value) {
+        if (isCachingAllowed()) {
+            cache = value;
+        }
+    }
+
     String get() throws IOException {
         if (!isCachingAllowed()) {
             return readString();
@@ -1,17 +1,28 @@
 package org.rrd4j.core;
 
+import java.util.Random;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Thread pool used by {@link org.rrd4j.core.RrdNioBackend} instances to periodically sync the mapped file to disk. Note that instances
  * of RrdSyncThreadPool must be disposed of by calling {@link #shutdown()}.
  * <p/>
+ * Backends do not get a timer each. A backend registers itself when its mapping becomes dirty, and a single
+ * scanner task hands it to the pool threads once its sync period is over. Clean mappings are never forced. The
+ * deadline of each backend is drawn between half and all of its sync period, so backends updated together do not
+ * all sync at the same time. When the bytes written by all dirty backends exceed {@link #setMaxDirtyBytes(long)},
+ * the oldest dirty backends are synced at once.
+ * <p/>
  * For ease of use in standalone applications, clients may choose to register a shutdown hook by calling
  * {@link #registerShutdownHook()}. However, in web applications it is best to explicitly {@code shutdown()} the pool
  * when the application is un-deployed, usually within a {@code javax.servlet.ServletContextListener}.
@@ -31,6 +42,44 @@ public final class RrdSyncThreadPool
      */
     private final ScheduledExecutorService syncExecutor;
 
+    /**
+     * Period of the scanner looking for backends to sync, in milliseconds.
+     */
+    static final long SCAN_PERIOD = 100;
+
+    static class DirtyBackend implements Comparable<DirtyBackend> {
+        final RrdNioBackend backend;
+        final long deadline;
+        // set once the scanner took the entry from the queue
+        volatile boolean polled;
+
+        DirtyBackend(RrdNioBackend backend, long deadline) {
+            this.backend = backend;
+            this.deadline = deadline;
+        }
+
+        public int compareTo(DirtyBackend other) {
+            return deadline < other.deadline ? -1 : (deadline == other.deadline ? 0 : 1);
+        }
+    }
+
+    private final PriorityBlockingQueue<DirtyBackend> dirtyBackends = new PriorityBlockingQueue<DirtyBackend>();
+    private final AtomicLong dirtyBytes = new AtomicLong();
+    private volatile long maxDirtyBytes = Long.MAX_VALUE;
+    private final AtomicBoolean scannerStarted = new AtomicBoolean();
+    private final AtomicBoolean scanRequested = new AtomicBoolean();
+    private final Random random = new Random();
+
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+    private final AtomicLong maxSyncNanos = new AtomicLong();
+
+    private final Runnable scanner = new Runnable() {
+        public void run() {
+            scan();
+        }
+    };
+
     /**
      * Creates a new RrdSyncThreadPool with a default pool size of {@value org.rrd4j.core.RrdNioBackendFactory#DEFAULT_SYNC_CORE_POOL_SIZE}.
      */
@@ -121,6 +170,150 @@ public final class RrdSyncThreadPool
         return syncExecutor.scheduleWithFixedDelay(command, initialDelay, delay, unit);
     }
 
+    /**
+     * Sets the budget of bytes written to dirty mappings. Once exceeded, the oldest dirty backends are synced
+     * without waiting for the end of their sync period.
+     *
+     * @param maxDirtyBytes number of bytes, unlimited by default
+     */
+    public void setMaxDirtyBytes(long maxDirtyBytes) {
+        if (maxDirtyBytes <= 0) {
+            throw new IllegalArgumentException("Invalid dirty bytes budget: " + maxDirtyBytes);
+        }
+        this.maxDirtyBytes = maxDirtyBytes;
+    }
+
+    /**
+     * @return budget of bytes written to dirty mappings
+     */
+    public long getMaxDirtyBytes() {
+        return maxDirtyBytes;
+    }
+
+    /**
+     * @return number of bytes written to the dirty mappings since their last sync
+     */
+    public long getDirtyBytes() {
+        return dirtyBytes.get();
+    }
+
+    /**
+     * @return number of backends waiting for a sync
+     */
+    public int getDirtyCount() {
+        return dirtyBackends.size();
+    }
+
+    /**
+     * @return number of syncs run by this pool
+     */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    /**
+     * @return average duration of the syncs run by this pool, in milliseconds
+     */
+    public double getAverageSyncTime() {
+        long count = syncCount.get();
+        return count > 0 ? syncNanos.get() / 1000000.0 / count : 0;
+    }
+
+    /**
+     * @return longest sync run by this pool, in milliseconds
+     */
+    public double getMaxSyncTime() {
+        return maxSyncNanos.get() / 1000000.0;
+    }
+
+    /**
+     * Registers a backend whose mapping just became dirty.
+     *
+     * @param backend dirty backend
+     * @param maxAge  maximal time before the backend is synced, in milliseconds
+     * @return the entry to pass to {@link #markClean(DirtyBackend)} once the backend is synced
+     */
+    DirtyBackend markDirty(RrdNioBackend backend, long maxAge) {
+        long spread = maxAge / 2;
+        long deadline = System.currentTimeMillis() + maxAge - (spread > 0 ? (long) (random.nextDouble() * spread) : 0);
+        DirtyBackend dirty = new DirtyBackend(backend, deadline);
+        dirtyBackends.add(dirty);
+        if (scannerStarted.compareAndSet(false, true)) {
+            try {
+                syncExecutor.scheduleWithFixedDelay(scanner, SCAN_PERIOD, SCAN_PERIOD, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // shut down, backends are synced when closed
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Unregisters a backend synced or closed before its deadline.
+     *
+     * @param dirty entry returned by {@link #markDirty(RrdNioBackend, long)}
+     */
+    void markClean(DirtyBackend dirty) {
+        if (!dirty.polled) {
+            dirtyBackends.remove(dirty);
+        }
+    }
+
+    void addDirtyBytes(long count) {
+        if (dirtyBytes.addAndGet(count) > maxDirtyBytes && scanRequested.compareAndSet(false, true)) {
+            try {
+                syncExecutor.execute(scanner);
+            }
+            catch (RejectedExecutionException e) {
+                scanRequested.set(false);
+            }
+        }
+    }
+
+    void removeDirtyBytes(long count) {
+        dirtyBytes.addAndGet(-count);
+    }
+
+    private void scan() {
+        scanRequested.set(false);
+        long now = System.currentTimeMillis();
+        long projectedBytes = dirtyBytes.get();
+        DirtyBackend dirty;
+        while ((dirty = dirtyBackends.peek()) != null && (dirty.deadline <= now || projectedBytes > maxDirtyBytes)) {
+            dirty = dirtyBackends.poll();
+            if (dirty == null) {
+                break;
+            }
+            dirty.polled = true;
+            projectedBytes -= dirty.backend.getDirtyBytes();
+            final RrdNioBackend backend = dirty.backend;
+            try {
+                syncExecutor.execute(new Runnable() {
+                    public void run() {
+                        sync(backend);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private void sync(RrdNioBackend backend) {
+        long start = System.nanoTime();
+        if (backend.syncIfDirty()) {
+            long duration = System.nanoTime() - start;
+            syncCount.incrementAndGet();
+            syncNanos.addAndGet(duration);
+            long max;
+            while ((max = maxSyncNanos.get()) < duration && !maxSyncNanos.compareAndSet(max, duration)) {
+                // retry
+            }
+        }
+    }
+
     /**
      * Daemon thread factory used by the monitor executors.
      * <p>
@@ -90,7 +90,7 @@ class RrdToolReader extends DataImporter {
     }
 
     double[] getValues(int arcIndex, int dsIndex) throws IOException {
-        return rrd.getArchive(arcIndex).getValues()[dsIndex];
+        return rrd.getArchive(arcIndex).getValues(dsIndex);
     }
 
     void release() throws IOException {
@@ -355,6 +355,7 @@ public class RrdToolkit {
             String backupPath = getBackupPath(destPath);
             File backup = new File(backupPath);
             deleteFile(backup);
+            RrdCanonicalPathCache.INSTANCE.invalidate(destPath);
             if (!dest.renameTo(backup)) {
                 throw new IOException("Could not create backup file " + backupPath);
             }
@@ -575,6 +576,7 @@ public class RrdToolkit {
     }
 
     private static void deleteFile(File file) throws IOException {
+        RrdCanonicalPathCache.INSTANCE.invalidate(file.getPath());
         if (file.exists() && !file.delete()) {
             throw new IOException("Could not delete file: " + file.getCanonicalPath());
         }
@@ -0,0 +1,168 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backend decorator created by {@link org.rrd4j.core.RrdWalBackendFactory}. The writes of a sample
+ * update are held back until the end of the update, appended to the write-ahead log as a single
+ * record, and only written to the decorated backend once the record is on the disk.
+ */
+public class RrdWalBackend extends RrdBackend {
+    static class Region {
+        final long offset;
+        final byte[] bytes;
+
+        Region(long offset, byte[] bytes) {
+            this.offset = offset;
+            this.bytes = bytes;
+        }
+    }
+
+    private final RrdWalBackendFactory log;
+    private final RrdBackend backend;
+    private final List<Region> pending = new ArrayList<Region>();
+    private boolean updating;
+    private boolean logged;
+
+    /**
+     * <p>Constructor for RrdWalBackend.</p>
+     *
+     * @param path    Storage path
+     * @param backend Decorated backend, opened read/write
+     * @param log     Factory owning the write-ahead log
+     */
+    protected RrdWalBackend(String path, RrdBackend backend, RrdWalBackendFactory log) {
+        super(path);
+        this.backend = backend;
+        this.log = log;
+    }
+
+    RrdBackend getBackend() {
+        return backend;
+    }
+
+    boolean isLogged() {
+        return logged;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Writes outside of a sample update are logged and written at once, without waiting for
+     * the log to reach the disk.
+     */
+    protected synchronized void write(long offset, byte[] b) throws IOException {
+        Region region = new Region(offset, b.clone());
+        if (updating) {
+            pending.add(region);
+        }
+        else {
+            List<Region> regions = new ArrayList<Region>(1);
+            regions.add(region);
+            log.commit(this, regions, false);
+        }
+        logged = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Bytes written by the current update are read from memory.
+     */
+    protected synchronized void read(long offset, byte[] b) throws IOException {
+        backend.read(offset, b);
+        for (Region region : pending) {
+            long start = Math.max(offset, region.offset);
+            long end = Math.min(offset + b.length, region.offset + region.bytes.length);
+            if (start < end) {
+                System.arraycopy(region.bytes, (int) (start - region.offset), b, (int) (start - offset), (int) (end - start));
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long getLength() throws IOException {
+        return backend.getLength();
+    }
+
+    /** {@inheritDoc} */
+    protected void setLength(long length) throws IOException {
+        backend.setLength(length);
+    }
+
+    /** {@inheritDoc} */
+    protected synchronized void beginUpdate() throws IOException {
+        updating = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Appends the writes of the update to the log, waits until they are on the disk, possibly
+     * together with the updates of other RRDs, then writes them to the decorated backend.
+     */
+    protected synchronized void commitUpdate() throws IOException {
+        updating = false;
+        if (!pending.isEmpty()) {
+            try {
+                log.commit(this, pending, true);
+            }
+            finally {
+                pending.clear();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Discards the writes of the update: they are neither logged nor written to the decorated backend.
+     */
+    protected synchronized void abortUpdate() {
+        updating = false;
+        pending.clear();
+    }
+
+    /** {@inheritDoc} */
+    protected void sync() throws IOException {
+        backend.sync();
+    }
+
+    /**
+     * Closes the decorated backend. Its bytes are forced to the disk by the next checkpoint
+     * of the log.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public synchronized void close() throws IOException {
+        try {
+            commitUpdate();
+        }
+        finally {
+            try {
+                backend.close();
+            }
+            finally {
+                log.closed(this);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Values cached by the RRD objects would keep the writes of an aborted update.
+     *
+     * @return <code>false</code>
+     */
+    protected boolean isCachingAllowed() {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    String getCanonicalPath() throws IOException {
+        return backend.getCanonicalPath();
+    }
+}
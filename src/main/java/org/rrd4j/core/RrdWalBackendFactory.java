@@ -0,0 +1,384 @@
+package org.rrd4j.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Backend factory decorating another factory with a write-ahead log shared by all its RRDs.<p>
+ *
+ * The writes of each sample update are appended to the log as a single checksummed record.
+ * Concurrent updates, of the same or of different RRDs, are forced to the disk together (group
+ * commit), and only then written to the decorated backends. When the factory is created, the
+ * records found in the log are written again to their RRDs, so a host crash never leaves a RRD
+ * with half of an update: it either has the whole update or none of it.<p>
+ *
+ * Since the log is on the disk before the RRDs are modified, the RRDs themselves do not need to
+ * be forced often, for instance the {@link org.rrd4j.core.RrdNioBackendFactory#setSyncPeriod(int) sync period}
+ * of the NIO backend can be much longer. The RRDs are forced and the log emptied by a
+ * {@link #checkpoint() checkpoint}, which happens when the log grows over
+ * {@link #setMaxLogSize(long) max log size} and when the factory is {@link #close() closed}.<p>
+ *
+ * Writes made outside of sample updates, when a RRD is created or modified by
+ * {@link org.rrd4j.core.RrdToolkit} for instance, are logged too but are not waited for: they
+ * reach the disk with the next update or checkpoint.
+ * <pre>
+ * RrdWalBackendFactory factory = new RrdWalBackendFactory(RrdBackendFactory.getFactory("NIO"), new File("rrd.wal"));
+ * RrdDb rrdDb = new RrdDb(path, factory);
+ * </pre>
+ */
+public class RrdWalBackendFactory extends RrdBackendFactory {
+    /**
+     * Default size of the log triggering a checkpoint, in bytes.
+     */
+    public static final long DEFAULT_MAX_LOG_SIZE = 64L * 1024 * 1024;
+
+    private static final long LOG_MAGIC = 0x525244344a57414cL; // "RRD4JWAL"
+    private static final int RECORD_MAGIC = 0x57414c52;
+    private static final int HEADER_SIZE = 8;
+    // records appended but not written are written once they reach this size
+    private static final int WRITE_SIZE = 1024 * 1024;
+
+    private final RrdBackendFactory factory;
+    private final File logFile;
+    private final RandomAccessFile logRaf;
+    private final FileChannel logChannel;
+
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    // commits run concurrently, checkpoints exclusively
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    private final ByteArrayOutputStream appended = new ByteArrayOutputStream();
+    private long writtenPosition;
+    private volatile long durablePosition;
+    private volatile long maxLogSize = DEFAULT_MAX_LOG_SIZE;
+    private final int recoveredCount;
+
+    private final Set<RrdWalBackend> openBackends =
+            Collections.newSetFromMap(new ConcurrentHashMap<RrdWalBackend, Boolean>());
+    private final Set<String> closedPaths =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Creates a factory logging the updates of the RRDs created by another factory, and
+     * replays the updates found in the log.
+     *
+     * @param factory Decorated factory
+     * @param logFile Write-ahead log
+     * @throws java.io.IOException Thrown in case of I/O error, or if the file is not a log
+     */
+    public RrdWalBackendFactory(RrdBackendFactory factory, File logFile) throws IOException {
+        this.factory = factory;
+        this.logFile = logFile;
+        recoveredCount = recover();
+        logRaf = new RandomAccessFile(logFile, "rw");
+        logChannel = logRaf.getChannel();
+        logRaf.setLength(0);
+        logRaf.writeLong(LOG_MAGIC);
+        logChannel.force(true);
+        writtenPosition = HEADER_SIZE;
+        durablePosition = HEADER_SIZE;
+    }
+
+    /**
+     * Writes the complete records of the log to their RRDs. A truncated or corrupted record
+     * ends the log: it was being written when the host crashed, and was therefore never
+     * written to its RRD.
+     */
+    private int recover() throws IOException {
+        if (!logFile.exists() || logFile.length() == 0) {
+            return 0;
+        }
+        Map<String, RrdBackend> backends = new HashMap<String, RrdBackend>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 65536));
+        int count = 0;
+        try {
+            if (logFile.length() < HEADER_SIZE || in.readLong() != LOG_MAGIC) {
+                throw new IOException("Invalid write-ahead log: " + logFile);
+            }
+            byte[] body;
+            while ((body = readRecord(in, logFile.length())) != null) {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                String path = record.readUTF();
+                RrdBackend backend = backends.get(path);
+                if (backend == null) {
+                    if (!factory.exists(path)) {
+                        // deleted since
+                        continue;
+                    }
+                    backend = factory.open(path, false);
+                    backends.put(path, backend);
+                }
+                for (int i = record.readInt(); i > 0; i--) {
+                    long offset = record.readLong();
+                    byte[] bytes = new byte[record.readInt()];
+                    record.readFully(bytes);
+                    backend.write(offset, bytes);
+                }
+                count++;
+            }
+        }
+        finally {
+            in.close();
+            for (RrdBackend backend : backends.values()) {
+                backend.sync();
+                backend.close();
+            }
+        }
+        return count;
+    }
+
+    private static byte[] readRecord(DataInputStream in, long maxLength) throws IOException {
+        try {
+            if (in.readInt() != RECORD_MAGIC) {
+                return null;
+            }
+            int length = in.readInt();
+            if (length < 0 || length > maxLength) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            return in.readLong() == crc.getValue() ? body : null;
+        }
+        catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sets the size of the log triggering a checkpoint.
+     *
+     * @param maxLogSize Log size in bytes
+     */
+    public void setMaxLogSize(long maxLogSize) {
+        if (maxLogSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid log size: " + maxLogSize);
+        }
+        this.maxLogSize = maxLogSize;
+    }
+
+    /**
+     * @return size of the log triggering a checkpoint, in bytes
+     */
+    public long getMaxLogSize() {
+        return maxLogSize;
+    }
+
+    /**
+     * @return number of records written again to their RRDs when this factory was created
+     */
+    public int getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * @return current size of the log, in bytes
+     */
+    public long getLogSize() {
+        synchronized (appendLock) {
+            return writtenPosition + appended.size();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * RRDs opened read/write are decorated, read-only ones are opened directly.
+     */
+    protected RrdBackend open(String path, boolean readOnly) throws IOException {
+        RrdBackend backend = factory.open(path, readOnly);
+        if (readOnly) {
+            return backend;
+        }
+        RrdWalBackend walBackend = new RrdWalBackend(path, backend, this);
+        openBackends.add(walBackend);
+        return walBackend;
+    }
+
+    /** {@inheritDoc} */
+    protected boolean exists(String path) throws IOException {
+        return factory.exists(path);
+    }
+
+    /** {@inheritDoc} */
+    protected boolean shouldValidateHeader(String path) throws IOException {
+        return factory.shouldValidateHeader(path);
+    }
+
+    void commit(RrdWalBackend backend, List<RrdWalBackend.Region> regions, boolean durable) throws IOException {
+        checkpointLock.readLock().lock();
+        try {
+            long end = append(backend.getPath(), regions);
+            if (durable) {
+                force(end);
+            }
+            RrdBackend target = backend.getBackend();
+            for (RrdWalBackend.Region region : regions) {
+                target.write(region.offset, region.bytes);
+            }
+        }
+        finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (getLogSize() > maxLogSize) {
+            checkpoint();
+        }
+    }
+
+    private long append(String path, List<RrdWalBackend.Region> regions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeUTF(path);
+        body.writeInt(regions.size());
+        for (RrdWalBackend.Region region : regions) {
+            body.writeLong(region.offset);
+            body.writeInt(region.bytes.length);
+            body.write(region.bytes);
+        }
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        synchronized (appendLock) {
+            DataOutputStream out = new DataOutputStream(appended);
+            out.writeInt(RECORD_MAGIC);
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeLong(crc.getValue());
+            long end = writtenPosition + appended.size();
+            if (appended.size() >= WRITE_SIZE) {
+                writeAppended();
+            }
+            return end;
+        }
+    }
+
+    // called with appendLock held
+    private void writeAppended() throws IOException {
+        if (appended.size() > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(appended.toByteArray());
+            while (buffer.hasRemaining()) {
+                logChannel.write(buffer, writtenPosition + buffer.position());
+            }
+            writtenPosition += appended.size();
+            appended.reset();
+        }
+    }
+
+    /**
+     * Forces the log to the disk up to the given position. The thread getting the sync lock
+     * forces all the records appended so far, threads waiting meanwhile usually find their
+     * records already forced.
+     */
+    private void force(long position) throws IOException {
+        synchronized (syncLock) {
+            if (durablePosition >= position) {
+                return;
+            }
+            long target;
+            synchronized (appendLock) {
+                writeAppended();
+                target = writtenPosition;
+            }
+            logChannel.force(false);
+            durablePosition = target;
+        }
+    }
+
+    void closed(RrdWalBackend backend) {
+        openBackends.remove(backend);
+        if (backend.isLogged()) {
+            closedPaths.add(backend.getPath());
+        }
+    }
+
+    /**
+     * Forces all the RRDs modified since the last checkpoint to the disk, then empties the log.
+     * Updates wait for the end of the checkpoint.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            for (RrdWalBackend backend : openBackends) {
+                backend.getBackend().sync();
+            }
+            for (String path : closedPaths) {
+                if (factory.exists(path)) {
+                    RrdBackend backend = factory.open(path, false);
+                    try {
+                        backend.sync();
+                    }
+                    finally {
+                        backend.close();
+                    }
+                }
+                closedPaths.remove(path);
+            }
+            synchronized (syncLock) {
+                synchronized (appendLock) {
+                    appended.reset();
+                    logChannel.truncate(HEADER_SIZE);
+                    logChannel.force(true);
+                    writtenPosition = HEADER_SIZE;
+                    durablePosition = HEADER_SIZE;
+                }
+            }
+        }
+        finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Runs a last checkpoint and closes the log. RRDs must be closed first.
+     *
+     * @throws java.io.IOException Thrown in case of I/O error
+     */
+    public void close() throws IOException {
+        try {
+            checkpoint();
+        }
+        finally {
+            logRaf.close();
+        }
+    }
+
+    /**
+     * @return the decorated factory
+     */
+    public RrdBackendFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Returns the name of this factory.
+     *
+     * @return Factory name (equals to "WAL").
+     */
+    public String getName() {
+        return "WAL";
+    }
+}
@@ -1,7 +1,6 @@
 package org.rrd4j.core;
 
 import java.io.IOException;
-import java.util.StringTokenizer;
 import java.util.Arrays;
 
 /**
@@ -23,6 +22,10 @@ import java.util.Arrays;
  * <p>Newly created Sample object contains all data source values set to 'unknown'.
  * You should specify only 'known' data source values. However, if you want to specify
  * 'unknown' values too, use <code>Double.NaN</code>.</p>
+ * <p/>
+ * <p>A sample can be used for any number of updates of its RRD: values are set to 'unknown'
+ * after each update, only the timestamp has to be set again. Lines of update streams can be
+ * parsed into a sample without allocations with a {@link org.rrd4j.core.SampleParser}.</p>
  *
  * @author Sasa Markovic
  */
@@ -158,32 +161,31 @@ public class Sample {
      * @throws java.lang.IllegalArgumentException Thrown if too many datasource values are supplied
      */
     public Sample set(String timeAndValues) {
-        StringTokenizer tokenizer = new StringTokenizer(timeAndValues, ":", false);
-        int n = tokenizer.countTokens();
-        if (n > values.length + 1) {
-            throw new IllegalArgumentException("Invalid number of values specified (found " +
-                    values.length + ", " + dsNames.length + " allowed)");
+        int length = timeAndValues.length();
+        int start = 0;
+        while (start < length && timeAndValues.charAt(start) == ':') {
+            start++;
         }
-        String timeToken = tokenizer.nextToken();
-        try {
-            time = Long.parseLong(timeToken);
-        }
-        catch (NumberFormatException nfe) {
-            if (timeToken.equalsIgnoreCase("N") || timeToken.equalsIgnoreCase("NOW")) {
-                time = Util.getTime();
-            }
-            else {
-                throw new IllegalArgumentException("Invalid sample timestamp: " + timeToken);
-            }
-        }
-        for (int i = 0; tokenizer.hasMoreTokens(); i++) {
-            try {
-                values[i] = Double.parseDouble(tokenizer.nextToken());
-            }
-            catch (NumberFormatException nfe) {
-                // NOP, value is already set to NaN
-            }
+        int end = timeAndValues.indexOf(':', start);
+        if (end < 0) {
+            end = length;
         }
+        long newTime = SampleParser.parseTime(timeAndValues, start, end);
+        SampleParser.setValues(timeAndValues, end, length, this);
+        time = newTime;
+        return this;
+    }
+
+    /**
+     * Sets the sample timestamp and all data source values to unknown, so that the same
+     * sample can be used for the next update. Values are also reset by {@link #update()}.
+     *
+     * @param time New sample timestamp.
+     * @return This <code>Sample</code> object
+     */
+    public Sample reset(long time) {
+        this.time = time;
+        clearValues();
         return this;
     }
 
@@ -0,0 +1,327 @@
+package org.rrd4j.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parses sample lines straight into a {@link org.rrd4j.core.Sample}, without creating intermediate
+ * strings. Two line formats are accepted:
+ * <ul>
+ * <li>the RRDTool format <code>timestamp:value1:value2:...:valueN</code>, as in
+ * {@link org.rrd4j.core.Sample#set(String)}: values are given in the order of the datasources,
+ * 'U' or any value which is not a number is unknown;
+ * <li>the named format <code>timestamp name1=value1 name2=value2</code>, fields being separated by
+ * spaces, tabs or commas: values are given for the named datasources only.
+ * </ul>
+ * In both formats the timestamp can be 'N' or 'NOW' for the current time. Plain decimal numbers
+ * are converted without any allocation, other notations (hexadecimal, too many digits) fall back
+ * to {@link java.lang.Double#parseDouble(String)}.<p>
+ *
+ * Together with a sample reused for all the updates of a RRD, this makes feeding an update
+ * stream allocation free:
+ * <pre>
+ * SampleParser parser = new SampleParser();
+ * Sample sample = rrdDb.createSample();
+ * while (buffer.hasRemaining()) {
+ *     if (parser.parse(buffer, sample)) {
+ *         sample.update();
+ *     }
+ * }
+ * </pre>
+ * Parsers keep a reusable view of the byte buffers they read and are not thread safe.
+ */
+public class SampleParser {
+    // exact powers of ten as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /**
+     * ASCII bytes of a buffer seen as characters.
+     */
+    private static class ByteSequence implements CharSequence {
+        ByteBuffer buffer;
+        int start;
+        int length;
+
+        public int length() {
+            return length;
+        }
+
+        public char charAt(int index) {
+            return (char) (buffer.get(start + index) & 0xFF);
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            StringBuilder chars = new StringBuilder(to - from);
+            for (int i = from; i < to; i++) {
+                chars.append(charAt(i));
+            }
+            return chars;
+        }
+
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+
+    private final ByteSequence bytes = new ByteSequence();
+
+    /**
+     * Reads the next line of a buffer of ASCII bytes, from its position up to the next line feed
+     * or its limit, and sets the sample time and values. The buffer position is moved after the
+     * line. Empty lines and lines starting with '#' are skipped.
+     *
+     * @param buffer Buffer holding lines
+     * @param sample Sample to set, its values not given by the line are left unchanged
+     * @return true if a sample was read, false if the line was skipped
+     * @throws java.lang.IllegalArgumentException Thrown if the line is not a valid sample
+     */
+    public boolean parse(ByteBuffer buffer, Sample sample) {
+        int start = buffer.position();
+        int end = start;
+        int limit = buffer.limit();
+        while (end < limit && buffer.get(end) != '\n') {
+            end++;
+        }
+        buffer.position(end < limit ? end + 1 : end);
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        bytes.buffer = buffer;
+        bytes.start = start;
+        bytes.length = end - start;
+        try {
+            return parse(bytes, sample);
+        }
+        finally {
+            bytes.buffer = null;
+        }
+    }
+
+    /**
+     * Sets the sample time and values from a line. Empty lines and lines starting with '#'
+     * are skipped.
+     *
+     * @param line   Line in one of the accepted formats
+     * @param sample Sample to set, its values not given by the line are left unchanged
+     * @return true if the sample was set, false if the line was skipped
+     * @throws java.lang.IllegalArgumentException Thrown if the line is not a valid sample
+     */
+    public boolean parse(CharSequence line, Sample sample) {
+        int length = line.length();
+        int start = skip(line, 0, length);
+        if (start == length || line.charAt(start) == '#') {
+            return false;
+        }
+        int end = start;
+        while (end < length && !isNameSeparator(line.charAt(end)) && line.charAt(end) != ':') {
+            end++;
+        }
+        sample.setTime(parseTime(line, start, end));
+        if (end < length && line.charAt(end) == ':') {
+            setValues(line, end + 1, length, sample);
+        }
+        else {
+            setNamedValues(line, end, length, sample);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the values of the RRDTool format, as {@link org.rrd4j.core.Sample#set(String)} does:
+     * empty fields are skipped.
+     */
+    static void setValues(CharSequence line, int start, int end, Sample sample) {
+        double[] values = sample.getValues();
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) != ':' && (i == start || line.charAt(i - 1) == ':')) {
+                count++;
+            }
+        }
+        if (count > values.length) {
+            throw new IllegalArgumentException("Invalid number of values specified (found " +
+                    count + ", " + values.length + " allowed)");
+        }
+        int index = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || line.charAt(i) == ':') {
+                if (i > fieldStart) {
+                    values[index++] = parseDouble(line, fieldStart, i);
+                }
+                fieldStart = i + 1;
+            }
+        }
+    }
+
+    private static void setNamedValues(CharSequence line, int start, int end, Sample sample) {
+        String[] dsNames = sample.getDsNames();
+        double[] values = sample.getValues();
+        int i = skip(line, start, end);
+        while (i < end) {
+            int nameStart = i;
+            while (i < end && line.charAt(i) != '=' && !isNameSeparator(line.charAt(i))) {
+                i++;
+            }
+            if (i == end || line.charAt(i) != '=') {
+                throw new IllegalArgumentException("Missing value for " + line.subSequence(nameStart, i));
+            }
+            int dsIndex = findDsIndex(dsNames, line, nameStart, i);
+            int valueStart = ++i;
+            while (i < end && !isNameSeparator(line.charAt(i))) {
+                i++;
+            }
+            values[dsIndex] = parseDouble(line, valueStart, i);
+            i = skip(line, i, end);
+        }
+    }
+
+    private static boolean isNameSeparator(char c) {
+        return c == ' ' || c == '\t' || c == ',';
+    }
+
+    private static int skip(CharSequence line, int start, int end) {
+        while (start < end && isNameSeparator(line.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int findDsIndex(String[] dsNames, CharSequence line, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < dsNames.length; i++) {
+            String dsName = dsNames[i];
+            if (dsName.length() == length) {
+                int j = 0;
+                while (j < length && dsName.charAt(j) == line.charAt(start + j)) {
+                    j++;
+                }
+                if (j == length) {
+                    return i;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Datasource " + line.subSequence(start, end) + " not found");
+    }
+
+    static long parseTime(CharSequence line, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        // up to 18 digits can not overflow
+        if (i < end && end - i <= 18) {
+            long time = 0;
+            while (i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+                time = time * 10 + (line.charAt(i++) - '0');
+            }
+            if (i == end) {
+                return negative ? -time : time;
+            }
+        }
+        String token = line.subSequence(start, end).toString();
+        if (token.equalsIgnoreCase("N") || token.equalsIgnoreCase("NOW")) {
+            return Util.getTime();
+        }
+        try {
+            return Long.parseLong(token);
+        }
+        catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid sample timestamp: " + token);
+        }
+    }
+
+    /**
+     * Parses a double the way {@link java.lang.Double#parseDouble(String)} does, NaN if the
+     * text is not a number. Plain decimals with at most 15 significant digits and small exponents
+     * are converted exactly without allocation.
+     */
+    static double parseDouble(CharSequence line, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean exact = true;
+        int mantissaStart = i;
+        while (i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+            if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                mantissa = mantissa * 10 + (line.charAt(i) - '0');
+            }
+            else {
+                exact = false;
+            }
+            digits++;
+            i++;
+        }
+        if (i < end && line.charAt(i) == '.') {
+            i++;
+            while (i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+                if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                    mantissa = mantissa * 10 + (line.charAt(i) - '0');
+                    exponent--;
+                }
+                else {
+                    exact = false;
+                }
+                digits++;
+                i++;
+            }
+        }
+        if (digits > 0 && i < end && (line.charAt(i) == 'e' || line.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+                negativeExponent = line.charAt(i) == '-';
+                i++;
+            }
+            int exponentStart = i;
+            int value = 0;
+            while (i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9' && value < 10000) {
+                value = value * 10 + (line.charAt(i++) - '0');
+            }
+            if (i == exponentStart) {
+                exact = false;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (exact && digits > 0 && i == end && i > mantissaStart) {
+            double value;
+            if (mantissa == 0) {
+                value = 0;
+            }
+            else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+                value = mantissa * POWERS_OF_TEN[exponent];
+            }
+            else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+                value = mantissa / POWERS_OF_TEN[-exponent];
+            }
+            else {
+                return parseSlowly(line, start, end);
+            }
+            return negative ? -value : value;
+        }
+        return parseSlowly(line, start, end);
+    }
+
+    private static double parseSlowly(CharSequence line, int start, int end) {
+        if (end - start == 1 && line.charAt(start) == 'U') {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(line.subSequence(start, end).toString());
+        }
+        catch (NumberFormatException nfe) {
+            return Double.NaN;
+        }
+    }
+}
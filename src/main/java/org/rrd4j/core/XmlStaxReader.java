@@ -0,0 +1,383 @@
+package org.rrd4j.core;
+
+import org.rrd4j.ConsolFun;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports RRDTool/Rrd4j XML dumps without building a DOM tree. The file is parsed twice:
+ * the first pass keeps the header, datasource and archive definitions and counts the rows of
+ * each archive, the second pass streams the rows into the robins, a bounded chunk at a time.
+ * Memory usage does not depend on the number of rows.
+ */
+class XmlStaxReader extends DataImporter {
+    static final int CHUNK_ROWS = 1024;
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    static {
+        // dumps made by rrdtool reference an external DTD which must not be fetched
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    private static class DsInfo {
+        String name, type;
+        long heartbeat, nanSeconds;
+        double minValue = Double.NaN, maxValue = Double.NaN, lastValue = Double.NaN, accumValue = Double.NaN;
+    }
+
+    private static class ArcInfo {
+        ConsolFun consolFun;
+        double xff;
+        int steps, rows;
+        final List<Double> stateAccumValues = new ArrayList<Double>();
+        final List<Integer> stateNanSteps = new ArrayList<Integer>();
+    }
+
+    private final String xmlFilePath;
+    private String version;
+    private long lastUpdateTime, step;
+    private final List<DsInfo> datasources = new ArrayList<DsInfo>();
+    private final List<ArcInfo> archives = new ArrayList<ArcInfo>();
+
+    // second pass
+    private InputStream rowInput;
+    private XMLStreamReader rowReader;
+    private int databaseCount;
+
+    XmlStaxReader(String xmlFilePath) throws IOException {
+        this.xmlFilePath = xmlFilePath;
+        InputStream in = new BufferedInputStream(new FileInputStream(xmlFilePath));
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(in);
+            parseDefinitions(reader);
+        }
+        catch (XMLStreamException e) {
+            throw new IOException("Could not parse " + xmlFilePath + ": " + e.getMessage());
+        }
+        finally {
+            close(reader, in);
+        }
+    }
+
+    private void parseDefinitions(XMLStreamReader reader) throws XMLStreamException {
+        List<String> path = new ArrayList<String>();
+        StringBuilder text = new StringBuilder();
+        DsInfo ds = null;
+        ArcInfo arc = null;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    path.add(name);
+                    text.setLength(0);
+                    if (path.size() == 2 && "ds".equals(name)) {
+                        ds = new DsInfo();
+                        datasources.add(ds);
+                    }
+                    else if (path.size() == 2 && "rra".equals(name)) {
+                        arc = new ArcInfo();
+                        archives.add(arc);
+                    }
+                    else if (path.size() == 4 && "ds".equals(name) && "cdp_prep".equals(path.get(2))) {
+                        arc.stateAccumValues.add(Double.NaN);
+                        arc.stateNanSteps.add(0);
+                    }
+                    else if (path.size() == 4 && "row".equals(name) && "database".equals(path.get(2))) {
+                        arc.rows++;
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getText());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    String value = text.toString().trim();
+                    text.setLength(0);
+                    parseValue(path, value, ds, arc);
+                    path.remove(path.size() - 1);
+                    break;
+            }
+        }
+    }
+
+    private void parseValue(List<String> path, String value, DsInfo ds, ArcInfo arc) {
+        String name = path.get(path.size() - 1);
+        switch (path.size()) {
+            case 2:
+                if ("version".equals(name)) {
+                    version = value;
+                }
+                else if ("step".equals(name)) {
+                    step = Long.parseLong(value);
+                }
+                else if ("lastupdate".equals(name)) {
+                    lastUpdateTime = Long.parseLong(value);
+                }
+                break;
+            case 3:
+                if ("ds".equals(path.get(1))) {
+                    parseDsValue(ds, name, value);
+                }
+                else if ("rra".equals(path.get(1))) {
+                    if ("cf".equals(name)) {
+                        arc.consolFun = ConsolFun.valueOf(value);
+                    }
+                    else if ("pdp_per_row".equals(name)) {
+                        arc.steps = Integer.parseInt(value);
+                    }
+                    //RRD4J xml, xff is in the archive definition
+                    else if ("xff".equals(name)) {
+                        arc.xff = Util.parseDouble(value);
+                    }
+                }
+                break;
+            case 4:
+                //RRDTool xml, xff is in the archive parameters
+                if ("rra".equals(path.get(1)) && "params".equals(path.get(2)) && "xff".equals(name)) {
+                    arc.xff = Util.parseDouble(value);
+                }
+                break;
+            case 5:
+                if ("rra".equals(path.get(1)) && "cdp_prep".equals(path.get(2))) {
+                    int dsIndex = arc.stateAccumValues.size() - 1;
+                    if ("value".equals(name)) {
+                        arc.stateAccumValues.set(dsIndex, Util.parseDouble(value));
+                    }
+                    else if ("unknown_datapoints".equals(name)) {
+                        arc.stateNanSteps.set(dsIndex, Integer.parseInt(value));
+                    }
+                }
+                break;
+        }
+    }
+
+    private static void parseDsValue(DsInfo ds, String name, String value) {
+        if ("name".equals(name)) {
+            ds.name = value;
+        }
+        else if ("type".equals(name)) {
+            ds.type = value;
+        }
+        else if ("minimal_heartbeat".equals(name)) {
+            ds.heartbeat = Long.parseLong(value);
+        }
+        else if ("min".equals(name)) {
+            ds.minValue = Util.parseDouble(value);
+        }
+        else if ("max".equals(name)) {
+            ds.maxValue = Util.parseDouble(value);
+        }
+        else if ("last_ds".equals(name)) {
+            ds.lastValue = Util.parseDouble(value);
+        }
+        else if ("value".equals(name)) {
+            ds.accumValue = Util.parseDouble(value);
+        }
+        else if ("unknown_sec".equals(name)) {
+            ds.nanSeconds = Long.parseLong(value);
+        }
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    long getStep() {
+        return step;
+    }
+
+    int getDsCount() {
+        return datasources.size();
+    }
+
+    int getArcCount() {
+        return archives.size();
+    }
+
+    String getDsName(int dsIndex) {
+        return datasources.get(dsIndex).name;
+    }
+
+    String getDsType(int dsIndex) {
+        return datasources.get(dsIndex).type;
+    }
+
+    long getHeartbeat(int dsIndex) {
+        return datasources.get(dsIndex).heartbeat;
+    }
+
+    double getMinValue(int dsIndex) {
+        return datasources.get(dsIndex).minValue;
+    }
+
+    double getMaxValue(int dsIndex) {
+        return datasources.get(dsIndex).maxValue;
+    }
+
+    double getLastValue(int dsIndex) {
+        return datasources.get(dsIndex).lastValue;
+    }
+
+    double getAccumValue(int dsIndex) {
+        return datasources.get(dsIndex).accumValue;
+    }
+
+    long getNanSeconds(int dsIndex) {
+        return datasources.get(dsIndex).nanSeconds;
+    }
+
+    ConsolFun getConsolFun(int arcIndex) {
+        return archives.get(arcIndex).consolFun;
+    }
+
+    double getXff(int arcIndex) {
+        return archives.get(arcIndex).xff;
+    }
+
+    int getSteps(int arcIndex) {
+        return archives.get(arcIndex).steps;
+    }
+
+    int getRows(int arcIndex) {
+        return archives.get(arcIndex).rows;
+    }
+
+    double getStateAccumValue(int arcIndex, int dsIndex) {
+        return archives.get(arcIndex).stateAccumValues.get(dsIndex);
+    }
+
+    int getStateNanSteps(int arcIndex, int dsIndex) {
+        return archives.get(arcIndex).stateNanSteps.get(dsIndex);
+    }
+
+    /**
+     * Reads a single column, prefer {@link #importValues(int, Robin[])} which reads all of them at once.
+     */
+    double[] getValues(int arcIndex, int dsIndex) throws IOException {
+        final double[] values = new double[getRows(arcIndex)];
+        streamRows(arcIndex, dsIndex + 1, new RowHandler() {
+            public void row(int row, double[] rowValues) {
+                values[row] = rowValues[rowValues.length - 1];
+            }
+        });
+        return values;
+    }
+
+    void importValues(int arcIndex, final Robin[] robins) throws IOException {
+        final double[][] chunk = new double[robins.length][Math.min(CHUNK_ROWS, getRows(arcIndex))];
+        streamRows(arcIndex, robins.length, new RowHandler() {
+            int start;
+            public void row(int row, double[] rowValues) throws IOException {
+                int index = row - start;
+                for (int i = 0; i < robins.length; i++) {
+                    chunk[i][index] = rowValues[i];
+                }
+                if (index == CHUNK_ROWS - 1) {
+                    for (int i = 0; i < robins.length; i++) {
+                        robins[i].setValues(start, chunk[i]);
+                    }
+                    start = row + 1;
+                }
+            }
+
+            public void end(int rows) throws IOException {
+                int count = rows - start;
+                if (count > 0) {
+                    for (int i = 0; i < robins.length; i++) {
+                        double[] values = new double[count];
+                        System.arraycopy(chunk[i], 0, values, 0, count);
+                        robins[i].setValues(start, values);
+                    }
+                }
+            }
+        });
+    }
+
+    private abstract static class RowHandler {
+        abstract void row(int row, double[] rowValues) throws IOException;
+
+        void end(int rows) throws IOException {
+        }
+    }
+
+    // reads the first columnCount values of each row of an archive, archives must be read in order
+    private void streamRows(int arcIndex, int columnCount, RowHandler handler) throws IOException {
+        try {
+            if (rowReader == null || databaseCount > arcIndex) {
+                // restart from the beginning of the file
+                close(rowReader, rowInput);
+                rowInput = new BufferedInputStream(new FileInputStream(xmlFilePath));
+                rowReader = inputFactory.createXMLStreamReader(rowInput);
+                databaseCount = 0;
+            }
+            while (databaseCount < arcIndex + 1 && rowReader.hasNext()) {
+                if (rowReader.next() == XMLStreamConstants.START_ELEMENT && "database".equals(rowReader.getLocalName())) {
+                    databaseCount++;
+                }
+            }
+            double[] rowValues = new double[columnCount];
+            int row = 0, column = 0;
+            while (rowReader.hasNext()) {
+                int event = rowReader.next();
+                if (event == XMLStreamConstants.START_ELEMENT && "v".equals(rowReader.getLocalName())) {
+                    String text = rowReader.getElementText();
+                    if (column < columnCount) {
+                        rowValues[column] = Util.parseDouble(text.trim());
+                    }
+                    column++;
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT && "row".equals(rowReader.getLocalName())) {
+                    handler.row(row++, rowValues);
+                    column = 0;
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT && "database".equals(rowReader.getLocalName())) {
+                    break;
+                }
+            }
+            handler.end(row);
+        }
+        catch (XMLStreamException e) {
+            throw new IOException("Could not parse " + xmlFilePath + ": " + e.getMessage());
+        }
+    }
+
+    private static void close(XMLStreamReader reader, InputStream in) throws IOException {
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException e) {
+            // the underlying stream is closed below
+        }
+        finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    void release() throws IOException {
+        close(rowReader, rowInput);
+        rowReader = null;
+        rowInput = null;
+    }
+}
@@ -4,6 +4,8 @@ import java.awt.*;
 import java.io.File;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
 import java.util.Stack;
 
 /**
@@ -13,8 +15,13 @@ public class XmlWriter {
     static final String INDENT_STR = "   ";
 
     private final PrintWriter writer;
-    private final StringBuilder indent = new StringBuilder("");
+    private String indent = "";
     private final Stack<String> openTags = new Stack<String>();
+    // private copy of the shared format, with reused buffers for the (many) robin values
+    private final DecimalFormat numberFormat = (DecimalFormat) Util.df.clone();
+    private final StringBuffer numberBuffer = new StringBuffer(32);
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+    private boolean writeComments = true;
 
     /**
      * Creates XmlWriter with the specified output stream to send XML code to.
@@ -41,9 +48,10 @@ public class XmlWriter {
      * @param tag XML tag name
      */
     public void startTag(String tag) {
-        writer.println(indent + "<" + tag + ">");
+        writer.append(indent).append('<').append(tag).append('>');
+        writer.println();
         openTags.push(tag);
-        indent.append(INDENT_STR);
+        indent += INDENT_STR;
     }
 
     /**
@@ -51,8 +59,16 @@ public class XmlWriter {
      */
     public void closeTag() {
         String tag = openTags.pop();
-        indent.setLength(indent.length() - INDENT_STR.length());
-        writer.println(indent + "</" + tag + ">");
+        indent = indent.substring(INDENT_STR.length());
+        writer.append(indent).append("</").append(tag).append('>');
+        writer.println();
+    }
+
+    private void writeLine(String tag, CharSequence value) {
+        writer.append(indent).append('<').append(tag).append('>');
+        writer.append(value);
+        writer.append("</").append(tag).append('>');
+        writer.println();
     }
 
     /**
@@ -62,13 +78,7 @@ public class XmlWriter {
      * @param value value to be placed between <code>&lt;tag&gt</code> and <code>&lt;/tag&gt;</code>
      */
     public void writeTag(String tag, Object value) {
-        if (value != null) {
-            writer.println(indent + "<" + tag + ">" +
-                    escape(value.toString()) + "</" + tag + ">");
-        }
-        else {
-            writer.println(indent + "<" + tag + "></" + tag + ">");
-        }
+        writeLine(tag, value != null ? escape(value.toString()) : "");
     }
 
     /**
@@ -78,7 +88,7 @@ public class XmlWriter {
      * @param value value to be placed between <code>&lt;tag&gt</code> and <code>&lt;/tag&gt;</code>
      */
     public void writeTag(String tag, int value) {
-        writeTag(tag, "" + value);
+        writeLine(tag, Integer.toString(value));
     }
 
     /**
@@ -88,7 +98,7 @@ public class XmlWriter {
      * @param value value to be placed between <code>&lt;tag&gt</code> and <code>&lt;/tag&gt;</code>
      */
     public void writeTag(String tag, long value) {
-        writeTag(tag, "" + value);
+        writeLine(tag, Long.toString(value));
     }
 
     /**
@@ -99,7 +109,13 @@ public class XmlWriter {
      * @param nanString a {@link java.lang.String} object.
      */
     public void writeTag(String tag, double value, String nanString) {
-        writeTag(tag, Util.formatDouble(value, nanString, true));
+        if (Double.isNaN(value)) {
+            writeTag(tag, nanString);
+        }
+        else {
+            numberBuffer.setLength(0);
+            writeLine(tag, numberFormat.format(value, numberBuffer, fieldPosition));
+        }
     }
 
     /**
@@ -109,7 +125,7 @@ public class XmlWriter {
      * @param value value to be placed between <code>&lt;tag&gt</code> and <code>&lt;/tag&gt;</code>
      */
     public void writeTag(String tag, double value) {
-        writeTag(tag, Util.formatDouble(value, true));
+        writeTag(tag, value, "NaN");
     }
 
     /**
@@ -119,7 +135,7 @@ public class XmlWriter {
      * @param value value to be placed between <code>&lt;tag&gt</code> and <code>&lt;/tag&gt;</code>
      */
     public void writeTag(String tag, boolean value) {
-        writeTag(tag, "" + value);
+        writeLine(tag, Boolean.toString(value));
     }
 
     /**
@@ -176,16 +192,38 @@ public class XmlWriter {
         writer.flush();
     }
 
+    /**
+     * Enables or disables comments. Disabling them makes large dumps smaller and faster to write.
+     *
+     * @param writeComments false to drop comments, they are written by default
+     */
+    public void setWriteComments(boolean writeComments) {
+        this.writeComments = writeComments;
+    }
+
+    /**
+     * @return true if comments are written
+     */
+    public boolean isWriteComments() {
+        return writeComments;
+    }
+
     /**
      * Writes XML comment to output stream
      *
      * @param comment comment string
      */
     public void writeComment(Object comment) {
-        writer.println(indent + "<!-- " + escape(comment.toString()) + " -->");
-	}
+        if (writeComments) {
+            writer.append(indent).append("<!-- ").append(escape(comment.toString())).append(" -->");
+            writer.println();
+        }
+    }
 
-	private static String escape(String s) {
-		return s.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
-	}
+    private static String escape(String s) {
+        if (s.indexOf('<') < 0 && s.indexOf('>') < 0) {
+            return s;
+        }
+        return s.replace("<", "&lt;").replace(">", "&gt;");
+    }
 }
@@ -2,6 +2,7 @@ package org.rrd4j.core.jrrd;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.DoubleBuffer;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
@@ -33,7 +34,9 @@ public class Archive {
     List<CDPStatusBlock> cdpStatusBlocks;
     int currentRow;
 
-    private double[][] values;
+    // read-only view over the rows, shared by all readers which only use absolute gets
+    private DoubleBuffer data;
+    private volatile double[][] values;
 
     Archive(RRDatabase db) throws IOException {
 
@@ -98,15 +101,15 @@ public class Archive {
     void loadData(RRDFile file, int dsCount) throws IOException {
 
         dataOffset = file.getFilePointer();
+        data = file.getDoubleBuffer(dataOffset, rowCount * dsCount);
 
         // Skip over the data to position ourselves at the start of the next archive
         file.skipBytes(8 * rowCount * dsCount);
     }
 
-    void loadData(DataChunk chunk)
-            throws IOException {
+    void loadData(DataChunk chunk) {
 
-        long pointer;
+        int pointer;
 
         if (chunk.start < 0) {
             pointer = currentRow + 1;
@@ -115,34 +118,22 @@ public class Archive {
             pointer = currentRow + chunk.start + 1;
         }
 
-        db.rrdFile.seek((dataOffset + (chunk.dsCount * pointer * 8)));
+        double[][] chunkData = chunk.data;
 
-        double[][] data = chunk.data;
-
-        /*
-         * This is also terrible - cleanup - CT
-         */
         int row = 0;
         for (int i = chunk.start; i < rowCount - chunk.end; i++, row++) {
-            if (i < 0) {                   // no valid data yet
-                for (int ii = 0; ii < chunk.dsCount; ii++) {
-                    data[row][ii] = Double.NaN;
-                }
-            }
-            else if (i >= rowCount) {    // past valid data area
+            if (i < 0 || i >= rowCount) {  // no valid data yet or past valid data area
                 for (int ii = 0; ii < chunk.dsCount; ii++) {
-                    data[row][ii] = Double.NaN;
+                    chunkData[row][ii] = Double.NaN;
                 }
             }
             else {                       // inside the valid are but the pointer has to be wrapped
                 if (pointer >= rowCount) {
                     pointer -= rowCount;
-
-                    db.rrdFile.seek(dataOffset + (chunk.dsCount * pointer * 8));
                 }
-
+                int index = chunk.dsCount * pointer;
                 for (int ii = 0; ii < chunk.dsCount; ii++) {
-                    data[row][ii] = db.rrdFile.readDouble();
+                    chunkData[row][ii] = data.get(index + ii);
                 }
 
                 pointer++;
@@ -193,87 +184,78 @@ public class Archive {
 
     void toXml(PrintStream s) {
 
-        try {
-            s.println("\t<rra>");
-            s.print("\t\t<cf> ");
-            s.print(type);
-            s.println(" </cf>");
-            s.print("\t\t<pdp_per_row> ");
-            s.print(pdpCount);
-            s.print(" </pdp_per_row> <!-- ");
-            s.print(db.header.pdpStep * pdpCount);
-            s.println(" seconds -->");
-            s.print("\t\t<xff> ");
-            s.print(xff);
-            s.println(" </xff>");
-            s.println();
-            s.println("\t\t<cdp_prep>");
-
-            for (int i = 0; i < cdpStatusBlocks.size(); i++) {
-                cdpStatusBlocks.get(i).toXml(s);
-            }
-
-            s.println("\t\t</cdp_prep>");
-            s.println("\t\t<database>");
-
-            long timer = -(rowCount - 1);
-            int counter = 0;
-            int row = currentRow;
-
-            db.rrdFile.seek(dataOffset + (row + 1) * db.header.dsCount * 8);
+        s.println("\t<rra>");
+        s.print("\t\t<cf> ");
+        s.print(type);
+        s.println(" </cf>");
+        s.print("\t\t<pdp_per_row> ");
+        s.print(pdpCount);
+        s.print(" </pdp_per_row> <!-- ");
+        s.print(db.header.pdpStep * pdpCount);
+        s.println(" seconds -->");
+        s.print("\t\t<xff> ");
+        s.print(xff);
+        s.println(" </xff>");
+        s.println();
+        s.println("\t\t<cdp_prep>");
+
+        for (int i = 0; i < cdpStatusBlocks.size(); i++) {
+            cdpStatusBlocks.get(i).toXml(s);
+        }
 
-            long lastUpdate = db.lastUpdate.getTime() / 1000;
-            int pdpStep = db.header.pdpStep;
-            NumberFormat numberFormat = new DecimalFormat("0.0000000000E0", DecimalFormatSymbols.getInstance(Locale.US));
-            SimpleDateFormat dateFormat =
-                    new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
+        s.println("\t\t</cdp_prep>");
+        s.println("\t\t<database>");
 
-            while (counter++ < rowCount) {
-                row++;
+        long timer = -(rowCount - 1);
+        int counter = 0;
+        int row = currentRow;
 
-                if (row == rowCount) {
-                    row = 0;
+        long lastUpdate = db.lastUpdate.getTime() / 1000;
+        int pdpStep = db.header.pdpStep;
+        NumberFormat numberFormat = new DecimalFormat("0.0000000000E0", DecimalFormatSymbols.getInstance(Locale.US));
+        SimpleDateFormat dateFormat =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
 
-                    db.rrdFile.seek(dataOffset);
-                }
+        while (counter++ < rowCount) {
+            row++;
 
-                long now = (lastUpdate - lastUpdate % (pdpCount * pdpStep))
-                        + (timer * pdpCount * pdpStep);
+            if (row == rowCount) {
+                row = 0;
+            }
 
-                timer++;
+            long now = (lastUpdate - lastUpdate % (pdpCount * pdpStep))
+                    + (timer * pdpCount * pdpStep);
 
-                s.print("\t\t\t<!-- ");
-                s.print(dateFormat.format(new Date(now * 1000)));
-                s.print(" / ");
-                s.print(now);
-                s.print(" --> ");
+            timer++;
 
-                s.println("<row>");
-                for (int col = 0; col < db.header.dsCount; col++) {
-                    s.print("<v> ");
+            s.print("\t\t\t<!-- ");
+            s.print(dateFormat.format(new Date(now * 1000)));
+            s.print(" / ");
+            s.print(now);
+            s.print(" --> ");
 
-                    double value = db.rrdFile.readDouble();
+            s.println("<row>");
+            for (int col = 0; col < db.header.dsCount; col++) {
+                s.print("<v> ");
 
-                    // NumberFormat doesn't know how to handle NaN
-                    if (Double.isNaN(value)) {
-                        s.print("NaN");
-                    }
-                    else {
-                        s.print(numberFormat.format(value));
-                    }
+                double value = data.get(row * db.header.dsCount + col);
 
-                    s.print(" </v>");
+                // NumberFormat doesn't know how to handle NaN
+                if (Double.isNaN(value)) {
+                    s.print("NaN");
+                }
+                else {
+                    s.print(numberFormat.format(value));
                 }
 
-                s.println("</row>");
+                s.print(" </v>");
             }
 
-            s.println("\t\t</database>");
-            s.println("\t</rra>");
-        }
-        catch (IOException e) {    // Is the best thing to do here?
-            throw new RuntimeException(e.getMessage());
+            s.println("</row>");
         }
+
+        s.println("\t\t</database>");
+        s.println("\t</rra>");
     }
 
     /**
@@ -283,26 +265,66 @@ public class Archive {
      * @throws java.io.IOException if any.
      */
     public double[][] getValues() throws IOException {
-        if (values != null) {
-            return values;
-        }
-        values = new double[db.header.dsCount][rowCount];
-        int row = currentRow;
-        db.rrdFile.seek(dataOffset + (row + 1) * db.header.dsCount * 8);
-        for (int counter = 0; counter < rowCount; counter++) {
-            row++;
-            if (row == rowCount) {
-                row = 0;
-                db.rrdFile.seek(dataOffset);
-            }
-            for (int col = 0; col < db.header.dsCount; col++) {
-                double value = db.rrdFile.readDouble();
-                values[col][counter] = value;
+        double[][] values = this.values;
+        if (values == null) {
+            values = new double[db.header.dsCount][];
+            for (int col = 0; col < values.length; col++) {
+                values[col] = getValues(col);
             }
+            this.values = values;
         }
         return values;
     }
 
+    /**
+     * Returns the values of a single datasource, oldest first. Unlike {@link #getValues()},
+     * the values are read directly from the file mapping and nothing is cached.
+     *
+     * @param dsIndex index of the datasource.
+     * @return an array of double.
+     * @throws java.io.IOException if any.
+     */
+    public double[] getValues(int dsIndex) throws IOException {
+        double[] dsValues = new double[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            dsValues[i] = getValue(i, dsIndex);
+        }
+        return dsValues;
+    }
+
+    /**
+     * Returns a single value of this archive.
+     *
+     * @param index   index of the row, the oldest one has zero index.
+     * @param dsIndex index of the datasource.
+     * @return the value.
+     */
+    public double getValue(int index, int dsIndex) {
+        int row = (currentRow + 1 + index) % rowCount;
+        return data.get(row * db.header.dsCount + dsIndex);
+    }
+
+    /**
+     * Returns a read-only view over the values of this archive, directly backed by the file
+     * mapping, in the byte order of the file. Values are stored row by row, one value per
+     * datasource; the rows form a ring whose newest row is {@link #getCurrentRow()}.
+     * Each call returns a view with its own position, so concurrent readers don't interfere.
+     *
+     * @return a {@link java.nio.DoubleBuffer} of <code>rowCount * dsCount</code> values.
+     */
+    public DoubleBuffer getData() {
+        return data.duplicate();
+    }
+
+    /**
+     * Returns the index in {@link #getData()} of the newest row.
+     *
+     * @return index of the newest row.
+     */
+    public int getCurrentRow() {
+        return currentRow;
+    }
+
     /**
      * Returns the number of primary data points required for a consolidated
      * data point in this archive.
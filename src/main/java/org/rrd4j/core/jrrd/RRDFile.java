@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
@@ -181,6 +182,18 @@ class RRDFile implements Constants {
         mappedByteBuffer.position(mappedByteBuffer.position() + count);
     }
 
+    /**
+     * Returns a read-only view of <code>count</code> doubles starting at <code>offset</code>,
+     * in the byte order of the file. The view shares the mapping but not its position, so it
+     * can be read while this file is used by other threads.
+     */
+    DoubleBuffer getDoubleBuffer(long offset, int count) {
+        ByteBuffer bytes = mappedByteBuffer.duplicate();
+        bytes.position((int) offset);
+        bytes.limit((int) offset + count * 8);
+        return bytes.slice().order(order).asDoubleBuffer().asReadOnlyBuffer();
+    }
+
     UnivalArray getUnivalArray(int size) throws IOException {
         return new UnivalArray(this, size);
     }
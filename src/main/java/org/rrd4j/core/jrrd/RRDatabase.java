@@ -7,7 +7,9 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -30,6 +32,8 @@ public class RRDatabase {
     Header header;
     private ArrayList<DataSource> dataSources;
     private ArrayList<Archive> archives;
+    private final Map<ConsolidationFunctionType, ArrayList<Archive>> archivesByType =
+            new EnumMap<ConsolidationFunctionType, ArrayList<Archive>>(ConsolidationFunctionType.class);
     Date lastUpdate;
     private Map<String, Integer> nameindex;
 
@@ -75,6 +79,12 @@ public class RRDatabase {
         for (int i = 0; i < header.rraCount; i++) {
             Archive archive = new Archive(this);
             archives.add(archive);
+            ArrayList<Archive> subset = archivesByType.get(archive.getType());
+            if (subset == null) {
+                subset = new ArrayList<Archive>();
+                archivesByType.put(archive.getType(), subset);
+            }
+            subset.add(archive);
         }
 
         long last_up = (long) rrdFile.readLong() * 1000;
@@ -204,20 +214,12 @@ public class RRDatabase {
      *         in proper sequence.
      */
     public Iterator<Archive> getArchives(ConsolidationFunctionType type) {
-        return getArchiveList(type).iterator();
+        return Collections.unmodifiableList(getArchiveList(type)).iterator();
     }
 
     ArrayList<Archive> getArchiveList(ConsolidationFunctionType type) {
-
-        ArrayList<Archive> subset = new ArrayList<Archive>();
-
-        for (Archive archive : archives) {
-            if (archive.getType().equals(type)) {
-                subset.add(archive);
-            }
-        }
-
-        return subset;
+        ArrayList<Archive> subset = archivesByType.get(type);
+        return subset != null ? subset : new ArrayList<Archive>();
     }
 
     /**
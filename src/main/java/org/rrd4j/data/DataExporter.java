@@ -0,0 +1,347 @@
+package org.rrd4j.data;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data-only counterpart of rrdtool's <code>xport</code> command. It takes the DEF/CDEF/VDEF
+ * definitions of a {@link org.rrd4j.data.DataProcessor DataProcessor}, runs it and writes
+ * the calculated series directly to an output stream, row by row, without building the
+ * whole document in memory.<p>
+ *
+ * Typical class usage:<p>
+ * <pre>
+ * DataProcessor dp = new DataProcessor(t1, t2);
+ * dp.addDatasource("in", "traffic.rrd", "input", ConsolFun.AVERAGE);
+ * dp.addDatasource("out", "traffic.rrd", "output", ConsolFun.AVERAGE);
+ * dp.addDatasource("total", "in,out,+");
+ * DataExporter exporter = new DataExporter(dp);
+ * exporter.addExport("in", "Inbound");
+ * exporter.addExport("total", "Total");
+ * exporter.export(outputStream, DataExporter.Format.JSON);
+ * </pre>
+ *
+ * If no export is added, all datasources of the DataProcessor are exported, in the order
+ * they were defined. VDEF sources are exported as a constant series, as returned by
+ * {@link DataProcessor#getValues(String)}.
+ */
+public class DataExporter {
+    /**
+     * Output formats supported by the exporter.
+     */
+    public enum Format {
+        /**
+         * <code>{"meta":{...},"data":[[timestamp,v1,v2,...],...]}</code>, unknown values are written as <code>null</code>.
+         */
+        JSON,
+        /**
+         * A <code>timestamp,legend1,legend2,...</code> header line followed by one line per row,
+         * unknown values are written as <code>NaN</code>.
+         */
+        CSV,
+        /**
+         * Compact little-endian frame, see {@link DataExporter#exportBinary(OutputStream)}.
+         */
+        BINARY
+    }
+
+    /**
+     * Magic number starting each binary frame, the bytes "RXPT" read as a little-endian int.
+     */
+    public static final int BINARY_MAGIC = 0x54505852;
+    /**
+     * Version of the binary frame layout.
+     */
+    public static final int BINARY_VERSION = 1;
+
+    static final int BUFFER_SIZE = 8192;
+    private static final String CHARSET = "UTF-8";
+
+    private final DataProcessor dproc;
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> legends = new ArrayList<String>();
+
+    /**
+     * Creates an exporter for the given DataProcessor. The processor is run on the first export
+     * if its {@link DataProcessor#processData()} method was not called yet.
+     *
+     * @param dproc DataProcessor holding DEF, CDEF and VDEF definitions
+     */
+    public DataExporter(DataProcessor dproc) {
+        this.dproc = dproc;
+    }
+
+    /**
+     * Adds a source to export, using its name as legend.
+     *
+     * @param sourceName Name of a datasource defined in the DataProcessor
+     */
+    public void addExport(String sourceName) {
+        addExport(sourceName, sourceName);
+    }
+
+    /**
+     * Adds a source to export, as rrdtool's <code>XPORT:vname:legend</code>.
+     *
+     * @param sourceName Name of a datasource defined in the DataProcessor
+     * @param legend     Legend used for the column
+     */
+    public void addExport(String sourceName, String legend) {
+        names.add(sourceName);
+        legends.add(legend != null ? legend : sourceName);
+    }
+
+    /**
+     * Returns the underlying DataProcessor.
+     *
+     * @return DataProcessor object
+     */
+    public DataProcessor getDataProcessor() {
+        return dproc;
+    }
+
+    /**
+     * Writes the exported series using the given format. The stream is flushed but not closed.
+     *
+     * @param out    Destination stream
+     * @param format Output format
+     * @throws java.io.IOException Thrown in case of I/O error while fetching or writing data
+     */
+    public void export(OutputStream out, Format format) throws IOException {
+        switch (format) {
+            case JSON:
+                exportJson(out);
+                break;
+            case CSV:
+                exportCsv(out);
+                break;
+            case BINARY:
+                exportBinary(out);
+                break;
+        }
+    }
+
+    /**
+     * Writes the exported series as a JSON document:
+     * <pre>
+     * {"meta":{"start":t1,"end":t2,"step":s,"rows":n,"legend":["a","b"]},
+     *  "data":[[t,a,b],...]}
+     * </pre>
+     * The stream is flushed but not closed.
+     *
+     * @param out Destination stream
+     * @throws java.io.IOException Thrown in case of I/O error while fetching or writing data
+     */
+    public void exportJson(OutputStream out) throws IOException {
+        String[] legend = prepare();
+        long[] timestamps = dproc.getTimestamps();
+        double[][] values = getValues();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET), BUFFER_SIZE);
+        writer.write("{\"meta\":{\"start\":");
+        writer.write(Long.toString(timestamps[0]));
+        writer.write(",\"end\":");
+        writer.write(Long.toString(timestamps[timestamps.length - 1]));
+        writer.write(",\"step\":");
+        writer.write(Long.toString(dproc.getStep()));
+        writer.write(",\"rows\":");
+        writer.write(Integer.toString(timestamps.length));
+        writer.write(",\"legend\":[");
+        for (int i = 0; i < legend.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeJsonString(writer, legend[i]);
+        }
+        writer.write("]},\"data\":[");
+        for (int row = 0; row < timestamps.length; row++) {
+            if (row > 0) {
+                writer.write(',');
+            }
+            writer.write('[');
+            writer.write(Long.toString(timestamps[row]));
+            for (double[] column : values) {
+                writer.write(',');
+                double value = column[row];
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    writer.write("null");
+                }
+                else {
+                    writer.write(Double.toString(value));
+                }
+            }
+            writer.write(']');
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    /**
+     * Writes the exported series as comma separated values, with a header line holding the legends.
+     * The stream is flushed but not closed.
+     *
+     * @param out Destination stream
+     * @throws java.io.IOException Thrown in case of I/O error while fetching or writing data
+     */
+    public void exportCsv(OutputStream out) throws IOException {
+        String[] legend = prepare();
+        long[] timestamps = dproc.getTimestamps();
+        double[][] values = getValues();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET), BUFFER_SIZE);
+        writer.write("timestamp");
+        for (String l : legend) {
+            writer.write(',');
+            writeCsvString(writer, l);
+        }
+        writer.write('\n');
+        for (int row = 0; row < timestamps.length; row++) {
+            writer.write(Long.toString(timestamps[row]));
+            for (double[] column : values) {
+                writer.write(',');
+                writer.write(Double.toString(column[row]));
+            }
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the exported series as a single binary frame. All numbers are little-endian:
+     * <pre>
+     * int32   magic ({@link #BINARY_MAGIC})
+     * int32   version ({@link #BINARY_VERSION})
+     * int64   step
+     * int32   column count (c)
+     * int32   row count (r)
+     * c times: int32 legend length in bytes, UTF-8 legend bytes
+     * r times: int64 timestamp, c times float64 value
+     * </pre>
+     * The stream is flushed but not closed.
+     *
+     * @param out Destination stream
+     * @throws java.io.IOException Thrown in case of I/O error while fetching or writing data
+     */
+    public void exportBinary(OutputStream out) throws IOException {
+        String[] legend = prepare();
+        long[] timestamps = dproc.getTimestamps();
+        double[][] values = getValues();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(BINARY_MAGIC);
+        buffer.putInt(BINARY_VERSION);
+        buffer.putLong(dproc.getStep());
+        buffer.putInt(values.length);
+        buffer.putInt(timestamps.length);
+        for (String l : legend) {
+            byte[] b = l.getBytes(CHARSET);
+            ensureRemaining(out, buffer, 4);
+            buffer.putInt(b.length);
+            for (int offset = 0; offset < b.length; ) {
+                ensureRemaining(out, buffer, 1);
+                int count = Math.min(buffer.remaining(), b.length - offset);
+                buffer.put(b, offset, count);
+                offset += count;
+            }
+        }
+        int rowSize = 8 * (values.length + 1);
+        for (int row = 0; row < timestamps.length; row++) {
+            if (rowSize <= BUFFER_SIZE) {
+                ensureRemaining(out, buffer, rowSize);
+                buffer.putLong(timestamps[row]);
+                for (double[] column : values) {
+                    buffer.putDouble(column[row]);
+                }
+            }
+            else {
+                ensureRemaining(out, buffer, 8);
+                buffer.putLong(timestamps[row]);
+                for (double[] column : values) {
+                    ensureRemaining(out, buffer, 8);
+                    buffer.putDouble(column[row]);
+                }
+            }
+        }
+        drain(out, buffer);
+        out.flush();
+    }
+
+    private String[] prepare() throws IOException {
+        if (!dproc.isProcessed()) {
+            dproc.processData();
+        }
+        if (names.isEmpty()) {
+            for (String name : dproc.getSourceNames()) {
+                addExport(name);
+            }
+        }
+        return legends.toArray(new String[legends.size()]);
+    }
+
+    private double[][] getValues() {
+        double[][] values = new double[names.size()][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = dproc.getValues(names.get(i));
+        }
+        return values;
+    }
+
+    private static void ensureRemaining(OutputStream out, ByteBuffer buffer, int count) throws IOException {
+        if (buffer.remaining() < count) {
+            drain(out, buffer);
+        }
+    }
+
+    private static void drain(OutputStream out, ByteBuffer buffer) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    private static void writeJsonString(Writer writer, String s) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    private static void writeCsvString(Writer writer, String s) throws IOException {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            writer.write(s);
+        }
+        else {
+            writer.write('"');
+            writer.write(s.replace("\"", "\"\""));
+            writer.write('"');
+        }
+    }
+}
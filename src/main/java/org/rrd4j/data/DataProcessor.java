@@ -587,6 +587,16 @@ public class DataProcessor {
         assignTimestampsToSources();
         normalizeRrdValues();
         calculateNonRrdSources();
+        processed = true;
+    }
+
+    /**
+     * Returns true once the {@link #processData()} method has completed.
+     *
+     * @return true if datasource values are calculated, false otherwise
+     */
+    public boolean isProcessed() {
+        return processed;
     }
 
     /**
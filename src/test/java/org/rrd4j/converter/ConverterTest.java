@@ -1,17 +1,26 @@
 package org.rrd4j.converter;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.rrd4j.ConsolFun;
 import org.rrd4j.DsType;
 import org.rrd4j.core.RrdBackendFactory;
 import org.rrd4j.core.RrdDb;
 
 public class ConverterTest {
- 
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
     public void testRrdDbXml(RrdDb db) throws IOException {
         double value;
 
@@ -103,6 +112,63 @@ public class ConverterTest {
         testImport("/rrdtool/0001l648.rrd");
     }
 
+    @Test
+    public void testConvertAll() throws IOException, InterruptedException {
+        String[] sources = {"0003l648.rrd", "0003l328.rrd", "0003b328.rrd", "0001l648.rrd"};
+        String[] files = new String[sources.length + 1];
+        for (int i = 0; i < sources.length; i++) {
+            files[i] = copyResource("/rrdtool/" + sources[i]).getPath();
+        }
+        files[sources.length] = new File(testFolder.getRoot(), "missing.rrd").getPath();
+
+        Converter converter = new Converter();
+        converter.setThreadCount(3);
+        Converter.Stats stats = converter.convertAll(files);
+        Assert.assertEquals("Invalid total count", 5, stats.getTotalCount());
+        Assert.assertEquals("Invalid good count", 4, stats.getGoodCount());
+        Assert.assertEquals("Invalid bad count", 1, stats.getBadCount());
+        Assert.assertEquals("Invalid skipped count", 0, stats.getSkippedCount());
+        for (int i = 0; i < sources.length; i++) {
+            String destPath = converter.getDestinationPath(files[i]);
+            Assert.assertFalse("Temporary file left", new File(destPath + ".tmp").exists());
+            RrdDb rrd = new RrdDb(destPath, true, RrdBackendFactory.getFactory("FILE"));
+            testRrdDbXml(rrd);
+            rrd.close();
+        }
+
+        converter.setSkipExisting(true);
+        stats = converter.convertAll(files);
+        Assert.assertEquals("Invalid good count on resume", 0, stats.getGoodCount());
+        Assert.assertEquals("Invalid skipped count on resume", 4, stats.getSkippedCount());
+        Assert.assertEquals("Invalid bad count on resume", 1, stats.getBadCount());
+
+        converter.setSkipExisting(false);
+        Assert.assertTrue("Existing destination not replaced", converter.convertFile(files[0]));
+        String destPath = converter.getDestinationPath(files[0]);
+        Assert.assertFalse("Previous file left", new File(destPath + ".bak").exists());
+        RrdDb rrd = new RrdDb(destPath, true, RrdBackendFactory.getFactory("FILE"));
+        testRrdDbXml(rrd);
+        rrd.close();
+    }
+
+    private File copyResource(String resource) throws IOException {
+        File file = new File(testFolder.getRoot(), resource.substring(resource.lastIndexOf('/') + 1));
+        InputStream in = getClass().getResourceAsStream(resource);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+        return file;
+    }
+
     private void testImport(String file) throws IOException {
         URL url = getClass().getResource(file); 
         RrdDb rrd = new RrdDb("test", "rrdtool:/" + url.getFile(), RrdBackendFactory.getFactory("MEMORY"));
@@ -0,0 +1,162 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+public class RrdBerkeleyDbBackendTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private Environment environment;
+    private Database database;
+
+    @Before
+    public void openDatabase() throws IOException {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        envConfig.setTransactional(true);
+        environment = new Environment(testFolder.newFolder("je"), envConfig);
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        dbConfig.setTransactional(true);
+        database = environment.openDatabase(null, "rrd4j", dbConfig);
+    }
+
+    @After
+    public void closeDatabase() {
+        database.close();
+        environment.close();
+    }
+
+    private RrdDef getDef(String path) {
+        RrdDef def = new RrdDef(path, 920804400L, 300);
+        def.addDatasource("speed", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addDatasource("weight", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 2000);
+        return def;
+    }
+
+    private void update(RrdDb rrd, int from, int to) throws IOException {
+        for (int i = from; i <= to; i++) {
+            rrd.createSample(920804400L + 300 * i).setValue(0, 300 * i).setValue(1, i).update();
+        }
+    }
+
+    @Test
+    public void testDirtyPages() throws IOException {
+        RrdBerkeleyDbBackendFactory factory = new RrdBerkeleyDbBackendFactory(database, false);
+        factory.setPageSize(1024);
+        RrdDb rrd = new RrdDb(getDef("paged"), factory);
+        long length = rrd.getRrdBackend().getLength();
+        rrd.close();
+        int pageCount = (int) ((length + 1023) / 1024);
+        Assert.assertEquals("Invalid record count", pageCount + 1, database.count());
+
+        Assert.assertTrue("RRD not found", factory.exists("paged"));
+        RrdBerkeleyDbBackend backend = (RrdBerkeleyDbBackend) factory.open("paged", false);
+        backend.write(2000, new byte[100]);
+        BitSet written = backend.flush(null);
+        Assert.assertEquals("Only dirty pages must be written", 2, written.cardinality());
+        Assert.assertTrue("Dirty page not written", written.get(1) && written.get(2));
+        Assert.assertEquals("Clean RRD written", 0, backend.flush(null).cardinality());
+        backend.close();
+
+        rrd = new RrdDb("paged", factory);
+        update(rrd, 1, 10);
+        rrd.close();
+        rrd = new RrdDb("paged", true, factory);
+        Assert.assertEquals("Invalid last update", 920804400L + 3000, rrd.getLastUpdateTime());
+        Assert.assertEquals("Invalid last value", 10, rrd.getDatasource(1).getLastValue(), 0);
+        rrd.close();
+
+        factory.delete("paged");
+        Assert.assertEquals("Pages not deleted", 0, database.count());
+    }
+
+    @Test
+    public void testSingleRecordConversion() throws IOException {
+        RrdBerkeleyDbBackendFactory factory = new RrdBerkeleyDbBackendFactory(database, false);
+        RrdDb rrd = new RrdDb(getDef("single"), factory);
+        update(rrd, 1, 5);
+        rrd.close();
+        Assert.assertEquals("Invalid record count", 1, database.count());
+
+        factory.setPageSize(4096);
+        rrd = new RrdDb("single", factory);
+        String dump = rrd.dump();
+        rrd.close();
+        Assert.assertEquals("Unmodified RRD converted", 1, database.count());
+        rrd = new RrdDb("single", factory);
+        update(rrd, 6, 8);
+        rrd.close();
+        Assert.assertTrue("Modified RRD not converted", database.count() > 1);
+
+        rrd = new RrdDb("single", true, factory);
+        Assert.assertEquals("Invalid last update", 920804400L + 2400, rrd.getLastUpdateTime());
+        Assert.assertFalse("RRD not updated", dump.equals(rrd.dump()));
+        rrd.close();
+    }
+
+    @Test
+    public void testSync() throws IOException {
+        RrdBerkeleyDbBackendFactory factory = new RrdBerkeleyDbBackendFactory(database, false);
+        factory.setPageSize(512);
+        RrdDb rrd1 = new RrdDb(getDef("sync1"), factory);
+        RrdDb rrd2 = new RrdDb(getDef("sync2"), factory);
+        update(rrd1, 1, 3);
+        update(rrd2, 1, 4);
+        Assert.assertEquals("Invalid synced RRDs", 2, factory.sync());
+        Assert.assertEquals("Clean RRDs synced", 0, factory.sync());
+
+        // a second factory only sees what was synced
+        RrdBerkeleyDbBackendFactory reader = new RrdBerkeleyDbBackendFactory(database, false);
+        RrdDb rrd = new RrdDb("sync2", true, reader);
+        Assert.assertEquals("Invalid last update", 920804400L + 1200, rrd.getLastUpdateTime());
+        rrd.close();
+
+        update(rrd1, 4, 4);
+        Assert.assertEquals("Invalid synced RRDs", 1, factory.sync());
+        rrd1.close();
+        rrd2.close();
+    }
+
+    @Test
+    public void testSyncDuringUpdate() throws IOException {
+        RrdBerkeleyDbBackendFactory factory = new RrdBerkeleyDbBackendFactory(database, false);
+        factory.setPageSize(512);
+        RrdDb rrd = new RrdDb(getDef("updating"), factory);
+        update(rrd, 1, 3);
+        Assert.assertEquals("Invalid synced RRDs", 1, factory.sync());
+
+        update(rrd, 4, 4);
+        RrdBackend backend = rrd.getRrdBackend();
+        backend.beginUpdate();
+        Assert.assertEquals("RRD synced during an update", 0, factory.sync());
+        RrdBerkeleyDbBackendFactory reader = new RrdBerkeleyDbBackendFactory(database, false);
+        RrdDb stored = new RrdDb("updating", true, reader);
+        Assert.assertEquals("Invalid last update", 920804400L + 900, stored.getLastUpdateTime());
+        stored.close();
+
+        backend.commitUpdate();
+        Assert.assertEquals("Invalid synced RRDs", 1, factory.sync());
+        stored = new RrdDb("updating", true, reader);
+        Assert.assertEquals("Invalid last update", 920804400L + 1200, stored.getLastUpdateTime());
+        stored.close();
+        rrd.close();
+    }
+}
@@ -0,0 +1,66 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class RrdBulkUpdaterTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private String create(String name) throws IOException {
+        String path = new File(testFolder.getRoot(), name).getPath();
+        RrdDef def = new RrdDef(path, 920804400L, 300);
+        def.addDatasource("in", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addDatasource("out", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 100);
+        new RrdDb(def).close();
+        return path;
+    }
+
+    @Test
+    public void testUpdateLog() throws IOException {
+        String path1 = create("router1.rrd");
+        String path2 = create("router 2.rrd");
+        StringBuilder log = new StringBuilder("# replayed updates\n");
+        // out of order, both formats, one RRD quoted
+        for (int i = 20; i >= 1; i--) {
+            log.append(path1).append(' ').append(920804400L + 300 * i).append(':').append(i).append(":U\n");
+            log.append("update \"").append(path2).append("\" ").append(920804400L + 300 * i)
+                    .append(" in=").append(i).append(",out=").append(2 * i).append('\n');
+        }
+        log.append(path1).append(' ').append(920804400L + 300).append(":99:99\n");   // duplicate time
+        log.append(path1).append(' ').append(920804400L).append(":1:1\n");           // not after the last update
+        log.append(path2).append(" 920810700 unknown=1\n");                           // unknown datasource
+        log.append(new File(testFolder.getRoot(), "missing.rrd").getPath()).append(" 920810700:1:1\n");
+        log.append(path1).append(" garbage\n");
+
+        RrdBulkUpdater updater = new RrdBulkUpdater(RrdDbPool.getInstance());
+        updater.setThreads(2);
+        RrdBulkUpdater.Result result = updater.update(new StringReader(log.toString()));
+
+        Assert.assertEquals("Invalid row count", 45, result.getRowCount());
+        Assert.assertEquals("Invalid update count", 40, result.getUpdateCount());
+        Assert.assertEquals("Invalid rejected count", 5, result.getRejectedCount());
+        Assert.assertEquals("Invalid RRD count", 3, result.getRrdCount());
+        Assert.assertEquals("Invalid failed RRD count", 1, result.getFailedRrdCount());
+        Assert.assertEquals("Invalid error count", 5, result.getErrors().size());
+        Assert.assertTrue("Invalid result", result.toString().contains("40 updates"));
+
+        RrdDb rrd = new RrdDb(path1, true);
+        Assert.assertEquals("Invalid last update", 920804400L + 6000, rrd.getLastUpdateTime());
+        FetchData data = rrd.createFetchRequest(ConsolFun.AVERAGE, 920804400L + 300, 920804400L + 300).fetchData();
+        Assert.assertEquals("Duplicate sample stored", 1, data.getValues("in")[0], 0);
+        rrd.close();
+        rrd = new RrdDb(path2, true);
+        Assert.assertEquals("Invalid last value", 40, rrd.getDatasource("out").getLastValue(), 0);
+        rrd.close();
+    }
+}
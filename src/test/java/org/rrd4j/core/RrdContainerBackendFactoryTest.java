@@ -0,0 +1,109 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class RrdContainerBackendFactoryTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDef getDef(String id, int rows) {
+        RrdDef def = new RrdDef(id, 920804400L, 300);
+        def.addDatasource("in", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addDatasource("out", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, rows);
+        def.addArchive(ConsolFun.MAX, 0.5, 6, rows);
+        return def;
+    }
+
+    @Test
+    public void testManyRrds() throws IOException {
+        File file = new File(testFolder.getRoot(), "test.rrdc");
+        RrdContainerBackendFactory factory = new RrdContainerBackendFactory(file, 100, 4096);
+        for (int i = 0; i < 50; i++) {
+            RrdDb rrd = new RrdDb(getDef("router" + i + "/eth0", 100), factory);
+            for (int j = 1; j <= 10; j++) {
+                rrd.createSample(920804400L + 300 * j).setValue(0, 300 * j).setValue(1, i).update();
+            }
+            rrd.close();
+        }
+        Assert.assertEquals("Invalid RRD count", 50, factory.getRrdCount());
+        Assert.assertTrue("Container not grown", factory.getSize() > 4096);
+        factory.close();
+
+        factory = new RrdContainerBackendFactory(file);
+        Assert.assertEquals("Invalid max entries", 100, factory.getMaxEntries());
+        Assert.assertEquals("RRDs not found", 50, factory.getRrdCount());
+        for (int i = 0; i < 50; i++) {
+            RrdDb rrd = new RrdDb("router" + i + "/eth0", true, factory);
+            Assert.assertEquals("Invalid last update", 920804400L + 3000, rrd.getLastUpdateTime());
+            Assert.assertEquals("Invalid last value", i, rrd.getDatasource(1).getLastValue(), 0);
+            rrd.close();
+        }
+        factory.close();
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        File file = new File(testFolder.getRoot(), "delete.rrdc");
+        RrdContainerBackendFactory factory = new RrdContainerBackendFactory(file, 2, 4096);
+        new RrdDb(getDef("a", 100), factory).close();
+        new RrdDb(getDef("b", 100), factory).close();
+        long size = factory.getSize();
+        try {
+            new RrdDb(getDef("c", 100), factory);
+            Assert.fail("Container not full");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        RrdDb open = new RrdDb("a", factory);
+        try {
+            factory.delete("a");
+            Assert.fail("Open RRD deleted");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        open.close();
+        Assert.assertTrue("RRD not deleted", factory.delete("a"));
+        Assert.assertFalse("RRD still found", factory.exists("a"));
+        RrdDb rrd = new RrdDb(getDef("c", 100), factory);
+        rrd.createSample(920804700L).setValue(1, 12).update();
+        rrd.close();
+        Assert.assertEquals("Section not reused", size, factory.getSize());
+
+        // a section of another size when no slot is left
+        Assert.assertTrue("RRD not deleted", factory.delete("b"));
+        new RrdDb(getDef("d", 200), factory).close();
+        factory.close();
+
+        factory = new RrdContainerBackendFactory(file);
+        Assert.assertTrue("RRD not found", factory.exists("c"));
+        Assert.assertTrue("RRD not found", factory.exists("d"));
+        Assert.assertFalse("Deleted RRD found", factory.exists("b"));
+        rrd = new RrdDb("c", true, factory);
+        Assert.assertEquals("Invalid last value", 12, rrd.getDatasource(1).getLastValue(), 0);
+        rrd.close();
+        factory.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotContainer() throws IOException {
+        File file = testFolder.newFile("other.rrdc");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[128]);
+        out.close();
+        new RrdContainerBackendFactory(file);
+    }
+}
@@ -195,4 +195,38 @@ public class RrdDbPoolTest {
         String[] files = instance.getOpenFiles();
         Assert.assertArrayEquals(new String[]{}, files);
     }
+
+    @Test(timeout=1000)
+    public void testHandle() throws IOException {
+        final RrdDbPool instance = new RrdDbPool();
+        File dir = testFolder.newFolder("handle");
+        String path = new File(dir, "test.rrd").getPath();
+        RrdDef def = new RrdDef(path);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 215);
+        def.addDatasource("bar", DsType.GAUGE, 3000, Double.NaN, Double.NaN);
+        instance.release(instance.requestRrdDb(def));
+
+        RrdDbPool.Handle handle = instance.getHandle(path);
+        Assert.assertEquals("Invalid canonical path", new File(path).getCanonicalPath(), handle.getCanonicalPath());
+        RrdDb db = instance.requestRrdDb(handle);
+        RrdDb other = instance.requestRrdDb(path);
+        Assert.assertSame("Handle and path not pooled together", db, other);
+        Assert.assertEquals("Invalid open count", 2, instance.getOpenCount(path));
+        instance.release(db);
+        instance.release(other);
+        Assert.assertEquals("Invalid open count", 0, instance.getOpenCount(path));
+
+        RrdCanonicalPathCache cache = new RrdCanonicalPathCache(4);
+        for (int i = 0; i < 10; i++) {
+            cache.getCanonicalPath(new File(dir, i + ".rrd").getPath());
+        }
+        Assert.assertTrue("Cache not bounded", cache.size() <= 4);
+        cache.clear();
+        String alias = new File(dir, "..").getPath() + File.separator + "handle" + File.separator + "test.rrd";
+        cache.getCanonicalPath(alias);
+        cache.getCanonicalPath(path);
+        Assert.assertEquals("Invalid cache size", 2, cache.size());
+        cache.invalidate(path);
+        Assert.assertEquals("Alias not invalidated", 0, cache.size());
+    }
 }
@@ -5,6 +5,8 @@ import static org.rrd4j.ConsolFun.MAX;
 import static org.rrd4j.ConsolFun.TOTAL;
 import static org.rrd4j.DsType.GAUGE;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Calendar;
@@ -237,6 +239,27 @@ public class RrdDbTest {
         testRrdDbXml(rrd);
     }
 
+    @Test
+    public void testXmlDumpWithoutComments() throws IOException {
+        URL url = getClass().getResource("/rrdtool/rrdtool1.xml");
+        RrdDb rrd = new RrdDb(testFolder.newFile("testxmldump.rrd").getCanonicalPath(), "xml:/" + url.getFile(), RrdBackendFactory.getFactory("FILE"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        rrd.dumpXml(out, false);
+        String xml = out.toString();
+        Assert.assertFalse("Comment found", xml.contains("<!--"));
+        Assert.assertEquals("Invalid rows", rrd.getXml().replaceAll("\\s*<!--.*-->", ""), xml);
+
+        String xmlPath = testFolder.newFile("testxmldump.xml").getCanonicalPath();
+        FileOutputStream xmlFile = new FileOutputStream(xmlPath);
+        xmlFile.write(out.toByteArray());
+        xmlFile.close();
+        RrdDb copy = new RrdDb(testFolder.newFile("testxmldumpcopy.rrd").getCanonicalPath(), "xml:/" + xmlPath, RrdBackendFactory.getFactory("FILE"));
+        testRrdDbXml(copy);
+        Assert.assertEquals("Invalid values", rrd.getArchive(0).dump(), copy.getArchive(0).dump());
+        rrd.close();
+        copy.close();
+    }
+
     @Test
     public void testSpike() throws IOException {
         RrdDef rrdDef = new RrdDef(testFolder.newFile("testSpike.rrd").getCanonicalPath(), 0, 60);
@@ -271,4 +294,276 @@ public class RrdDbTest {
         Assert.assertEquals("Bad average in point 2", 30, values[2], 1e-3);
         Assert.assertEquals("Data after last entry", Double.NaN, values[3], 0.0);
     }
+
+    private RrdDb createReorderedDb(String name) throws IOException {
+        RrdDef rrdDef = new RrdDef(testFolder.newFile(name).getCanonicalPath(), 920804400L, 60);
+        rrdDef.addDatasource("ds", GAUGE, 600, Double.NaN, Double.NaN);
+        rrdDef.addArchive(AVERAGE, 0.5, 1, 100);
+        rrdDef.addArchive(MAX, 0.5, 5, 100);
+        return new RrdDb(rrdDef);
+    }
+
+    @Test
+    public void testReorderWindow() throws IOException {
+        RrdDb ordered = createReorderedDb("ordered.rrd");
+        RrdDb reordered = createReorderedDb("reordered.rrd");
+        reordered.setReorderWindow(300);
+        long start = 920804400L;
+        for (int i = 1; i <= 50; i++) {
+            ordered.createSample(start + 60 * i).setValue(0, i).update();
+        }
+        // pairs of samples swapped
+        for (int i = 1; i <= 50; i += 2) {
+            reordered.createSample(start + 60 * (i + 1)).setValue(0, i + 1).update();
+            reordered.createSample(start + 60 * i).setValue(0, i).update();
+        }
+        Assert.assertEquals("Samples not held", 5, reordered.getBufferedSampleCount());
+        Assert.assertEquals("Invalid last update", start + 60 * 45, reordered.getLastUpdateTime());
+
+        // too late, and duplicate
+        reordered.createSample(start + 60 * 40).setValue(0, 0).update();
+        reordered.createSample(start + 60 * 49).setValue(0, 0).update();
+        Assert.assertEquals("Late samples not dropped", 2, reordered.getLateSampleCount());
+
+        reordered.flushReorderBuffer();
+        Assert.assertEquals("Samples still held", 0, reordered.getBufferedSampleCount());
+        Assert.assertEquals("Reordered updates differ", ordered.dump(), reordered.dump());
+        ordered.close();
+        reordered.close();
+    }
+
+    private static class FailingBackend extends RrdMemoryBackend {
+        int writes;
+        int failAt = -1;
+
+        FailingBackend(String path) {
+            super(path);
+        }
+
+        protected synchronized void write(long offset, byte[] bytes) throws IOException {
+            if (++writes == failAt) {
+                throw new IOException("Write failed");
+            }
+            super.write(offset, bytes);
+        }
+    }
+
+    private static RrdBackendFactory getFailingFactory(final FailingBackend backend) {
+        return new RrdBackendFactory() {
+            protected RrdBackend open(String path, boolean readOnly) {
+                return backend;
+            }
+
+            protected boolean exists(String path) {
+                return false;
+            }
+
+            protected boolean shouldValidateHeader(String path) {
+                return false;
+            }
+
+            public String getName() {
+                return "FAILING";
+            }
+        };
+    }
+
+    @Test
+    public void testReorderWindowFailure() throws IOException {
+        FailingBackend backend = new FailingBackend("failing");
+        RrdBackendFactory factory = getFailingFactory(backend);
+        long start = 920804400L;
+        RrdDef rrdDef = new RrdDef("failing", start, 60);
+        rrdDef.addDatasource("ds", GAUGE, 600, Double.NaN, Double.NaN);
+        rrdDef.addArchive(AVERAGE, 0.5, 1, 10);
+        RrdDb rrdDb = new RrdDb(rrdDef, factory);
+        rrdDb.setReorderWindow(300);
+        for (int i = 1; i <= 5; i++) {
+            rrdDb.createSample(start + 60 * i).setValue(0, i).update();
+        }
+        backend.failAt = backend.writes + 1;
+        try {
+            rrdDb.createSample(start + 60 * 7).setValue(0, 7).update();
+            Assert.fail("Write failure not reported");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals("Failed sample not counted", 1, rrdDb.getLateSampleCount());
+        Assert.assertEquals("Next samples not held", 5, rrdDb.getBufferedSampleCount());
+
+        backend.failAt = -1;
+        rrdDb.flushReorderBuffer();
+        Assert.assertEquals("Held samples not stored", start + 60 * 7, rrdDb.getLastUpdateTime());
+        rrdDb.close();
+    }
+
+    @Test
+    public void testReorderWindowFailureInBatch() throws IOException {
+        FailingBackend backend = new FailingBackend("failing");
+        RrdBackendFactory factory = getFailingFactory(backend);
+        long start = 920804400L;
+        RrdDef rrdDef = new RrdDef("failing", start, 60);
+        rrdDef.addDatasource("ds", GAUGE, 600, Double.NaN, Double.NaN);
+        rrdDef.addArchive(AVERAGE, 0.5, 1, 10);
+        RrdDb rrdDb = new RrdDb(rrdDef, factory);
+        int writes = backend.writes;
+        rrdDb.createSample(start + 60).setValue(0, 1).update();
+        int sampleWrites = backend.writes - writes;
+
+        rrdDb.setReorderWindow(300);
+        for (int i = 2; i <= 6; i++) {
+            rrdDb.createSample(start + 60 * i).setValue(0, i).update();
+        }
+        // samples 2 to 4 are due, the third one of them fails
+        backend.failAt = backend.writes + 2 * sampleWrites + sampleWrites / 2;
+        try {
+            rrdDb.createSample(start + 60 * 9).setValue(0, 9).update();
+            Assert.fail("Write failure not reported");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals("Samples before the failure not stored", start + 60 * 3, rrdDb.getLastUpdateTime());
+        Assert.assertEquals("Failed sample not counted", 1, rrdDb.getLateSampleCount());
+        Assert.assertEquals("Next samples not held", 3, rrdDb.getBufferedSampleCount());
+
+        backend.failAt = -1;
+        rrdDb.flushReorderBuffer();
+        Assert.assertEquals("Held samples not stored", start + 60 * 9, rrdDb.getLastUpdateTime());
+        Assert.assertEquals("Held samples lost", 1, rrdDb.getLateSampleCount());
+        rrdDb.close();
+    }
+
+    @Test
+    public void testLongGap() throws IOException {
+        long start = 920804400L;
+        RrdDef rrdDef = new RrdDef(testFolder.newFile("gap.rrd").getCanonicalPath(), start, 60);
+        rrdDef.addDatasource("kept", GAUGE, 100000, Double.NaN, Double.NaN);
+        rrdDef.addDatasource("lost", GAUGE, 600, Double.NaN, Double.NaN);
+        rrdDef.addArchive(AVERAGE, 0.5, 6, 10);
+        rrdDef.addArchive(TOTAL, 0.5, 6, 10);
+        RrdDb rrdDb = new RrdDb(rrdDef);
+        rrdDb.createSample(start + 60).setValue(0, 5).setValue(1, 5).update();
+        rrdDb.createSample(start + 60000).setValue(0, 7).setValue(1, 7).update();
+
+        Archive average = rrdDb.getArchive(AVERAGE, 6);
+        double[] kept = average.getRobin(0).getValues();
+        for (int i = 0; i < kept.length; i++) {
+            Assert.assertEquals("Bad average " + i, 7, kept[i], 0);
+        }
+        Assert.assertEquals("Bad accumulated value", 28, average.getArcState(0).getAccumValue(), 0);
+        Assert.assertEquals("Bad accumulated total", 28, rrdDb.getArchive(TOTAL, 6).getArcState(0).getAccumValue(), 0);
+        Assert.assertEquals("Bad unknown steps", 4, average.getArcState(1).getNanSteps());
+        Assert.assertTrue("Unknown value archived", Double.isNaN(average.getRobin(1).getValue(9)));
+        rrdDb.close();
+    }
+
+    @Test
+    public void testDefinitionSetters() throws IOException {
+        String path = testFolder.newFile("setters.rrd").getCanonicalPath();
+        RrdDef rrdDef = new RrdDef(path, 920804400L, 60);
+        rrdDef.addDatasource("ds", GAUGE, 600, Double.NaN, Double.NaN);
+        rrdDef.addArchive(AVERAGE, 0.5, 6, 10);
+        RrdDb rrdDb = new RrdDb(rrdDef);
+        Assert.assertEquals("Bad type", GAUGE, rrdDb.getDatasource(0).getType());
+        Assert.assertEquals("Bad consolidation function", AVERAGE, rrdDb.getArchive(0).getConsolFun());
+        rrdDb.getDatasource(0).setDsType(DsType.COUNTER);
+        rrdDb.getDatasource(0).setHeartbeat(1200);
+        rrdDb.getDatasource(0).setMinMaxValue(0, 100, false);
+        rrdDb.getArchive(0).setXff(0.25);
+        Assert.assertEquals("Type not changed", DsType.COUNTER, rrdDb.getDatasource(0).getType());
+        Assert.assertEquals("Heartbeat not changed", 1200, rrdDb.getDatasource(0).getHeartbeat());
+        rrdDb.close();
+
+        rrdDb = new RrdDb(path, true);
+        Datasource ds = rrdDb.getDatasource(0);
+        Assert.assertEquals("Type not stored", DsType.COUNTER, ds.getType());
+        Assert.assertEquals("Heartbeat not stored", 1200, ds.getHeartbeat());
+        Assert.assertEquals("Min value not stored", 0, ds.getMinValue(), 0);
+        Assert.assertEquals("Max value not stored", 100, ds.getMaxValue(), 0);
+        Assert.assertEquals("Xff not stored", 0.25, rrdDb.getArchive(0).getXff(), 0);
+        rrdDb.close();
+    }
+
+    @Test
+    public void testDefinitionChangedElsewhere() throws IOException {
+        RrdMemoryBackendFactory factory = new RrdMemoryBackendFactory();
+        RrdDef rrdDef = new RrdDef("shared", 920804400L, 60);
+        rrdDef.addDatasource("ds", GAUGE, 600, Double.NaN, Double.NaN);
+        rrdDef.addArchive(AVERAGE, 0.5, 6, 10);
+        RrdDb rrdDb = new RrdDb(rrdDef, factory);
+        Assert.assertEquals("Bad type", GAUGE, rrdDb.getDatasource(0).getType());
+
+        RrdDb other = new RrdDb("shared", factory);
+        other.getDatasource(0).setDsType(DsType.COUNTER);
+        other.getDatasource(0).setHeartbeat(1200);
+        other.getDatasource(0).setMinMaxValue(0, 100, false);
+        other.getArchive(0).setXff(0.25);
+        other.close();
+
+        Datasource ds = rrdDb.getDatasource(0);
+        Assert.assertEquals("Stale type", DsType.COUNTER, ds.getType());
+        Assert.assertEquals("Stale heartbeat", 1200, ds.getHeartbeat());
+        Assert.assertEquals("Stale max value", 100, ds.getMaxValue(), 0);
+        Assert.assertEquals("Stale xff", 0.25, rrdDb.getArchive(0).getXff(), 0);
+        rrdDb.close();
+    }
+
+    @Test
+    public void testDefinitionChangedBeforeUpdate() throws IOException {
+        long start = 920804400L;
+        String path = testFolder.newFile("changed.rrd").getCanonicalPath();
+        RrdDef rrdDef = new RrdDef(path, start, 60);
+        rrdDef.addDatasource("ds", GAUGE, 600, Double.NaN, Double.NaN);
+        rrdDef.addArchive(AVERAGE, 0.5, 1, 10);
+        // RrdToolkit opens its own RrdDb with the default factory
+        RrdDb rrdDb = new RrdDb(rrdDef);
+        rrdDb.createSample(start + 60).setValue(0, 200).update();
+        Assert.assertEquals("Bad max value", Double.NaN, rrdDb.getDatasource(0).getMaxValue(), 0);
+
+        RrdToolkit.setDsMaxValue(path, "ds", 100, false);
+
+        // the next update rejects a value over the new maximum
+        rrdDb.createSample(start + 90).setValue(0, 200).update();
+        Datasource ds = rrdDb.getDatasource(0);
+        Assert.assertEquals("Stale max value", 100, ds.getMaxValue(), 0);
+        Assert.assertEquals("Value over the maximum kept", 0, ds.getAccumValue(), 0);
+        Assert.assertEquals("Value over the maximum kept", 30, ds.getNanSeconds());
+        rrdDb.close();
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        long start = 920804400L;
+        RrdDef rrdDef = new RrdDef(testFolder.newFile("snapshot.rrd").getCanonicalPath(), start, 60);
+        rrdDef.addDatasource("ds", GAUGE, 600, Double.NaN, Double.NaN);
+        rrdDef.addArchive(AVERAGE, 0.5, 1, 100);
+        rrdDef.addArchive(MAX, 0.5, 5, 100);
+        RrdDb rrdDb = new RrdDb(rrdDef);
+        for (int i = 1; i <= 50; i++) {
+            rrdDb.createSample(start + 60 * i).setValue(0, i).update();
+        }
+        String expected = rrdDb.dump();
+        RrdDb snapshot = rrdDb.snapshot();
+        for (int i = 51; i <= 100; i++) {
+            rrdDb.createSample(start + 60 * i).setValue(0, i).update();
+        }
+
+        Assert.assertEquals("Snapshot changed by updates", expected, snapshot.dump());
+        Assert.assertEquals("Invalid snapshot path", rrdDb.getPath(), snapshot.getPath());
+        Assert.assertEquals("Invalid last update", start + 3000, snapshot.getLastUpdateTime());
+        FetchData data = snapshot.createFetchRequest(MAX, start + 600, start + 3000).fetchData();
+        double[] values = data.getValues("ds");
+        Assert.assertEquals("Invalid fetched maximum", 50, values[values.length - 1], 0);
+        try {
+            snapshot.createSample(start + 6060).setValue(0, 1).update();
+            Assert.fail("Snapshot updated");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        snapshot.close();
+        rrdDb.close();
+    }
 }
@@ -0,0 +1,86 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class RrdHeaderValidatorTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private String create(String name, RrdBackendFactory factory) throws IOException {
+        String path = new File(testFolder.getRoot(), name).getCanonicalPath();
+        RrdDef def = new RrdDef(path, 920804400L, 300);
+        def.addDatasource("speed", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 100);
+        new RrdDb(def, factory).close();
+        return path;
+    }
+
+    @Test
+    public void testBulkValidation() throws Exception {
+        RrdFileBackendFactory factory = new RrdRandomAccessFileBackendFactory();
+        RrdHeaderValidator validator = new RrdHeaderValidator();
+        for (int i = 0; i < 5; i++) {
+            create("valid" + i + ".rrd", factory);
+        }
+        File invalid = testFolder.newFile("invalid.rrd");
+        FileOutputStream out = new FileOutputStream(invalid);
+        out.write(new byte[1024]);
+        out.close();
+
+        List<String> invalidPaths = validator.startValidation(testFolder.getRoot().getPath(), ".rrd", false, 3).get();
+        Assert.assertEquals("Invalid files", 1, invalidPaths.size());
+        Assert.assertEquals("Invalid file", invalid.getCanonicalPath(), invalidPaths.get(0));
+        Assert.assertEquals("Invalid validated count", 5, validator.getValidatedCount());
+
+        String path = new File(testFolder.getRoot(), "valid0.rrd").getCanonicalPath();
+        Assert.assertFalse("Valid file checked again", validator.shouldValidate(path));
+        Assert.assertTrue("Invalid file not checked", validator.shouldValidate(invalid.getPath()));
+        Assert.assertFalse("Symbolic path not resolved", validator.shouldValidate(
+                new File(new File(testFolder.getRoot(), "."), "valid0.rrd").getPath()));
+        validator.invalidate(path);
+        Assert.assertTrue("Invalidated file not checked", validator.shouldValidate(path));
+
+        // a validation pass finds the files replaced behind the cache
+        File valid1 = new File(testFolder.getRoot(), "valid1.rrd");
+        out = new FileOutputStream(valid1);
+        out.write(new byte[1024]);
+        out.close();
+        Assert.assertFalse("Replaced file checked", validator.shouldValidate(valid1.getPath()));
+        invalidPaths = validator.validate(testFolder.getRoot().getPath(), ".rrd", false, 2);
+        Assert.assertEquals("Replaced file not found", 2, invalidPaths.size());
+        Assert.assertTrue("Replaced file not checked", validator.shouldValidate(valid1.getPath()));
+
+        validator.setTrusted(true);
+        Assert.assertFalse("Trusted file checked", validator.shouldValidate(invalid.getPath()));
+    }
+
+    @Test
+    public void testOpenRemembersHeader() throws IOException {
+        RrdFileBackendFactory factory = new RrdRandomAccessFileBackendFactory();
+        String path = create("open.rrd", factory);
+        RrdHeaderValidator validator = factory.getHeaderValidator();
+        Assert.assertFalse("Created file not remembered", factory.shouldValidateHeader(path));
+        validator.clear();
+
+        RrdDb rrd = new RrdDb(path, true, factory);
+        rrd.close();
+        Assert.assertFalse("Opened file not remembered", factory.shouldValidateHeader(path));
+
+        rrd = new RrdDb(path, factory);
+        rrd.createSample(920804400L + 300).setValue(0, 300).update();
+        rrd.close();
+        Assert.assertFalse("Updated file not remembered", factory.shouldValidateHeader(path));
+        Assert.assertEquals("Updated file checked by a validation pass", 0,
+                validator.validate(testFolder.getRoot().getPath(), ".rrd", false, 1).size());
+    }
+}
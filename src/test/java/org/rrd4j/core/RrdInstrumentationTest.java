@@ -0,0 +1,98 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class RrdInstrumentationTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDef getDef(String path) {
+        RrdDef def = new RrdDef(path, 920804400L, 300);
+        def.addDatasource("speed", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 100);
+        return def;
+    }
+
+    @After
+    public void disable() throws Exception {
+        RrdInstrumentation.setEnabled(false);
+        RrdInstrumentation.setPerPath(false);
+        RrdInstrumentation.unregisterMBeans();
+        RrdInstrumentation.reset();
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        RrdDb rrd = new RrdDb(getDef("disabled"), RrdBackendFactory.getFactory("MEMORY"));
+        Assert.assertTrue("Backend decorated", rrd.getRrdBackend() instanceof RrdMemoryBackend);
+        rrd.close();
+    }
+
+    @Test
+    public void testBackendStats() throws Exception {
+        RrdInstrumentation.setEnabled(true);
+        RrdInstrumentation.setPerPath(true);
+        RrdInstrumentation.reset();
+        RrdInstrumentation.registerMBeans();
+
+        RrdDb rrd = new RrdDb(getDef("instrumented"), RrdBackendFactory.getFactory("MEMORY"));
+        long length = rrd.getRrdBackend().getLength();
+        for (int i = 1; i <= 10; i++) {
+            rrd.createSample(920804400L + 300 * i).setValue(0, 300 * i).update();
+        }
+        rrd.close();
+
+        RrdIoStats stats = RrdInstrumentation.getFactoryStats().get("MEMORY");
+        Assert.assertNotNull("No factory stats", stats);
+        Assert.assertEquals("Invalid set length count", 1, stats.getSetLengthCount());
+        Assert.assertEquals("Invalid allocated bytes", length, stats.getBytes(RrdIoStats.Operation.SET_LENGTH));
+        Assert.assertTrue("No writes counted", stats.getWriteCount() > 10);
+        Assert.assertEquals("Invalid close count", 1, stats.getCloseCount());
+        long histogramCount = 0;
+        for (long count : stats.getWriteLatencyHistogram()) {
+            histogramCount += count;
+        }
+        Assert.assertEquals("Invalid write histogram", stats.getWriteCount(), histogramCount);
+
+        RrdIoStats path = RrdInstrumentation.getPathStats().get("instrumented");
+        Assert.assertNotNull("No path stats", path);
+        Assert.assertEquals("Invalid path write count", stats.getWriteCount(), path.getWriteCount());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = RrdInstrumentation.getObjectName(stats);
+        Assert.assertEquals("Invalid JMX write count", stats.getWriteCount(), server.getAttribute(name, "WriteCount"));
+
+        // snapshots are detached
+        new RrdDb("instrumented", true, RrdBackendFactory.getFactory("MEMORY")).close();
+        Assert.assertEquals("Snapshot modified", 1, stats.getCloseCount());
+        Assert.assertEquals("Invalid close count", 2, RrdInstrumentation.getFactoryStats().get("MEMORY").getCloseCount());
+    }
+
+    @Test
+    public void testPoolStats() throws IOException {
+        RrdInstrumentation.setEnabled(true);
+        String path = new File(testFolder.getRoot(), "pool.rrd").getPath();
+        new RrdDb(getDef(path)).close();
+        RrdDbPool pool = RrdDbPool.getInstance();
+        long requests = RrdInstrumentation.getPoolStats().getPoolRequestCount();
+        RrdDb rrd = pool.requestRrdDb(path);
+        pool.release(rrd);
+        Map<String, RrdIoStats> stats = RrdInstrumentation.getFactoryStats();
+        Assert.assertEquals("Invalid request count", requests + 1, stats.get(RrdInstrumentation.POOL).getPoolRequestCount());
+        Assert.assertTrue("No release counted", stats.get(RrdInstrumentation.POOL).getPoolReleaseCount() > 0);
+    }
+}
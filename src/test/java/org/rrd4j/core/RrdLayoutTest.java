@@ -0,0 +1,127 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class RrdLayoutTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDef getDef(String path, int version, double xff) {
+        RrdDef def = new RrdDef(path, 920804400L, 300);
+        def.setVersion(version);
+        def.addDatasource("speed", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addDatasource("weight", DsType.GAUGE, 600, 0, 1000);
+        def.addArchive(ConsolFun.AVERAGE, xff, 1, 24);
+        def.addArchive(ConsolFun.MAX, 0.5, 6, 10);
+        return def;
+    }
+
+    private RrdLayout load(String path, RrdBackendFactory factory) throws IOException {
+        RrdBackend backend = factory.open(path, true);
+        try {
+            return RrdLayout.load(backend);
+        }
+        finally {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void testSharedLayout() throws IOException {
+        RrdBackendFactory factory = RrdBackendFactory.getFactory("FILE");
+        for (int version = 1; version <= 2; version++) {
+            String path1 = testFolder.newFile("layout1-" + version + ".rrd").getCanonicalPath();
+            String path2 = testFolder.newFile("layout2-" + version + ".rrd").getCanonicalPath();
+            new RrdDb(getDef(path1, version, 0.5), factory).close();
+            new RrdDb(getDef(path2, version, 0.5), factory).close();
+
+            RrdLayout layout = load(path1, factory);
+            Assert.assertNotNull("Layout not found", layout);
+            Assert.assertSame("Layout not shared", layout, load(path2, factory));
+            Assert.assertEquals("Invalid step", 300, layout.step);
+            Assert.assertEquals("Invalid ds count", 2, layout.dsCount);
+            Assert.assertEquals("Invalid ds name", "weight", layout.dsNames[1]);
+            Assert.assertEquals("Invalid ds type", "GAUGE", layout.dsTypes[1]);
+            Assert.assertEquals("Invalid max value", 1000, layout.maxValues[1], 0);
+            Assert.assertEquals("Invalid arc count", 2, layout.arcCount);
+            Assert.assertEquals("Invalid consolidation function", "MAX", layout.consolFuns[1]);
+            Assert.assertEquals("Invalid steps", 6, layout.steps[1]);
+            Assert.assertEquals("Invalid rows", 10, layout.rows[1]);
+
+            RrdDb rrd = new RrdDb(path2, true, factory);
+            Assert.assertEquals("Invalid version", version, rrd.getHeader().getVersion());
+            Assert.assertEquals("Invalid rows", 10, rrd.getArchive(1).getRows());
+            Assert.assertEquals("Invalid consolidation function", ConsolFun.MAX, rrd.getArchive(1).getConsolFun());
+            Assert.assertEquals("Invalid last update", 920804400L, rrd.getLastUpdateTime());
+            rrd.close();
+        }
+    }
+
+    @Test
+    public void testDifferentDefinitions() throws IOException {
+        RrdBackendFactory factory = RrdBackendFactory.getFactory("FILE");
+        String path1 = testFolder.newFile("xff1.rrd").getCanonicalPath();
+        String path2 = testFolder.newFile("xff2.rrd").getCanonicalPath();
+        new RrdDb(getDef(path1, 2, 0.5), factory).close();
+        new RrdDb(getDef(path2, 2, 0.25), factory).close();
+        RrdLayout layout1 = load(path1, factory);
+        RrdLayout layout2 = load(path2, factory);
+        Assert.assertNotSame("Layout shared between different definitions", layout1, layout2);
+        Assert.assertEquals("Invalid xff", 0.25, layout2.xffs[0], 0);
+
+        // a modified definition must not reuse the previous layout
+        RrdDb rrd = new RrdDb(path1, factory);
+        rrd.getArchive(0).setXff(0.25);
+        rrd.close();
+        Assert.assertSame("Layout not shared", layout2, load(path1, factory));
+    }
+
+    @Test
+    public void testInvalidStorage() throws IOException {
+        RrdBackendFactory factory = RrdBackendFactory.getFactory("FILE");
+        String path = testFolder.newFile("invalid.rrd").getCanonicalPath();
+        Assert.assertNull("Layout found for empty file", load(path, factory));
+        RrdBackend backend = factory.open(path, false);
+        backend.setLength(RrdLayout.HEADER_SIZE);
+        backend.write(0, new byte[RrdLayout.HEADER_SIZE]);
+        backend.close();
+        Assert.assertNull("Layout found for invalid file", load(path, factory));
+    }
+
+    @Test
+    public void testLazyArchives() throws IOException {
+        RrdBackendFactory factory = RrdBackendFactory.getFactory("FILE");
+        for (int version = 1; version <= 2; version++) {
+            String reference = testFolder.newFile("reference-" + version + ".rrd").getCanonicalPath();
+            String reopened = testFolder.newFile("reopened-" + version + ".rrd").getCanonicalPath();
+            RrdDb expected = new RrdDb(getDef(reference, version, 0.5), factory);
+            RrdDb rrd = new RrdDb(getDef(reopened, version, 0.5), factory);
+            for (int i = 1; i <= 100; i++) {
+                if (i % 10 == 0) {
+                    rrd.close();
+                    rrd = new RrdDb(reopened, factory);
+                }
+                expected.createSample(920804400L + 300 * i).setValue(0, 100 * i).setValue(1, i).update();
+                rrd.createSample(920804400L + 300 * i).setValue(0, 100 * i).setValue(1, i).update();
+            }
+            rrd.close();
+
+            rrd = new RrdDb(reopened, true, factory);
+            FetchData fetched = rrd.createFetchRequest(ConsolFun.MAX, 920804400L + 6000, 920804400L + 27000).fetchData();
+            FetchData fetchedExpected = expected.createFetchRequest(ConsolFun.MAX, 920804400L + 6000, 920804400L + 27000).fetchData();
+            Assert.assertArrayEquals("Invalid fetched values", fetchedExpected.getValues("weight"), fetched.getValues("weight"), 0);
+            Assert.assertEquals("Invalid archive", 6, rrd.getArchive(1).getSteps());
+            Assert.assertEquals("Different content", expected.dump(), rrd.dump());
+            rrd.close();
+            expected.close();
+        }
+    }
+}
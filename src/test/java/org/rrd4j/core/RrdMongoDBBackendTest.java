@@ -0,0 +1,133 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class RrdMongoDBBackendTest {
+
+    /**
+     * In-process stand-in for a MongoDB collection, counting the bytes read and written.
+     */
+    static class Collection implements RrdMongoDBCollection {
+        final Map<Object, BasicDBObject> documents = new HashMap<Object, BasicDBObject>();
+        int bytesRead, bytesWritten;
+
+        public DBObject findOne(DBObject query, DBObject fields) {
+            BasicDBObject document = documents.get(query.get("path"));
+            if (document == null) {
+                return null;
+            }
+            BasicDBObject result = new BasicDBObject();
+            for (String key : document.keySet()) {
+                if (fields == null || fields.containsField(key)) {
+                    Object value = document.get(key);
+                    if (value instanceof byte[]) {
+                        bytesRead += ((byte[]) value).length;
+                    }
+                    result.put(key, value);
+                }
+            }
+            return result;
+        }
+
+        public void update(DBObject query, DBObject update, boolean upsert) {
+            BasicDBObject document = documents.get(query.get("path"));
+            if (document == null) {
+                Assert.assertTrue("Missing document", upsert);
+                document = new BasicDBObject("path", query.get("path"));
+                documents.put(query.get("path"), document);
+            }
+            DBObject set = (DBObject) update.get("$set");
+            for (String key : set.keySet()) {
+                Object value = set.get(key);
+                if (value instanceof byte[]) {
+                    bytesWritten += ((byte[]) value).length;
+                }
+                document.put(key, value);
+            }
+            DBObject unset = (DBObject) update.get("$unset");
+            if (unset != null) {
+                for (String key : unset.keySet()) {
+                    document.removeField(key);
+                }
+            }
+        }
+
+        public void ensureIndex(DBObject keys) {
+        }
+    }
+
+    private RrdDef getDef(String path) {
+        RrdDef def = new RrdDef(path, 920804400L, 300);
+        def.addDatasource("speed", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addDatasource("weight", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 4000);
+        def.addArchive(ConsolFun.MAX, 0.5, 6, 4000);
+        return def;
+    }
+
+    private void update(RrdDb rrd, int from, int to) throws IOException {
+        for (int i = from; i <= to; i++) {
+            rrd.createSample(920804400L + 300 * i).setValue(0, 300 * i).setValue(1, i).update();
+        }
+    }
+
+    @Test
+    public void testPartialUpdates() throws IOException {
+        Collection collection = new Collection();
+        RrdMongoDBBackendFactory factory = new RrdMongoDBBackendFactory(collection, false);
+        factory.setChunkSize(4096);
+        RrdDb rrd = new RrdDb(getDef("chunked"), factory);
+        long length = rrd.getRrdBackend().getLength();
+        rrd.close();
+        Assert.assertEquals("Whole RRD not written", length, collection.bytesWritten);
+        Assert.assertNull("Single field written", collection.documents.get("chunked").get(RrdMongoDBBackend.LEGACY));
+
+        collection.bytesWritten = 0;
+        rrd = new RrdDb("chunked", factory);
+        update(rrd, 1, 3);
+        rrd.close();
+        Assert.assertTrue("Too many bytes written: " + collection.bytesWritten, collection.bytesWritten < length / 4);
+
+        collection.bytesRead = 0;
+        rrd = new RrdDb("chunked", true, factory);
+        FetchData data = rrd.createFetchRequest(ConsolFun.AVERAGE, 920804400L, 920804400L + 900).fetchData();
+        Assert.assertEquals("Invalid fetched value", 3, data.getValues("weight")[3], 0);
+        Assert.assertEquals("Invalid last update", 920804400L + 900, rrd.getLastUpdateTime());
+        rrd.close();
+        Assert.assertTrue("Too many bytes read: " + collection.bytesRead, collection.bytesRead < length / 2);
+    }
+
+    @Test
+    public void testLegacyDocument() throws IOException {
+        Collection collection = new Collection();
+        RrdMongoDBBackendFactory factory = new RrdMongoDBBackendFactory(collection, false);
+        RrdDb memory = new RrdDb(getDef("legacy"), RrdBackendFactory.getFactory("MEMORY"));
+        update(memory, 1, 5);
+        BasicDBObject document = new BasicDBObject("path", "legacy");
+        document.put(RrdMongoDBBackend.LEGACY, memory.getBytes());
+        collection.documents.put("legacy", document);
+
+        Assert.assertTrue("Legacy document not found", factory.exists("legacy"));
+        RrdDb rrd = new RrdDb("legacy", factory);
+        Assert.assertEquals("Invalid legacy RRD", memory.dump(), rrd.dump());
+        update(rrd, 6, 6);
+        rrd.close();
+        Assert.assertNull("Legacy field kept", collection.documents.get("legacy").get(RrdMongoDBBackend.LEGACY));
+
+        update(memory, 6, 6);
+        rrd = new RrdDb("legacy", true, factory);
+        Assert.assertEquals("Invalid converted RRD", memory.dump(), rrd.dump());
+        rrd.close();
+        memory.close();
+    }
+}
@@ -49,4 +49,67 @@ public class RrdNioBackendTest {
         Assert.assertEquals("write to NIO failed", 0, d, 1e-10);
         is.close();
     }
+
+    @Test
+    public void testDirtyBackendsSynced() throws Exception {
+        RrdSyncThreadPool pool = new RrdSyncThreadPool();
+        try {
+            File dirtyFile = testFolder.newFile("dirty");
+            File cleanFile = testFolder.newFile("clean");
+            RrdNioBackend dirty = new RrdNioBackend(dirtyFile.getCanonicalPath(), false, pool, 1);
+            RrdNioBackend clean = new RrdNioBackend(cleanFile.getCanonicalPath(), false, pool, 1);
+            dirty.setLength(16);
+            clean.setLength(16);
+            dirty.writeDouble(0, 1);
+            Assert.assertEquals("Invalid dirty count", 1, pool.getDirtyCount());
+            Assert.assertEquals("Invalid dirty bytes", 8, pool.getDirtyBytes());
+
+            for (int i = 0; i < 50 && pool.getSyncCount() == 0; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals("Dirty backend not synced once", 1, pool.getSyncCount());
+            Assert.assertEquals("Dirty bytes not released", 0, pool.getDirtyBytes());
+            Assert.assertEquals("Backend still dirty", 0, pool.getDirtyCount());
+            Assert.assertTrue("Invalid max sync time", pool.getMaxSyncTime() >= pool.getAverageSyncTime());
+
+            // over budget, synced without waiting for the sync period
+            pool.setMaxDirtyBytes(16);
+            RrdNioBackend big = new RrdNioBackend(dirtyFile.getCanonicalPath(), false, pool, 3600);
+            big.writeDouble(0, 2);
+            big.writeDouble(8, 3);
+            big.writeDouble(0, 4);
+            for (int i = 0; i < 50 && pool.getSyncCount() == 1; i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals("Backend over budget not synced", 2, pool.getSyncCount());
+            big.close();
+            dirty.close();
+            clean.close();
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDirtyBackendClosed() throws Exception {
+        RrdSyncThreadPool pool = new RrdSyncThreadPool();
+        try {
+            File file = testFolder.newFile("closed");
+            RrdNioBackend backend = new RrdNioBackend(file.getCanonicalPath(), false, pool, 3600);
+            backend.setLength(16);
+            backend.writeDouble(0, 1);
+            backend.sync();
+            Assert.assertEquals("Synced backend still queued", 0, pool.getDirtyCount());
+            backend.writeDouble(0, 2);
+            backend.writeDouble(8, 3);
+            Assert.assertEquals("Invalid dirty count", 1, pool.getDirtyCount());
+            backend.close();
+            Assert.assertEquals("Closed backend still queued", 0, pool.getDirtyCount());
+            Assert.assertEquals("Dirty bytes not released", 0, pool.getDirtyBytes());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
 }
@@ -0,0 +1,192 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class RrdOffHeapBackendTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDef getDef(String id) {
+        RrdDef def = new RrdDef(id, 920804400L, 300);
+        def.addDatasource("speed", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 24);
+        return def;
+    }
+
+    private void update(RrdDb rrd, int count) throws IOException {
+        for (int i = 1; i <= count; i++) {
+            rrd.createSample(920804400L + 300 * i).setValue(0, 300 * i).update();
+        }
+    }
+
+    @Test
+    public void testSharedArena() throws IOException {
+        RrdOffHeapBackendFactory factory = new RrdOffHeapBackendFactory(8192);
+        for (int i = 0; i < 20; i++) {
+            RrdDb rrd = new RrdDb(getDef("rrd" + i), factory);
+            update(rrd, i);
+            rrd.close();
+        }
+        Assert.assertTrue("Arenas not shared", factory.getArenaCount() < 20);
+        for (int i = 0; i < 20; i++) {
+            RrdDb rrd = new RrdDb("rrd" + i, true, factory);
+            Assert.assertEquals("Invalid last update", 920804400L + 300 * i, rrd.getLastUpdateTime());
+            rrd.close();
+        }
+
+        long allocated = factory.getAllocatedBytes();
+        int arenas = factory.getArenaCount();
+        Assert.assertTrue("Storage not deleted", factory.delete("rrd3"));
+        Assert.assertFalse("Storage deleted twice", factory.delete("rrd3"));
+        RrdDb rrd = new RrdDb(getDef("rrd3"), factory);
+        Assert.assertEquals("Invalid last update", 920804400L, rrd.getLastUpdateTime());
+        Assert.assertTrue("Deleted storage not cleared", Double.isNaN(rrd.getDatasource(0).getLastValue()));
+        rrd.close();
+        Assert.assertEquals("Deleted storage not reused", allocated, factory.getAllocatedBytes());
+        Assert.assertEquals("Deleted storage not reused", arenas, factory.getArenaCount());
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        File file = new File(testFolder.getRoot(), "offheap.checkpoint");
+        RrdOffHeapBackendFactory factory = new RrdOffHeapBackendFactory();
+        Assert.assertEquals("Restored from missing file", 0, factory.restore(file));
+        RrdDb rrd1 = new RrdDb(getDef("first"), factory);
+        update(rrd1, 10);
+        RrdDb rrd2 = new RrdDb(getDef("second"), factory);
+        update(rrd2, 5);
+        Assert.assertEquals("Invalid checkpoint count", 2, factory.checkpoint(file));
+        String dump1 = rrd1.dump();
+        String dump2 = rrd2.dump();
+        rrd1.close();
+        rrd2.close();
+
+        RrdOffHeapBackendFactory restored = new RrdOffHeapBackendFactory();
+        Assert.assertEquals("Invalid restored count", 2, restored.restore(file));
+        RrdDb rrd = new RrdDb("first", true, restored);
+        Assert.assertEquals("Invalid restored RRD", dump1, rrd.dump());
+        rrd.close();
+        rrd = new RrdDb("second", true, restored);
+        Assert.assertEquals("Invalid restored RRD", dump2, rrd.dump());
+        rrd.close();
+    }
+
+    @Test
+    public void testInterruptedCheckpoint() throws IOException {
+        File file = new File(testFolder.getRoot(), "interrupted.checkpoint");
+        RrdOffHeapBackendFactory factory = new RrdOffHeapBackendFactory();
+        RrdDb rrd = new RrdDb(getDef("first"), factory);
+        update(rrd, 5);
+        Assert.assertEquals("Invalid checkpoint count", 1, factory.checkpoint(file));
+        Assert.assertEquals("Invalid checkpoint count", 1, factory.checkpoint(file));
+        String dump = rrd.dump();
+        rrd.close();
+        File bak = new File(file.getPath() + ".bak");
+        Assert.assertFalse("Previous checkpoint kept", bak.exists());
+
+        // crash once the checkpoint is moved aside, before the new one is renamed
+        Assert.assertTrue("Checkpoint not moved", file.renameTo(bak));
+        RrdOffHeapBackendFactory restored = new RrdOffHeapBackendFactory();
+        Assert.assertEquals("Previous checkpoint not restored", 1, restored.restore(file));
+        rrd = new RrdDb("first", true, restored);
+        Assert.assertEquals("Invalid restored RRD", dump, rrd.dump());
+        rrd.close();
+    }
+
+    @Test
+    public void testPeriodicCheckpoint() throws IOException, InterruptedException {
+        File file = new File(testFolder.getRoot(), "periodic.checkpoint");
+        RrdOffHeapBackendFactory factory = new RrdOffHeapBackendFactory();
+        RrdDb rrd = new RrdDb(getDef("periodic"), factory);
+        factory.startCheckpoints(file, 10, TimeUnit.MILLISECONDS);
+        update(rrd, 20);
+        Thread.sleep(50);
+        factory.stopCheckpoints();
+        Assert.assertNull("Checkpoint failed", factory.getCheckpointError());
+        String dump = rrd.dump();
+        rrd.close();
+
+        RrdOffHeapBackendFactory restored = new RrdOffHeapBackendFactory();
+        Assert.assertEquals("Invalid restored count", 1, restored.restore(file));
+        rrd = new RrdDb("periodic", true, restored);
+        Assert.assertEquals("Invalid restored RRD", dump, rrd.dump());
+        rrd.close();
+    }
+
+    @Test
+    public void testSnapshotBetweenUpdates() throws Exception {
+        RrdOffHeapBackendFactory factory = new RrdOffHeapBackendFactory(8192);
+        final RrdOffHeapBackend backend = (RrdOffHeapBackend) factory.open("rrd", false);
+        backend.setLength(16);
+        backend.beginUpdate();
+        backend.write(0, new byte[] {1, 1, 1, 1, 1, 1, 1, 1});
+        final byte[][] copy = new byte[1][];
+        Thread thread = new Thread() {
+            public void run() {
+                copy[0] = backend.snapshot();
+            }
+        };
+        thread.start();
+        thread.join(100);
+        Assert.assertTrue("RRD copied during an update", thread.isAlive());
+        backend.write(8, new byte[] {2, 2, 2, 2, 2, 2, 2, 2});
+        backend.commitUpdate();
+        thread.join();
+        Assert.assertEquals("Update not copied", 2, copy[0][15]);
+        Assert.assertEquals("Update not copied", 1, copy[0][0]);
+
+        Assert.assertTrue("RRD not deleted", factory.delete("rrd"));
+        try {
+            backend.read(0, new byte[8]);
+            Assert.fail("Released RRD read");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReadBetweenUpdates() throws Exception {
+        RrdOffHeapBackendFactory factory = new RrdOffHeapBackendFactory(8192);
+        final RrdOffHeapBackend backend = (RrdOffHeapBackend) factory.open("rrd", false);
+        backend.setLength(16);
+        backend.beginUpdate();
+        backend.write(0, new byte[] {1, 1, 1, 1, 1, 1, 1, 1});
+        byte[] own = new byte[16];
+        backend.read(0, own);
+        Assert.assertEquals("Update not read by its thread", 1, own[0]);
+
+        final byte[] sample = new byte[16];
+        final IOException[] error = new IOException[1];
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    backend.read(0, sample);
+                }
+                catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        thread.start();
+        thread.join(100);
+        Assert.assertTrue("RRD read during an update", thread.isAlive());
+        backend.write(8, new byte[] {2, 2, 2, 2, 2, 2, 2, 2});
+        backend.commitUpdate();
+        thread.join();
+        Assert.assertNull("Read failed", error[0]);
+        Assert.assertEquals("Update not read", 1, sample[0]);
+        Assert.assertEquals("Update not read", 2, sample[15]);
+        factory.delete("rrd");
+    }
+}
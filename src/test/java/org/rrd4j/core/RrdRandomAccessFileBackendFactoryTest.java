@@ -0,0 +1,120 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class RrdRandomAccessFileBackendFactoryTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDef getDef(String path) {
+        RrdDef def = new RrdDef(path, 920804400L, 300);
+        def.addDatasource("speed", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 100);
+        return def;
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final RrdRandomAccessFileBackendFactory factory = new RrdRandomAccessFileBackendFactory();
+        factory.setDurability(RrdRandomAccessFileBackendFactory.Durability.GROUP_COMMIT, 20, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("Invalid durability", RrdRandomAccessFileBackendFactory.Durability.GROUP_COMMIT,
+                factory.getDurability());
+
+        final List<IOException> errors = new ArrayList<IOException>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final String path = new File(testFolder.getRoot(), "group" + i + ".rrd").getPath();
+            final int value = i;
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        RrdDb rrd = new RrdDb(getDef(path), factory);
+                        for (int j = 1; j <= 5; j++) {
+                            rrd.createSample(920804400L + 300 * j).setValue(0, value).update();
+                        }
+                        rrd.close();
+                    }
+                    catch (IOException e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue("Update failed: " + errors, errors.isEmpty());
+        Assert.assertEquals("Invalid commit count", 20, factory.getCommitCount());
+        Assert.assertTrue("No sync", factory.getSyncCount() > 0);
+        Assert.assertTrue("Syncs not batched", factory.getBatchCount() <= factory.getSyncCount());
+        factory.setDurability(RrdRandomAccessFileBackendFactory.Durability.NONE, 0, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 4; i++) {
+            RrdDb rrd = new RrdDb(new File(testFolder.getRoot(), "group" + i + ".rrd").getPath(), true, factory);
+            Assert.assertEquals("Invalid last update", 920804400L + 1500, rrd.getLastUpdateTime());
+            Assert.assertEquals("Invalid last value", i, rrd.getDatasource(0).getLastValue(), 0);
+            rrd.close();
+        }
+    }
+
+    @Test
+    public void testPeriodic() throws Exception {
+        RrdSafeFileBackendFactory factory = new RrdSafeFileBackendFactory();
+        factory.setDurability(RrdRandomAccessFileBackendFactory.Durability.PERIODIC, 10, TimeUnit.MILLISECONDS);
+        String path = new File(testFolder.getRoot(), "periodic.rrd").getPath();
+        RrdDb rrd = new RrdDb(getDef(path), factory);
+        rrd.createSample(920804700L).setValue(0, 1).update();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (factory.getSyncCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("File not synced", factory.getSyncCount() > 0);
+        Assert.assertEquals("Updates committed", 0, factory.getCommitCount());
+        rrd.close();
+        factory.setDurability(RrdRandomAccessFileBackendFactory.Durability.NONE, 0, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("Invalid durability", RrdRandomAccessFileBackendFactory.Durability.NONE,
+                factory.getDurability());
+    }
+
+    @Test
+    public void testPolicyOfOpenFiles() throws Exception {
+        RrdRandomAccessFileBackendFactory factory = new RrdRandomAccessFileBackendFactory();
+        String path = new File(testFolder.getRoot(), "open.rrd").getPath();
+        RrdDb rrd = new RrdDb(getDef(path), factory);
+        factory.setDurability(RrdRandomAccessFileBackendFactory.Durability.PERIODIC, 10, TimeUnit.MILLISECONDS);
+        rrd.createSample(920804700L).setValue(0, 1).update();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (factory.getSyncCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("Open file not synced", factory.getSyncCount() > 0);
+
+        factory.setDurability(RrdRandomAccessFileBackendFactory.Durability.GROUP_COMMIT, 10, TimeUnit.MILLISECONDS);
+        rrd.createSample(920805000L).setValue(0, 2).update();
+        Assert.assertEquals("Update of an open file not committed", 1, factory.getCommitCount());
+        Assert.assertTrue("Open file not synced", factory.getSyncCount() > 0);
+        rrd.close();
+        factory.setDurability(RrdRandomAccessFileBackendFactory.Durability.NONE, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidInterval() {
+        new RrdRandomAccessFileBackendFactory().setDurability(
+                RrdRandomAccessFileBackendFactory.Durability.PERIODIC, 0, TimeUnit.SECONDS);
+    }
+}
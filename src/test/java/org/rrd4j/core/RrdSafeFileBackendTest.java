@@ -0,0 +1,87 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RrdSafeFileBackendTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private static long sum(long[] histogram) {
+        long sum = 0;
+        for (long count : histogram) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    @Test
+    public void testHandoff() throws Exception {
+        final String path = testFolder.newFile("safe.rrd").getCanonicalPath();
+        long locks = sum(RrdSafeFileBackend.getLockWaitHistogram());
+        long handoffs = RrdFileLockManager.INSTANCE.getHandoffCount();
+
+        RrdSafeFileBackend first = new RrdSafeFileBackend(path, 5000, 50);
+        first.setLength(16);
+        first.writeDouble(0, 42);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread waiter = new Thread() {
+            public void run() {
+                started.countDown();
+                try {
+                    RrdSafeFileBackend second = new RrdSafeFileBackend(path, 5000, 50);
+                    try {
+                        result.set(second.readDouble(0));
+                    }
+                    finally {
+                        second.close();
+                    }
+                }
+                catch (IOException e) {
+                    result.set(e);
+                }
+            }
+        };
+        waiter.start();
+        started.await();
+        Thread.sleep(100);
+        Assert.assertNull("Lock not exclusive", result.get());
+        first.close();
+        waiter.join(5000);
+
+        Assert.assertEquals("Invalid value read after handoff", 42.0, result.get());
+        Assert.assertEquals("Lock released between users", handoffs + 1, RrdFileLockManager.INSTANCE.getHandoffCount());
+        Assert.assertEquals("Invalid wait histogram", locks + 2, sum(RrdSafeFileBackend.getLockWaitHistogram()));
+        Assert.assertTrue("Invalid lock info", RrdSafeFileBackend.getLockInfo().contains("HANDOFFS="));
+
+        // the file was unlocked and closed by the last user
+        RrdSafeFileBackend third = new RrdSafeFileBackend(path, 0, 50);
+        Assert.assertEquals("Invalid value read", 42, third.readDouble(0), 0);
+        third.close();
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        String path = new File(testFolder.getRoot(), "busy.rrd").getPath();
+        RrdSafeFileBackend first = new RrdSafeFileBackend(path, 1000, 50);
+        try {
+            new RrdSafeFileBackend(path, 100, 50);
+            Assert.fail("Lock obtained twice");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        finally {
+            first.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class RrdShardedFileBackendFactoryTest {
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDef getDef(String path) {
+        RrdDef def = new RrdDef(path, 920804400L, 300);
+        def.addDatasource("speed", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 100);
+        return def;
+    }
+
+    @Test
+    public void testShardedFiles() throws IOException {
+        File root1 = testFolder.newFolder("root1");
+        File root2 = testFolder.newFolder("root2");
+        RrdShardedFileBackendFactory factory = new RrdShardedFileBackendFactory(
+                new RrdRandomAccessFileBackendFactory(), 16, 2, root1, root2);
+        int[] perRoot = new int[2];
+        for (int i = 0; i < 20; i++) {
+            String id = "router" + i + "/eth0.rrd";
+            RrdDb rrd = new RrdDb(getDef(id), factory);
+            Assert.assertEquals("Invalid path", id, rrd.getPath());
+            rrd.createSample(920804400L + 300).setValue(0, i).update();
+            rrd.close();
+
+            File file = factory.getFile(id);
+            Assert.assertTrue("File not created", file.isFile());
+            Assert.assertEquals("Invalid file name", "router" + i + "%2Feth0.rrd", file.getName());
+            File root = file.getParentFile().getParentFile().getParentFile();
+            Assert.assertEquals("Invalid directory name length", 1, file.getParentFile().getName().length());
+            perRoot[root.equals(root1) ? 0 : 1]++;
+        }
+        Assert.assertTrue("Files not spread", perRoot[0] > 0 && perRoot[1] > 0);
+
+        Assert.assertTrue("RRD not found", factory.exists("router3/eth0.rrd"));
+        Assert.assertFalse("Flat file found", new File(root1, "router3/eth0.rrd").exists());
+        RrdDb rrd = new RrdDb("router3/eth0.rrd", true, factory);
+        Assert.assertEquals("Invalid last update", 920804400L + 300, rrd.getLastUpdateTime());
+        Assert.assertEquals("Invalid canonical path", factory.getFile("router3/eth0.rrd").getCanonicalPath(),
+                rrd.getCanonicalPath());
+        rrd.close();
+        Assert.assertTrue("RRD not deleted", factory.delete("router3/eth0.rrd"));
+        Assert.assertFalse("Deleted RRD found", factory.exists("router3/eth0.rrd"));
+    }
+
+    @Test
+    public void testMigrate() throws IOException {
+        File flat = testFolder.newFolder("flat");
+        RrdBackendFactory fileFactory = new RrdRandomAccessFileBackendFactory();
+        new File(flat, "router1").mkdir();
+        new RrdDb(getDef(new File(flat, "router1/eth0.rrd").getPath()), fileFactory).close();
+        new RrdDb(getDef(new File(flat, "switch.rrd").getPath()), fileFactory).close();
+
+        RrdShardedFileBackendFactory factory = new RrdShardedFileBackendFactory(fileFactory,
+                testFolder.newFolder("tree"));
+        Assert.assertEquals("Invalid migrated count", 2, factory.migrate(flat.getPath(), ".rrd", true));
+        Assert.assertFalse("File not moved", new File(flat, "switch.rrd").exists());
+        Assert.assertTrue("Migrated RRD not found", factory.exists("router1/eth0.rrd"));
+        RrdDb rrd = new RrdDb("switch.rrd", true, factory);
+        Assert.assertEquals("Invalid migrated RRD", 300, rrd.getHeader().getStep());
+        rrd.close();
+    }
+}
@@ -0,0 +1,240 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class RrdWalBackendTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private RrdDef getDef(String path) {
+        RrdDef def = new RrdDef(path, 920804400L, 300);
+        def.addDatasource("speed", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addDatasource("weight", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 100);
+        def.addArchive(ConsolFun.MAX, 0.5, 6, 100);
+        return def;
+    }
+
+    private void update(RrdDb rrd, int from, int to) throws IOException {
+        for (int i = from; i <= to; i++) {
+            rrd.createSample(920804400L + 300 * i).setValue(0, 300 * i).setValue(1, i).update();
+        }
+    }
+
+    private static void copy(File from, File to, byte[] tail) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            out.write(tail);
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private String dump(String path) throws IOException {
+        RrdDb rrd = new RrdDb(path, true, RrdBackendFactory.getFactory("FILE"));
+        try {
+            return rrd.dump();
+        }
+        finally {
+            rrd.close();
+        }
+    }
+
+    @Test
+    public void testUpdates() throws IOException {
+        String path = new File(testFolder.getRoot(), "wal.rrd").getPath();
+        File log = new File(testFolder.getRoot(), "rrd.wal");
+        RrdWalBackendFactory factory = new RrdWalBackendFactory(RrdBackendFactory.getFactory("NIO"), log);
+        RrdDb rrd = new RrdDb(getDef(path), factory);
+        Assert.assertEquals("Invalid canonical path", new File(path).getCanonicalPath(), rrd.getCanonicalPath());
+        update(rrd, 1, 20);
+        Assert.assertEquals("Invalid last value", 20, rrd.getDatasource(1).getLastValue(), 0);
+        rrd.close();
+        Assert.assertTrue("Updates not logged", factory.getLogSize() > 8);
+        factory.close();
+        Assert.assertEquals("Log not emptied by checkpoint", 8, log.length());
+
+        rrd = new RrdDb(path, true, RrdBackendFactory.getFactory("FILE"));
+        Assert.assertEquals("Invalid last update", 920804400L + 6000, rrd.getLastUpdateTime());
+        Assert.assertEquals("Invalid last value", 20, rrd.getDatasource(1).getLastValue(), 0);
+        rrd.close();
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        String path = new File(testFolder.getRoot(), "crash.rrd").getPath();
+        File log = new File(testFolder.getRoot(), "crash.wal");
+        RrdWalBackendFactory factory = new RrdWalBackendFactory(RrdBackendFactory.getFactory("FILE"), log);
+        RrdDb rrd = new RrdDb(getDef(path), factory);
+        update(rrd, 1, 5);
+        factory.checkpoint();
+        File before = new File(path + ".before");
+        copy(new File(path), before, new byte[0]);
+
+        update(rrd, 6, 10);
+        rrd.close();
+        String expected = dump(path);
+
+        // the host crashed: the RRD lost its last updates, the log was partially written
+        File crashLog = new File(testFolder.getRoot(), "copy.wal");
+        copy(log, crashLog, new byte[] {0x57, 0x41, 0x4c, 0x52, 0, 0, 1});
+        copy(before, new File(path), new byte[0]);
+        Assert.assertFalse("RRD not restored", expected.equals(dump(path)));
+
+        RrdWalBackendFactory recovered = new RrdWalBackendFactory(RrdBackendFactory.getFactory("FILE"), crashLog);
+        Assert.assertEquals("Invalid recovered updates", 5, recovered.getRecoveredCount());
+        Assert.assertEquals("Updates not recovered", expected, dump(path));
+        Assert.assertEquals("Log not emptied", 8, crashLog.length());
+        recovered.close();
+        factory.close();
+    }
+
+    @Test
+    public void testCheckpointOnLogSize() throws IOException {
+        String path = new File(testFolder.getRoot(), "size.rrd").getPath();
+        RrdWalBackendFactory factory = new RrdWalBackendFactory(RrdBackendFactory.getFactory("FILE"),
+                new File(testFolder.getRoot(), "size.wal"));
+        factory.setMaxLogSize(4096);
+        RrdDb rrd = new RrdDb(getDef(path), factory);
+        update(rrd, 1, 200);
+        Assert.assertTrue("Log not checkpointed", factory.getLogSize() <= 4096);
+        rrd.close();
+        factory.close();
+        rrd = new RrdDb(path, true, RrdBackendFactory.getFactory("FILE"));
+        Assert.assertEquals("Invalid last update", 920804400L + 60000, rrd.getLastUpdateTime());
+        rrd.close();
+    }
+
+    @Test
+    public void testAbortedUpdate() throws IOException {
+        String path = new File(testFolder.getRoot(), "abort.rrd").getPath();
+        File log = new File(testFolder.getRoot(), "abort.wal");
+        RrdWalBackendFactory factory = new RrdWalBackendFactory(RrdBackendFactory.getFactory("NIO"), log);
+        new RrdDb(getDef(path), factory).close();
+        factory.checkpoint();
+        long logSize = factory.getLogSize();
+
+        RrdBackend backend = factory.open(path, false);
+        byte[] before = new byte[8];
+        backend.read(64, before);
+        backend.beginUpdate();
+        backend.write(64, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        backend.abortUpdate();
+        Assert.assertEquals("Aborted update logged", logSize, factory.getLogSize());
+        byte[] after = new byte[8];
+        backend.read(64, after);
+        Assert.assertArrayEquals("Aborted update written", before, after);
+        backend.close();
+        factory.close();
+    }
+
+    /**
+     * Backend failing at a given read, to interrupt a sample update.
+     */
+    private static class FailingBackend extends RrdBackend {
+        private final RrdBackend backend;
+        int reads;
+        int failAt = -1;
+
+        FailingBackend(RrdBackend backend) {
+            super(backend.getPath());
+            this.backend = backend;
+        }
+
+        protected void write(long offset, byte[] b) throws IOException {
+            backend.write(offset, b);
+        }
+
+        protected void read(long offset, byte[] b) throws IOException {
+            if (++reads == failAt) {
+                throw new IOException("Read failed");
+            }
+            backend.read(offset, b);
+        }
+
+        public long getLength() throws IOException {
+            return backend.getLength();
+        }
+
+        protected void setLength(long length) throws IOException {
+            backend.setLength(length);
+        }
+
+        public void close() throws IOException {
+            backend.close();
+        }
+
+        protected boolean isCachingAllowed() {
+            return backend.isCachingAllowed();
+        }
+    }
+
+    @Test
+    public void testFailedUpdate() throws IOException {
+        final RrdBackendFactory nio = RrdBackendFactory.getFactory("NIO");
+        final FailingBackend[] failing = new FailingBackend[1];
+        RrdBackendFactory factory = new RrdBackendFactory() {
+            protected RrdBackend open(String path, boolean readOnly) throws IOException {
+                failing[0] = new FailingBackend(nio.open(path, readOnly));
+                return failing[0];
+            }
+
+            protected boolean exists(String path) throws IOException {
+                return nio.exists(path);
+            }
+
+            protected boolean shouldValidateHeader(String path) {
+                return false;
+            }
+
+            public String getName() {
+                return "FAILING";
+            }
+        };
+        String path = new File(testFolder.getRoot(), "failed.rrd").getPath();
+        RrdWalBackendFactory log = new RrdWalBackendFactory(factory, new File(testFolder.getRoot(), "failed.wal"));
+        RrdDb rrd = new RrdDb(getDef(path), log);
+        update(rrd, 1, 5);
+        FailingBackend backend = failing[0];
+        int reads = backend.reads;
+        update(rrd, 6, 6);
+        int updateReads = backend.reads - reads;
+        String expected = rrd.dump();
+
+        // a read in the middle of the update fails, after some writes
+        backend.failAt = backend.reads + updateReads / 2;
+        try {
+            update(rrd, 7, 7);
+            Assert.fail("Read failure not reported");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        backend.failAt = -1;
+        Assert.assertEquals("Aborted update still seen", expected, rrd.dump());
+        rrd.close();
+        log.close();
+        Assert.assertEquals("Aborted update written", expected, dump(path));
+    }
+}
@@ -0,0 +1,130 @@
+package org.rrd4j.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class SampleParserTest {
+
+    private RrdDb createRrd() throws IOException {
+        RrdDef def = new RrdDef("parser", 920804400L, 300);
+        def.addDatasource("speed", DsType.COUNTER, 600, Double.NaN, Double.NaN);
+        def.addDatasource("weight", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addDatasource("temp", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 100);
+        return new RrdDb(def, RrdBackendFactory.getFactory("MEMORY"));
+    }
+
+    private static void assertParsed(String text) {
+        double expected;
+        try {
+            expected = Double.parseDouble(text);
+        }
+        catch (NumberFormatException e) {
+            expected = Double.NaN;
+        }
+        double parsed = SampleParser.parseDouble(text, 0, text.length());
+        Assert.assertEquals("Invalid value for " + text, Double.doubleToLongBits(expected), Double.doubleToLongBits(parsed));
+    }
+
+    @Test
+    public void testParseDouble() {
+        String[] texts = {"0", "-0", "1", "+1.5", "-12.25", ".5", "1.", ".", "", "-", "1e3", "1E-3", "2.5e+10",
+                "1e", "U", "NaN", "Infinity", "1e400", "4.9e-324", " 1.5", "0x1p3", "1.5d", "123456789012345678901",
+                "0.1", "0.30000000000000004", "9007199254740993", "1.7976931348623157e308"};
+        for (String text : texts) {
+            assertParsed(text);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            double value = random.nextDouble() * Math.pow(10, random.nextInt(30) - 15);
+            assertParsed(Double.toString(value));
+            assertParsed(String.format(Locale.US, "%.6f", value));
+            assertParsed(Long.toString(random.nextLong() >> random.nextInt(64)));
+        }
+    }
+
+    @Test
+    public void testFormats() throws IOException {
+        RrdDb rrd = createRrd();
+        Sample sample = rrd.createSample();
+        SampleParser parser = new SampleParser();
+
+        Assert.assertTrue("Line skipped", parser.parse("920804700:12.5:U:3", sample));
+        Assert.assertEquals("Invalid time", 920804700L, sample.getTime());
+        Assert.assertEquals("Invalid value", 12.5, sample.getValues()[0], 0);
+        Assert.assertTrue("Unknown value not NaN", Double.isNaN(sample.getValues()[1]));
+        Assert.assertEquals("Invalid value", 3, sample.getValues()[2], 0);
+
+        sample.reset(0);
+        Assert.assertTrue("Line skipped", parser.parse("920805000 temp=-1.5,speed=7", sample));
+        Assert.assertEquals("Invalid time", 920805000L, sample.getTime());
+        Assert.assertEquals("Invalid named value", 7, sample.getValues()[0], 0);
+        Assert.assertTrue("Value not given is set", Double.isNaN(sample.getValues()[1]));
+        Assert.assertEquals("Invalid named value", -1.5, sample.getValues()[2], 0);
+
+        Assert.assertFalse("Comment not skipped", parser.parse("# comment", sample));
+        Assert.assertFalse("Empty line not skipped", parser.parse("  ", sample));
+        Assert.assertTrue("Line skipped", parser.parse("N:1", sample));
+        Assert.assertTrue("Invalid current time", Math.abs(sample.getTime() - Util.getTime()) <= 1);
+
+        try {
+            parser.parse("920805000 unknown=1", sample);
+            Assert.fail("Unknown datasource accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            parser.parse("920805000:1:2:3:4", sample);
+            Assert.fail("Too many values accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        rrd.close();
+    }
+
+    @Test
+    public void testByteBuffer() throws IOException {
+        RrdDb rrd = createRrd();
+        Sample sample = rrd.createSample();
+        SampleParser parser = new SampleParser();
+        ByteBuffer buffer = ByteBuffer.wrap("920804700:300:1:2\r\n\n920805000 speed=600 weight=2\n920805300:900:3".getBytes("US-ASCII"));
+        int updates = 0;
+        while (buffer.hasRemaining()) {
+            if (parser.parse(buffer, sample)) {
+                sample.update();
+                updates++;
+            }
+        }
+        Assert.assertEquals("Invalid number of updates", 3, updates);
+        Assert.assertEquals("Invalid last update", 920805300L, rrd.getLastUpdateTime());
+        Assert.assertEquals("Invalid last value", 3, rrd.getDatasource(1).getLastValue(), 0);
+        Assert.assertTrue("Values not reset", Double.isNaN(rrd.getDatasource(2).getLastValue()));
+        rrd.close();
+    }
+
+    @Test
+    public void testSampleSet() throws IOException {
+        RrdDb rrd = createRrd();
+        Sample sample = rrd.createSample();
+        sample.set("920804700:1::2.5");
+        Assert.assertEquals("Invalid time", 920804700L, sample.getTime());
+        Assert.assertEquals("Empty field not skipped", 2.5, sample.getValues()[1], 0);
+        try {
+            sample.set("now_:1");
+            Assert.fail("Invalid time accepted");
+        }
+        catch (IllegalArgumentException e) {
+            Assert.assertEquals("Time modified", 920804700L, sample.getTime());
+        }
+        rrd.close();
+    }
+}
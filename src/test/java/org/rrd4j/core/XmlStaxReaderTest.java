@@ -0,0 +1,89 @@
+package org.rrd4j.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+
+public class XmlStaxReaderTest {
+    static final long SEED = 1909752002L;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private void assertSameRrd(RrdDb expected, RrdDb actual) throws IOException {
+        Assert.assertEquals("Invalid last update", expected.getLastUpdateTime(), actual.getLastUpdateTime());
+        Assert.assertEquals("Invalid step", expected.getHeader().getStep(), actual.getHeader().getStep());
+        Assert.assertEquals("Invalid number of datasources", expected.getDsCount(), actual.getDsCount());
+        for (int i = 0; i < expected.getDsCount(); i++) {
+            Datasource e = expected.getDatasource(i), a = actual.getDatasource(i);
+            Assert.assertEquals("Invalid datasource", e.dump(), a.dump());
+        }
+        Assert.assertEquals("Invalid number of archives", expected.getArcCount(), actual.getArcCount());
+        for (int i = 0; i < expected.getArcCount(); i++) {
+            Assert.assertEquals("Invalid archive " + i, expected.getArchive(i).dump(), actual.getArchive(i).dump());
+        }
+    }
+
+    @Test
+    public void testSameAsXmlReader() throws IOException {
+        URL url = getClass().getResource("/rrdtool/rrdtool1.xml");
+        RrdBackendFactory factory = RrdBackendFactory.getFactory("MEMORY");
+        RrdDb dom = new RrdDb("dom", new XmlReader(url.getFile()), factory);
+        RrdDb stax = new RrdDb("stax", new XmlStaxReader(url.getFile()), factory);
+        assertSameRrd(dom, stax);
+        dom.close();
+        stax.close();
+    }
+
+    @Test
+    public void testExternalDtd() throws IOException {
+        // the DTD referenced by rrdtool dumps must not be fetched
+        URL url = getClass().getResource("/rrdtool/rrdtool3.xml");
+        RrdDb rrd = new RrdDb("dtd", RrdDb.PREFIX_XML + url.getFile(), RrdBackendFactory.getFactory("MEMORY"));
+        Assert.assertEquals("Invalid number of datasources", 2, rrd.getDsCount());
+        Assert.assertEquals("Invalid number of archives", 2, rrd.getArcCount());
+        rrd.close();
+    }
+
+    @Test
+    public void testLargeImport() throws IOException {
+        int rows = 3 * XmlStaxReader.CHUNK_ROWS + 17;
+        RrdBackendFactory factory = RrdBackendFactory.getFactory("MEMORY");
+        RrdDef def = new RrdDef("source", 920804400L, 300);
+        def.addDatasource("a", DsType.GAUGE, 600, Double.NaN, Double.NaN);
+        def.addDatasource("b", DsType.COUNTER, 600, 0, Double.NaN);
+        def.addDatasource("c", DsType.GAUGE, 600, -5, 30);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, rows);
+        def.addArchive(ConsolFun.MAX, 0.5, 6, rows / 2);
+        RrdDb source = new RrdDb(def, factory);
+        Random random = new Random(SEED);
+        for (int arc = 0; arc < source.getArcCount(); arc++) {
+            for (int ds = 0; ds < source.getDsCount(); ds++) {
+                Robin robin = source.getArchive(arc).getRobin(ds);
+                double[] values = new double[robin.getSize()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = i % 10 == 0 ? Double.NaN : random.nextDouble() * 100;
+                }
+                robin.setValues(values);
+            }
+        }
+        File xml = testFolder.newFile("large.xml");
+        source.dumpXml(xml.getPath());
+
+        RrdDb dom = new RrdDb("dom", new XmlReader(xml.getPath()), factory);
+        RrdDb stax = new RrdDb("stax", new XmlStaxReader(xml.getPath()), factory);
+        assertSameRrd(source, stax);
+        assertSameRrd(dom, stax);
+        source.close();
+        dom.close();
+        stax.close();
+    }
+}
@@ -2,7 +2,10 @@ package org.rrd4j.core.jrrd;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -104,6 +107,51 @@ public class JrrdTest {
         Assert.assertEquals(1.0, data.toPlottable("weight").getValue(920802300), 1e-7);
     }
 
+    @Test
+    public void testDataViews() throws IOException, InterruptedException {
+        URL url = getClass().getResource("/rrdtool/0003b328.rrd");
+        final RRDatabase rrd = new RRDatabase(url.getFile());
+        Archive archive = rrd.getArchive(0);
+        DoubleBuffer view = archive.getData();
+        Assert.assertTrue("View should be read-only", view.isReadOnly());
+        Assert.assertEquals("Invalid view size", 2 * archive.getRowCount(), view.remaining());
+        Assert.assertEquals(1.4316185300e+07, view.get(2 * archive.getCurrentRow()), 1e-7);
+        Assert.assertEquals(3, view.get(2 * archive.getCurrentRow() + 1), 1e-7);
+        double[] speeds = archive.getValues(0);
+        Assert.assertEquals("Invalid newest value", 1.4316185300e+07, speeds[speeds.length - 1], 1e-7);
+        for (int i = 0; i < speeds.length; i++) {
+            Assert.assertEquals("Invalid value", speeds[i], archive.getValue(i, 0), 0);
+        }
+
+        final String expected = rrd.getData(ConsolidationFunctionType.AVERAGE, 920802300, 920808900, 300).toString();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 200; j++) {
+                            String data = rrd.getData(ConsolidationFunctionType.AVERAGE, 920802300, 920808900, 300).toString();
+                            double[] values = rrd.getArchive(1).getValues(1);
+                            if (!expected.equals(data) || !Arrays.equals(values, rrd.getArchive(1).getValues()[1])) {
+                                failure.set("Concurrent read returned different values");
+                            }
+                        }
+                    }
+                    catch (Exception e) {
+                        failure.set(e.toString());
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assert.assertNull(failure.get(), failure.get());
+        rrd.close();
+    }
+
     Double readDouble(RRDFile rrdFile) throws IOException {
         return rrdFile.readDouble();
     }
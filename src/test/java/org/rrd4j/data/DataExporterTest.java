@@ -0,0 +1,111 @@
+package org.rrd4j.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.rrd4j.ConsolFun;
+import org.rrd4j.DsType;
+import org.rrd4j.core.RrdBackendFactory;
+import org.rrd4j.core.RrdDb;
+import org.rrd4j.core.RrdDef;
+import org.rrd4j.core.Util;
+
+public class DataExporterTest {
+    static final private String backend = "MEMORY";
+    static final private String fileName = "dataexportertest.rrd";
+    static private final long step = 300;
+    static private long startTime;
+    static private long endTime;
+
+    @BeforeClass
+    public static void createRrd() throws IOException {
+        long start = Util.getTimestamp(2010, 4, 1);
+        startTime = start - start % step;
+        endTime = startTime + 10 * step;
+
+        RrdDef def = new RrdDef(fileName, startTime - step, step);
+        def.addArchive(ConsolFun.AVERAGE, 0.5, 1, 20);
+        def.addDatasource("bar", DsType.GAUGE, 3000, Double.NaN, Double.NaN);
+        RrdDb db = new RrdDb(def, RrdBackendFactory.getFactory(backend));
+        long sampleTime = startTime;
+        for (int i = 1; i <= 10; i++) {
+            db.createSample(sampleTime).setValue(0, i).update();
+            sampleTime += step;
+        }
+        db.close();
+    }
+
+    private DataExporter getExporter() {
+        DataProcessor dp = new DataProcessor(startTime, endTime - step);
+        dp.addDatasource("bar", fileName, "bar", ConsolFun.AVERAGE, backend);
+        dp.addDatasource("double", "bar,2,*");
+        dp.addDatasource("max", "bar", new Variable.MAX());
+        DataExporter exporter = new DataExporter(dp);
+        exporter.addExport("bar", "Bar");
+        exporter.addExport("double", "Double, \"x2\"");
+        return exporter;
+    }
+
+    @Test
+    public void testJson() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        getExporter().export(out, DataExporter.Format.JSON);
+        String json = out.toString("UTF-8");
+        Assert.assertTrue(json, json.startsWith("{\"meta\":{\"start\":" + startTime + ",\"end\":" + (endTime - step) + ",\"step\":300,\"rows\":10,"));
+        Assert.assertTrue(json, json.contains("\"legend\":[\"Bar\",\"Double, \\\"x2\\\"\"]}"));
+        Assert.assertTrue(json, json.contains("[" + startTime + ",1.0,2.0],[" + (startTime + step) + ",2.0,4.0]"));
+        Assert.assertTrue(json, json.endsWith(",10.0,20.0]]}"));
+    }
+
+    @Test
+    public void testCsv() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        getExporter().export(out, DataExporter.Format.CSV);
+        String[] lines = out.toString("UTF-8").split("\n");
+        Assert.assertEquals("Invalid number of lines", 11, lines.length);
+        Assert.assertEquals("Invalid header", "timestamp,Bar,\"Double, \"\"x2\"\"\"", lines[0]);
+        Assert.assertEquals("Invalid first row", startTime + ",1.0,2.0", lines[1]);
+        Assert.assertEquals("Invalid last row", (endTime - step) + ",10.0,20.0", lines[10]);
+    }
+
+    @Test
+    public void testAllSources() throws IOException {
+        DataProcessor dp = new DataProcessor(startTime, endTime - step);
+        dp.addDatasource("bar", fileName, "bar", ConsolFun.AVERAGE, backend);
+        dp.addDatasource("max", "bar", new Variable.MAX());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DataExporter(dp).exportCsv(out);
+        String[] lines = out.toString("UTF-8").split("\n");
+        Assert.assertEquals("Invalid header", "timestamp,bar,max", lines[0]);
+        Assert.assertEquals("Invalid first row", startTime + ",1.0,10.0", lines[1]);
+    }
+
+    @Test
+    public void testBinary() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        getExporter().export(out, DataExporter.Format.BINARY);
+        ByteBuffer frame = ByteBuffer.wrap(out.toByteArray());
+        frame.order(ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals("Invalid magic", DataExporter.BINARY_MAGIC, frame.getInt());
+        Assert.assertEquals("Invalid version", DataExporter.BINARY_VERSION, frame.getInt());
+        Assert.assertEquals("Invalid step", step, frame.getLong());
+        Assert.assertEquals("Invalid column count", 2, frame.getInt());
+        Assert.assertEquals("Invalid row count", 10, frame.getInt());
+        for (String legend : new String[]{"Bar", "Double, \"x2\""}) {
+            byte[] b = new byte[frame.getInt()];
+            frame.get(b);
+            Assert.assertEquals("Invalid legend", legend, new String(b, "UTF-8"));
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("Invalid timestamp", startTime + i * step, frame.getLong());
+            Assert.assertEquals("Invalid value", i + 1, frame.getDouble(), 1e-7);
+            Assert.assertEquals("Invalid value", 2 * (i + 1), frame.getDouble(), 1e-7);
+        }
+        Assert.assertFalse("Trailing bytes", frame.hasRemaining());
+    }
+}